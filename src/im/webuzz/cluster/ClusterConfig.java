@@ -97,6 +97,32 @@ public class ClusterConfig {
 	 * improve performance.
 	 */
 	public static boolean clusterPrimarySynchronizing = true;
+
+	/**
+	 * Slots requested concurrently on synchronizing from other primary
+	 * login server. Set it to 1 to synchronize slots one by one.
+	 */
+	public static int clusterSynchronizingWindow = 8;
+
+	/**
+	 * Maximum online users in each response on synchronizing a slot from
+	 * other primary login server. Larger slots are synchronized in chunks.
+	 */
+	public static int clusterSynchronizingChunkSize = 65536;
+
+	/**
+	 * Whether ServerLost events are piped to other primary login servers in
+	 * compact encoding or not. Older primary login servers ignore compact
+	 * ServerLost events, only set it to true after all primary login servers
+	 * are upgraded.
+	 */
+	public static boolean clusterCompactServerLost = false;
+
+	/**
+	 * Online users in each OnlineUsers event, piped up from service server
+	 * on connecting to login server, see ClusterStreamingNode.
+	 */
+	public static int clusterOnlineUsersChunkSize = 65536;
 	
 	/**
 	 * Whether this primary/login server is performing as proxy server or not.
@@ -114,6 +140,50 @@ public class ClusterConfig {
 	 * event details.
 	 */
 	public static boolean clusterEventTransparent = false;
+
+	/**
+	 * Whether events to many receivers are piped as one multicast event for
+	 * each server or not. Servers of older versions can not deal multicast
+	 * events, only set it to true after all servers are upgraded. Otherwise
+	 * events are piped one by one.
+	 */
+	public static boolean clusterMulticastEvents = false;
+
+	/**
+	 * Whether events between service servers are piped with sequences and
+	 * acknowledgements or not. Events which are not acknowledged in time
+	 * are piped again, and duplicated events are dropped by receiving
+	 * server. Set it to true only after all servers are upgraded.
+	 */
+	public static boolean clusterReliableEvents = false;
+
+	/**
+	 * Max events not acknowledged by each server. More events to that
+	 * server are not piped, as if server is unreachable.
+	 */
+	public static int clusterReliableWindow = 8192;
+
+	/**
+	 * Events not acknowledged in this time, 3s by default, are piped again.
+	 */
+	public static long clusterReliableRetryTimeout = 3000;
+
+	/**
+	 * Events not acknowledged after these resendings are given up.
+	 */
+	public static int clusterReliableMaxResendings = 5;
+
+	/**
+	 * Acknowledgements are piped back in batches for this interval, 10ms by
+	 * default.
+	 */
+	public static long clusterReliableAckInterval = 10;
+
+	/**
+	 * Received sequences kept for each server to drop duplicated events.
+	 * It should be larger than clusterReliableWindow.
+	 */
+	public static int clusterReliableDedupWindow = 65536;
 	
 	/**
 	 * If gateway server or network connection are down, try to send events again.
@@ -199,11 +269,154 @@ public class ClusterConfig {
 	 */
 	public static int clusterInitialCapacity = 10000;
 
+	/**
+	 * Slots of user status maps. Each slot has its own lock, more slots mean
+	 * less lock contention on servers with more cores. It will be rounded up
+	 * to power of 2, and it is only read on initializing.
+	 * 
+	 * Servers with different slots can synchronize with each other, but all
+	 * primary servers should be upgraded before slots are changed.
+	 */
+	public static int clusterSlots = 128;
+
 	/**
 	 * The time that remote server cache user status for, 3 minutes by default
 	 */
 	public static long clusterUserCachingTime = 3 * 60000;
 
+	/**
+	 * Maximum cached users on service server, not including users logging in
+	 * from this server. Least recently used users are evicted on exceeding.
+	 */
+	public static int clusterUserCacheMaxSize = 1000000;
+
+	/**
+	 * Interval of expiring cached users, 1s by default.
+	 */
+	public static long clusterUserCacheTickInterval = 1000;
+
+	/**
+	 * Service servers cache offline users for this time, 30s by default.
+	 * Events to offline users are rejected without querying primary server.
+	 * Users going online are pushed by primary server and removed from this
+	 * cache immediately.
+	 */
+	public static long clusterUserOfflineCachingTime = 30000;
+
+	/**
+	 * Max pending events for a user whose server is being queried. On
+	 * exceeding, the oldest event is dropped.
+	 */
+	public static int clusterPendingEventsPerUser = 64;
+
+	/**
+	 * Max pending events of all users. On exceeding, new events are dropped.
+	 */
+	public static int clusterPendingEventsMaxSize = 100000;
+
+	/**
+	 * Pending events are dropped if their receivers' servers are not known
+	 * in this time, 30s by default.
+	 */
+	public static long clusterPendingEventTTL = 30000;
+
+	/**
+	 * Only one query of a user is sent to primary login server at the same
+	 * time. If there are no results in this time, 5s by default, query will
+	 * be sent again on next request.
+	 */
+	public static long clusterUserQueryRetryTimeout = 5000;
+
+	/**
+	 * User queries on service server linger for this time, in milliseconds,
+	 * and are piped up to primary login server in batches, e.g. 5ms. 0 by
+	 * default, means no batching, each user is queried in a single event.
+	 * Older primary login servers can not deal batched queries, only set it
+	 * after all primary login servers are upgraded.
+	 */
+	public static long clusterUserQueryLinger = 0;
+
+	/**
+	 * Max users queried in one batch.
+	 */
+	public static int clusterUserQueryBatchSize = 256;
+
+	/**
+	 * User statuses on service server linger for this time, in milliseconds,
+	 * and are piped up to primary login server in batches, e.g. 20ms.
+	 * Statuses of the same user in this time are collapsed. 0 by default,
+	 * means no batching. Older primary login servers can not deal batched
+	 * statuses, only set it after all primary login servers are upgraded.
+	 */
+	public static long clusterUserStatusLinger = 0;
+
+	/**
+	 * Max user statuses piped up in one batch.
+	 */
+	public static int clusterUserStatusBatchSize = 1024;
+
+	/**
+	 * Max linger of events piped or sent to the same server, in
+	 * microseconds, 200us by default. Events are batched into one pipe
+	 * frame or one RPC. Linger adapts to outbound throughput, events are
+	 * sent directly on light workloads. 0 means no batching.
+	 */
+	public static long clusterOutboundLinger = 200;
+
+	/**
+	 * Max events to the same server in one outbound batch.
+	 */
+	public static int clusterOutboundBatchSize = 256;
+
+	/**
+	 * File of primary server's user directory snapshot. Online users are
+	 * saved periodically and are loaded on restarting. Null means no
+	 * snapshots.
+	 */
+	public static String clusterSnapshotFile = null;
+
+	/**
+	 * Interval of saving user directory snapshot, 1 minute by default.
+	 */
+	public static long clusterSnapshotInterval = 60000;
+
+	/**
+	 * Snapshot older than this age is ignored on restarting, 10 minutes by
+	 * default.
+	 */
+	public static long clusterSnapshotMaxAge = 10 * 60000;
+
+	/**
+	 * Directory of primary server's user status journal. Status changes are
+	 * appended into journal segments, and are replayed on restarting on top
+	 * of the snapshot. Null means no journal. Journal is compacted by
+	 * snapshots, it is ignored if {@link #clusterSnapshotFile} is null.
+	 */
+	public static String clusterJournalDir = null;
+
+	/**
+	 * Max interval of committing journal records to disk, 10ms by default.
+	 */
+	public static long clusterJournalCommitInterval = 10;
+
+	/**
+	 * Journal segment is rolled on exceeding this size, 64M by default.
+	 */
+	public static long clusterJournalSegmentSize = 64 * 1024 * 1024;
+
+	/**
+	 * Latest journal segments kept for tailing, even if they are covered by
+	 * snapshot.
+	 */
+	public static int clusterJournalRetainedSegments = 4;
+
+	/**
+	 * Recent changes kept for each slot on primary server. Other primary
+	 * servers reconnecting in these changes synchronize only changed users,
+	 * otherwise all users of the slot are synchronized.
+	 */
+	public static int clusterSlotChangesSize = 4096;
+
 	/**
 	 * Supports removing not reachable user or not. In case cluster node
 	 * crashes and user is off-line, user status may be kept as online in
@@ -223,6 +436,52 @@ public class ClusterConfig {
 	 */
 	public static long clusterPipeHeartBeatTimeoutInterval = 60000;
 	
+	/**
+	 * Whether pipes have a priority lane for control events, heart beats,
+	 * server statuses, server stopping and user duplicated events. Data
+	 * events are held in pipe's data lane and are piped in slices, only
+	 * when earlier data has been sent, so control events are not stuck
+	 * behind bulk data. If false, control events are held in data lane
+	 * too, in order.
+	 */
+	public static boolean clusterPipeControlLane = true;
+	
+	/**
+	 * Max data events piped in one slice from data lane.
+	 */
+	public static int clusterPipeDataSliceSize = 256;
+	
+	/**
+	 * Interval of checking pipes for next data slice, 1ms by default.
+	 */
+	public static long clusterPipeDataLaneInterval = 1;
+	
+	/**
+	 * Max data events held by each pipe, while remote server is slow or
+	 * reconnecting. 0 means no limits.
+	 */
+	public static int clusterPipeMaxPendingEvents = 100000;
+	
+	/**
+	 * Max estimated bytes of data events held by each pipe, 32M by
+	 * default. 0 means no limits.
+	 */
+	public static long clusterPipeMaxPendingBytes = 32 * 1024 * 1024;
+	
+	/**
+	 * Estimated size of data event whose serialized size is not known.
+	 */
+	public static int clusterPipeEventEstimatedSize = 256;
+	
+	/**
+	 * What to do with data events beyond above limits.
+	 * 0: reject, ClusterServer#pipeEvent returns ClusterServer#PIPE_REJECTED;
+	 * 1: drop oldest events (default);
+	 * 2: drop newest events.
+	 * Dropped events are reported to cluster node if it is a ClusterOverflowNode.
+	 */
+	public static int clusterPipeOverflowPolicy = 1;
+	
 	/**
 	 * The minimum reconnecting retries before removing pipe connections.
 	 * If server's time changes suddenly, pipes may be treated as expired and
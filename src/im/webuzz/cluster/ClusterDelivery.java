@@ -0,0 +1,219 @@
+package im.webuzz.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of piping an event asynchronously, see
+ * {@link ClusterServer#pipeEventAsync(ClusterEvent)}.
+ * 
+ * Delivery is completed once, on event being piped to receiver's server,
+ * or on knowing that it can not be piped. For receivers being queried,
+ * delivery is completed on query response or on pending event expiring.
+ * 
+ * Delivered means the event is handed to the pipe to the server of its
+ * receiver, after waiting in outbound batch or pipe data lane if any, or
+ * is received by local cluster node, not that the receiver has read it.
+ * Events dropped by full data lane are completed as rejected.
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class ClusterDelivery implements Future<Integer> {
+
+	/**
+	 * Delivery callback, called once delivery is completed.
+	 */
+	public static interface ICallback {
+
+		/**
+		 * Delivery is completed. This method is called by the thread
+		 * completing delivery, e.g. a pipe thread, it should return quickly.
+		 * 
+		 * @param delivery
+		 */
+		public void deliveryCompleted(ClusterDelivery delivery);
+
+	}
+
+	public static final int PENDING = -1;
+	public static final int OFFLINE = 0;
+	public static final int DELIVERED = 1;
+	public static final int UNREACHABLE = 2;
+	public static final int TIMED_OUT = 3;
+	public static final int REJECTED = 4;
+
+	private final ClusterEvent event;
+
+	private volatile int result = PENDING;
+
+	private volatile boolean acknowledging;
+
+	// Guarded by this
+	private List<ICallback> callbacks;
+
+	public ClusterDelivery(ClusterEvent event) {
+		this.event = event;
+	}
+
+	public ClusterEvent getEvent() {
+		return event;
+	}
+
+	/**
+	 * Return delivery result, or PENDING if it is not completed yet.
+	 * 
+	 * @return
+	 */
+	public int getResult() {
+		return result;
+	}
+
+	/**
+	 * Add callback, which is called once delivery is completed. If delivery
+	 * is already completed, callback is called at once in current thread.
+	 * 
+	 * @param callback
+	 */
+	public void addCallback(ICallback callback) {
+		synchronized (this) {
+			if (result == PENDING) {
+				if (callbacks == null) {
+					callbacks = new ArrayList<ICallback>(2);
+				}
+				callbacks.add(callback);
+				return;
+			}
+		}
+		callback.deliveryCompleted(this);
+	}
+
+	/**
+	 * Complete delivery with given result, called by cluster server. Only
+	 * the first completion takes effect.
+	 * 
+	 * @param result
+	 * @return true if delivery is completed by this call
+	 */
+	public boolean complete(int result) {
+		if (result == PENDING || (result == DELIVERED && acknowledging)) {
+			return false;
+		}
+		List<ICallback> cbs = null;
+		synchronized (this) {
+			if (this.result != PENDING) {
+				return false;
+			}
+			this.result = result;
+			cbs = callbacks;
+			callbacks = null;
+			notifyAll();
+		}
+		if (cbs != null) {
+			for (int i = 0; i < cbs.size(); i++) {
+				try {
+					cbs.get(i).deliveryCompleted(this);
+				} catch (Throwable e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Event is piped with a sequence, see ClusterConfig#clusterReliableEvents.
+	 * Delivery is completed as delivered only on receiving server's
+	 * acknowledgement, called by cluster server.
+	 */
+	public void expectAcknowledgement() {
+		acknowledging = true;
+	}
+
+	/**
+	 * Event is acknowledged by receiving server, called by cluster server.
+	 * 
+	 * @return true if delivery is completed by this call
+	 */
+	public boolean acknowledged() {
+		acknowledging = false;
+		return complete(DELIVERED);
+	}
+
+	/**
+	 * Complete deliveries of given events, if there are any.
+	 * 
+	 * @param events
+	 * @param result
+	 */
+	public static void complete(ClusterEvent[] events, int result) {
+		for (int i = 0; i < events.length; i++) {
+			complete(events[i], result);
+		}
+	}
+
+	/**
+	 * Complete delivery of given event, if there is one.
+	 * 
+	 * @param event
+	 * @param result
+	 */
+	public static void complete(ClusterEvent event, int result) {
+		if (event == null) {
+			return;
+		}
+		ClusterDelivery d = event.getDelivery();
+		if (d != null) {
+			d.complete(result);
+		}
+	}
+
+	/**
+	 * Delivery can not be cancelled, as event may already be piped out.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return result != PENDING;
+	}
+
+	@Override
+	public Integer get() throws InterruptedException, ExecutionException {
+		synchronized (this) {
+			while (result == PENDING) {
+				wait();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Integer get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (this) {
+			while (result == PENDING) {
+				long waiting = deadline - System.nanoTime();
+				if (waiting <= 0) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, waiting);
+			}
+		}
+		return result;
+	}
+
+}
@@ -56,6 +56,9 @@ public class ClusterEvent extends SimpleSerializable {
 	@J2SIgnore
 	private int evtSenderEnd = -1;
 	
+	@J2SIgnore
+	private ClusterDelivery evtDelivery;
+	
 	private static String[] mappings = new String[] {
 		"sender", "s",
 		"receiver", "r",
@@ -874,6 +877,59 @@ public class ClusterEvent extends SimpleSerializable {
 		return evtClassTransparent;
 	}
 	
+	/**
+	 * Shallow copy of this event for given receiver, sharing event body.
+	 * Used for expanding multicast events.
+	 * 
+	 * @param receiver
+	 * @return
+	 */
+	@J2SIgnore
+	public ClusterEvent copyFor(int receiver) {
+		ClusterEvent e = null;
+		try {
+			e = (ClusterEvent) clone();
+		} catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+		e.receiver = receiver;
+		e.evtDelivery = null; // copies are not tracked
+		return e;
+	}
+
+	/**
+	 * Delivery of this event piped by
+	 * {@link ClusterServer#pipeEventAsync(ClusterEvent)}, if any.
+	 * 
+	 * @return
+	 */
+	@J2SIgnore
+	public ClusterDelivery getDelivery() {
+		return evtDelivery;
+	}
+
+	@J2SIgnore
+	void setDelivery(ClusterDelivery delivery) {
+		evtDelivery = delivery;
+	}
+
+	/**
+	 * Estimated serialized size of this event in bytes, used for budgets of
+	 * pipe data. Size is known for events with kept event body only.
+	 * 
+	 * @return size in bytes, or -1 if unknown
+	 */
+	@J2SIgnore
+	public int getEstimatedSize() {
+		if (evtContentBytes != null) {
+			return evtContentBytes.length;
+		}
+		if (evtContentBody != null) {
+			return evtContentBody.length();
+		}
+		return -1;
+	}
+
 	@J2SIgnore
 	public void setCallback(Runnable cb) {
 	}
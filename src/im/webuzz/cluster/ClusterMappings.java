@@ -3,14 +3,20 @@ package im.webuzz.cluster;
 import im.webuzz.cluster.calls.ClosePipe;
 import im.webuzz.cluster.calls.SendEvent;
 import im.webuzz.cluster.calls.SynchronizeUsers;
+import im.webuzz.cluster.events.EventAcks;
 import im.webuzz.cluster.events.HeartBeat;
+import im.webuzz.cluster.events.OnlineUsers;
+import im.webuzz.cluster.events.ReliableEvent;
 import im.webuzz.cluster.events.ServerLost;
 import im.webuzz.cluster.events.ServerStatus;
 import im.webuzz.cluster.events.ServerStopping;
 import im.webuzz.cluster.events.UserDuplicated;
+import im.webuzz.cluster.events.UserQueries;
 import im.webuzz.cluster.events.UserQuery;
 import im.webuzz.cluster.events.UserResult;
+import im.webuzz.cluster.events.UserResults;
 import im.webuzz.cluster.events.UserStatus;
+import im.webuzz.cluster.events.UserStatuses;
 import im.webuzz.cluster.pipes.Login2LoginPipe;
 import im.webuzz.cluster.pipes.Login2ServicePipe;
 import im.webuzz.cluster.pipes.Service2LoginPipe;
@@ -39,6 +45,13 @@ public class ClusterMappings {
 		SimpleSerializable.registerClassShortenName(UserQuery.class.getName(), "cUQ");
 		SimpleSerializable.registerClassShortenName(UserResult.class.getName(), "cUR");
 		SimpleSerializable.registerClassShortenName(UserStatus.class.getName(), "cUS");
+		SimpleSerializable.registerClassShortenName(UserQueries.class.getName(), "cUQs");
+		SimpleSerializable.registerClassShortenName(UserResults.class.getName(), "cURs");
+		SimpleSerializable.registerClassShortenName(UserStatuses.class.getName(), "cUSs");
+		SimpleSerializable.registerClassShortenName(OnlineUsers.class.getName(), "cOUs");
+		SimpleSerializable.registerClassShortenName(MulticastEvent.class.getName(), "cME");
+		SimpleSerializable.registerClassShortenName(ReliableEvent.class.getName(), "cRE");
+		SimpleSerializable.registerClassShortenName(EventAcks.class.getName(), "cEA");
 		// cluster pipe
 		SimpleSerializable.registerClassShortenName(Login2LoginPipe.class.getName(), "cLL");
 		SimpleSerializable.registerClassShortenName(Login2ServicePipe.class.getName(), "cLS");
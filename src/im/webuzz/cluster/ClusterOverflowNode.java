@@ -0,0 +1,25 @@
+package im.webuzz.cluster;
+
+/**
+ * Cluster node which wants to know about cluster events dropped by full
+ * pipes, e.g. to save them as offline messages.
+ * 
+ * Pipes to slow or reconnecting servers keep limited data, see
+ * ClusterConfig#clusterPipeMaxPendingEvents and
+ * ClusterConfig#clusterPipeMaxPendingBytes. Events beyond that limit are
+ * dropped according to ClusterConfig#clusterPipeOverflowPolicy.
+ * 
+ * @author zhourenjian
+ *
+ */
+public interface ClusterOverflowNode extends ClusterNode {
+
+	/**
+	 * Cluster events are dropped by full pipe. This method is called by
+	 * the piping thread, it should return quickly.
+	 * 
+	 * @param events dropped events
+	 */
+	public void onEventsDropped(ClusterEvent[] events);
+
+}
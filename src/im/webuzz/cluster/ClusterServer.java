@@ -1,11 +1,9 @@
 package im.webuzz.cluster;
 
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 
 import im.webuzz.cluster.events.IStatus;
-import im.webuzz.cluster.events.UserQuery;
 import im.webuzz.cluster.events.UserResult;
 import im.webuzz.cluster.events.UserStatus;
 import net.sf.j2s.ajax.SimpleFactory;
@@ -13,8 +11,11 @@ import net.sf.j2s.ajax.SimplePipeHelper;
 import net.sf.j2s.ajax.SimplePipeRunnable;
 import net.sf.j2s.ajax.SimpleRPCRequest;
 import net.sf.j2s.ajax.SimpleSerializable;
+import im.webuzz.cluster.pipes.AbstractClusterPipe;
 import im.webuzz.cluster.pipes.Login2LoginPipe;
 import im.webuzz.cluster.pipes.Service2LoginPipe;
+import im.webuzz.cluster.xyz.ServerId;
+import im.webuzz.cluster.xyz.UserDirectory;
 import im.webuzz.cluster.xyz.XYZMixxer;
 import im.webuzz.threadpool.SimpleThreadPool;
 
@@ -32,6 +33,12 @@ import im.webuzz.threadpool.SimpleThreadPool;
  */
 public class ClusterServer {
 	
+	/**
+	 * Result of piping event, which is rejected by full pipe to receiver's
+	 * server, see ClusterConfig#clusterPipeOverflowPolicy.
+	 */
+	public static final int PIPE_REJECTED = -2;
+	
 	private static ClusterNode serviceNode;
 	
 	private static boolean initialized = false;
@@ -115,67 +122,126 @@ public class ClusterServer {
 	 * For service server, status will be detected from cached user map. Only
 	 * users logging in this server will be returned as online.
 	 * 
+	 * Lookup is lock free, it won't block user status updates.
+	 * 
 	 * @param uid
 	 * @return online or not
 	 */
 	public static boolean isUserOnline(int uid) {
 		int slot = uid & XYZMixxer.SLOTS_MASKS; // uid % XYZMixxer.SLOTS;
 		if (ClusterConfig.clusterPrimaryServer) {
-			synchronized (XYZMixxer.statusMutex[slot]) {
-				UserResult r = XYZMixxer.allStatuses[slot].get(uid);
-				if (r == null) {
-					return false;
-				}
-				return r.status == IStatus.CONNECTED;
+			long record = XYZMixxer.allStatuses[slot].peek(uid);
+			if (record == UserDirectory.NOT_FOUND) {
+				return false;
 			}
+			return UserDirectory.statusOf(record) == IStatus.CONNECTED;
 		} else {
-			synchronized (XYZMixxer.userMutex[slot]) {
-				UserResult r = XYZMixxer.cachedUsers[slot].get(uid);
-				if (r == null) {
-					return false;
-				}
-				return r.status == IStatus.CONNECTED && r.lastUpdated == -1; // -1, logging in from this server, never expired
+			UserResult r = XYZMixxer.cachedUsers[slot].peek(uid);
+			if (r == null) {
+				return false;
 			}
+			return r.status == IStatus.CONNECTED && r.lastUpdated == -1; // -1, logging in from this server, never expired
 		}
 	}
 
 	public static int getUserClusterStatus(int uid) {
 		int slot = uid & XYZMixxer.SLOTS_MASKS; // uid % XYZMixxer.SLOTS;
 		if (ClusterConfig.clusterPrimaryServer) {
-			synchronized (XYZMixxer.statusMutex[slot]) {
-				UserResult r = XYZMixxer.allStatuses[slot].get(uid);
-				if (r != null && r.status == IStatus.CONNECTED) {
-					if (r.port == ClusterConfig.port && ClusterConfig.clusterServerIP != null
-							&& ClusterConfig.clusterServerIP.equals(r.domain)) {
-						// on this primary server
-						return 1; // here
-					} else {
-						return -1; // else where
-					}
+			long record = XYZMixxer.allStatuses[slot].peek(uid);
+			if (record != UserDirectory.NOT_FOUND && UserDirectory.statusOf(record) == IStatus.CONNECTED) {
+				if (ServerId.isLocal(UserDirectory.serverOf(record))) {
+					// on this primary server
+					return 1; // here
 				} else {
-					return 0; // Off-line
+					return -1; // else where
 				}
+			} else {
+				return 0; // Off-line
 			}
 		} else {
-			synchronized (XYZMixxer.userMutex[slot]) {
-				UserResult r = XYZMixxer.cachedUsers[slot].get(uid);
+			UserResult r = XYZMixxer.cachedUsers[slot].peek(uid);
+			if (r != null && r.status == IStatus.CONNECTED
+					&& (r.lastUpdated == -1 // Logging in from this server, never expired
+					|| Math.abs(System.currentTimeMillis() - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
+				if (r.port == ClusterConfig.port && ClusterConfig.clusterServerIP != null
+						&& ClusterConfig.clusterServerIP.equals(r.domain)) {
+					// on this server
+					return 1; // here
+				} else {
+					return -1; // else where
+				}
+			} else {
+				return 0; // not known yet
+			}
+		}
+	}
+	
+
+	/**
+	 * Detect whether given users are online or not, see
+	 * {@link #isUserOnline(int)}.
+	 * 
+	 * Users are grouped by slots, and each slot is read only once.
+	 * 
+	 * @param uids
+	 * @return online or not, in the same order of given users
+	 */
+	public static boolean[] isUsersOnline(int[] uids) {
+		boolean[] onlines = new boolean[uids.length];
+		if (ClusterConfig.clusterPrimaryServer) {
+			long[] records = XYZMixxer.peekStatuses(uids);
+			for (int i = 0; i < records.length; i++) {
+				long record = records[i];
+				onlines[i] = record != UserDirectory.NOT_FOUND
+						&& UserDirectory.statusOf(record) == IStatus.CONNECTED;
+			}
+		} else {
+			UserResult[] results = XYZMixxer.peekCachedUsers(uids);
+			for (int i = 0; i < results.length; i++) {
+				UserResult r = results[i];
+				onlines[i] = r != null && r.status == IStatus.CONNECTED && r.lastUpdated == -1;
+			}
+		}
+		return onlines;
+	}
+
+	/**
+	 * Get cluster statuses of given users, see {@link #getUserClusterStatus(int)}.
+	 * 
+	 * Users are grouped by slots, and each slot is read only once.
+	 * 
+	 * @param uids
+	 * @return statuses, in the same order of given users
+	 */
+	public static int[] getUsersClusterStatus(int[] uids) {
+		int[] statuses = new int[uids.length];
+		if (ClusterConfig.clusterPrimaryServer) {
+			long[] records = XYZMixxer.peekStatuses(uids);
+			for (int i = 0; i < records.length; i++) {
+				long record = records[i];
+				if (record != UserDirectory.NOT_FOUND && UserDirectory.statusOf(record) == IStatus.CONNECTED) {
+					statuses[i] = ServerId.isLocal(UserDirectory.serverOf(record)) ? 1 : -1;
+				} // else 0, Off-line
+			}
+		} else {
+			UserResult[] results = XYZMixxer.peekCachedUsers(uids);
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < results.length; i++) {
+				UserResult r = results[i];
 				if (r != null && r.status == IStatus.CONNECTED
 						&& (r.lastUpdated == -1 // Logging in from this server, never expired
-						|| Math.abs(System.currentTimeMillis() - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
+						|| Math.abs(now - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
 					if (r.port == ClusterConfig.port && ClusterConfig.clusterServerIP != null
 							&& ClusterConfig.clusterServerIP.equals(r.domain)) {
-						// on this server
-						return 1; // here
+						statuses[i] = 1; // here
 					} else {
-						return -1; // else where
+						statuses[i] = -1; // else where
 					}
-				} else {
-					return 0; // not known yet
-				}
+				} // else 0, not known yet
 			}
 		}
+		return statuses;
 	}
-	
 
 	/**
 	 * Query specified user status across cluster servers.
@@ -188,36 +254,27 @@ public class ClusterServer {
 		if (ClusterConfig.clusterPrimaryServer) {
 			// Primary login server knows which user on which server directly.
 			// Select correct pipe and pipe out data event.
-			synchronized (XYZMixxer.statusMutex[slot]) {
-				UserResult r = XYZMixxer.allStatuses[slot].get(uid);
-				if (r == null || r.status != IStatus.CONNECTED) {
-					return 0;
-				}
+			long record = XYZMixxer.allStatuses[slot].peek(uid);
+			if (record == UserDirectory.NOT_FOUND || UserDirectory.statusOf(record) != IStatus.CONNECTED) {
+				return 0;
 			}
 			return 1;
 		} else {
 			// For normal service, try to check cached users. If there are
 			// not-expired-yet cached user, try to pipe data through service-
 			// service pipe for this cached user.
-			synchronized (XYZMixxer.userMutex[slot]) {
-				UserResult r = XYZMixxer.cachedUsers[slot].get(uid);
-				if (r != null && (r.lastUpdated == -1
-						|| Math.abs(System.currentTimeMillis() - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
-					if (r.status != IStatus.CONNECTED) {
-						return 0;
-					}
-					return 1;
+			UserResult r = XYZMixxer.cachedUsers[slot].peek(uid);
+			if (r != null && (r.lastUpdated == -1
+					|| Math.abs(System.currentTimeMillis() - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
+				if (r.status != IStatus.CONNECTED) {
+					return 0;
 				}
+				return 1;
 			}
-			UserQuery q = new UserQuery();
-			q.uid = uid;
-			Service2LoginPipe servicePipe = null;
-			synchronized (Service2LoginPipe.pipeMutex) { // across multiple threads
-				servicePipe = Service2LoginPipe.servicePipe;
-			}
-			if (servicePipe != null) {
-				servicePipe.pipeThrough(q);
+			if (XYZMixxer.isKnownOffline(uid)) {
+				return 0;
 			}
+			XYZMixxer.queryUser(uid);
 			return -1;
 		}
 	}
@@ -279,112 +336,399 @@ public class ClusterServer {
 				if (!online) {
 					XYZMixxer.cachedUsers[slot].remove(uid); // clear local cache
 				} else {
+					XYZMixxer.offlineUsers[slot].remove(uid);
 					XYZMixxer.cachedUsers[slot].put(uss.uid, r);
 				}
 			}
-			Service2LoginPipe servicePipe = null;
-			synchronized (Service2LoginPipe.pipeMutex) { // across multiple threads
-				servicePipe = Service2LoginPipe.servicePipe;
+			XYZMixxer.pipeUpUserStatus(uss);
+		}
+	}
+
+	/**
+	 * Return how many more events can be piped to given user's server
+	 * before its pipe is full. Callers may throttle events on low capacity.
+	 * 
+	 * @param uid
+	 * @return remaining events, Integer.MAX_VALUE if server is not known
+	 * or there are no pipes
+	 */
+	public static int getPipeCapacity(int uid) {
+		int server = ServerId.NONE;
+		int slot = uid & XYZMixxer.SLOTS_MASKS;
+		if (ClusterConfig.clusterPrimaryServer) {
+			long record = XYZMixxer.allStatuses[slot].peek(uid);
+			if (record != UserDirectory.NOT_FOUND && UserDirectory.statusOf(record) == IStatus.CONNECTED) {
+				server = UserDirectory.serverOf(record);
 			}
-			if (servicePipe != null) {
-				servicePipe.pipeThrough(uss);
+		} else {
+			UserResult r = XYZMixxer.cachedUsers[slot].peek(uid);
+			if (r != null && r.status == IStatus.CONNECTED) {
+				server = ServerId.intern(r.domain, r.port);
 			}
 		}
+		if (server == ServerId.NONE) {
+			return Integer.MAX_VALUE;
+		}
+		return XYZMixxer.getPipeCapacity(server);
+	}
+
+	/*
+	 * Whether given events to given server should be rejected by its full
+	 * pipe or not. Checked before batching events, as batched events are
+	 * piped later without callers.
+	 */
+	private static boolean isPipeFull(int server, ClusterEvent... events) {
+		return ClusterConfig.clusterPipeOverflowPolicy == AbstractClusterPipe.OVERFLOW_REJECT
+				&& !XYZMixxer.canPipeHold(server, events);
 	}
 
 	/**
 	 * Pipe event across cluster servers to specified user.
 	 * 
 	 * @param event
-	 * @return
+	 * @return 1 if event is piped, 0 if user is not online or not reachable,
+	 * -1 if event is pending for querying user, {@link #PIPE_REJECTED} if
+	 * pipe to user's server is full
 	 */
 	public static int pipeEvent(ClusterEvent event) {
 		int slot = event.receiver & XYZMixxer.SLOTS_MASKS; // event.receiver % XYZMixxer.SLOTS;
 		if (ClusterConfig.clusterPrimaryServer) {
 			// Primary login server knows which user on which server directly.
 			// Select correct pipe and pipe out data event.
-			String remoteHost = null;
-			UserResult r = null;
-			synchronized (XYZMixxer.statusMutex[slot]) {
-				r = XYZMixxer.allStatuses[slot].get(event.receiver);
-				if (r == null || r.status != IStatus.CONNECTED) {
-					return 0;
-				}
-				remoteHost = r.port == 80 ? r.domain : (r.domain + ":" + r.port);
+			long record = XYZMixxer.allStatuses[slot].peek(event.receiver);
+			if (record == UserDirectory.NOT_FOUND || UserDirectory.statusOf(record) != IStatus.CONNECTED) {
+				return 0;
 			}
+			int server = UserDirectory.serverOf(record);
+			long lastUpdated = UserDirectory.timeOf(record);
 			if (ClusterConfig.clusterServerMoving
 					&& ClusterConfig.clusterOldServerIP != null
-					&& ClusterConfig.clusterOldServerIP.equals(r.domain)
-					&& ClusterConfig.clusterOldServerPort == r.port) {
+					&& ClusterConfig.clusterOldServerIP.equals(ServerId.getDomain(server))
+					&& ClusterConfig.clusterOldServerPort == ServerId.getPort(server)) {
 				if (ClusterConfig.clusterNewServerIP != null && ClusterConfig.clusterNewServerIP.length() > 0
 						&& ClusterConfig.clusterNewServerPort > 0) {
 					updateUser(event.receiver, true, ClusterConfig.clusterNewServerIP, ClusterConfig.clusterNewServerPort);
 				} else {
 					updateUser(event.receiver, true);
 				}
-				synchronized (XYZMixxer.statusMutex[slot]) {
-					r = XYZMixxer.allStatuses[slot].get(event.receiver);
-					if (r == null || r.status != IStatus.CONNECTED) {
-						return 0;
-					}
-					remoteHost = r.port == 80 ? r.domain : (r.domain + ":" + r.port);
+				record = XYZMixxer.allStatuses[slot].peek(event.receiver);
+				if (record == UserDirectory.NOT_FOUND || UserDirectory.statusOf(record) != IStatus.CONNECTED) {
+					return 0;
 				}
+				server = UserDirectory.serverOf(record);
+				lastUpdated = UserDirectory.timeOf(record);
 			}
 			boolean sent = false;
 			if (!ClusterConfig.clusterPrimaryLoginServer) {
-				sent = XYZMixxer.pipeOut(remoteHost, event);
+				if (isPipeFull(server, event)) {
+					return PIPE_REJECTED;
+				}
+				int result = XYZMixxer.pipeOut(server, event);
+				if (result == PIPE_REJECTED) {
+					return result;
+				}
+				sent = result == 1;
+				if (!sent) {
+					ClusterDelivery.complete(event, ClusterDelivery.UNREACHABLE);
+				}
 				if (!sent // User is not online or unreachable
-						&& ClusterConfig.clusterUnreachableUserRemoving && r.lastUpdated > 0
-						&& System.currentTimeMillis() - r.lastUpdated > ClusterConfig.clusterMaxUnreachableTime) { 
+						&& ClusterConfig.clusterUnreachableUserRemoving && lastUpdated > 0
+						&& System.currentTimeMillis() - lastUpdated > ClusterConfig.clusterMaxUnreachableTime) { 
 					updateUser(event.receiver, false); // update its status on primary server
 				}
 			} else {
-				sent = XYZMixxer.sendPipeOutRPC(remoteHost, event);
+				sent = XYZMixxer.sendPipeOutRPC(ServerId.getHost(server), event);
 			}
 			return sent ? 1 : 0;
 			// return (!ClusterConfig.clusterPrimaryLoginServer
-			// 			? XYZMixxer.pipeOut(remoteHost, event)
-			//					: XYZMixxer.sendPipeOutRPC(remoteHost, event)) ? 1 : 0;
+			// 			? XYZMixxer.pipeOut(server, event)
+			//					: XYZMixxer.sendPipeOutRPC(ServerId.getHost(server), event)) ? 1 : 0;
 		} else {
 			// For normal service, try to check cached users. If there are
 			// not-expired-yet cached user, try to pipe data through service-
 			// service pipe for this cached user.
-			String remoteHost = null;
-			synchronized (XYZMixxer.userMutex[slot]) {
-				UserResult r = XYZMixxer.cachedUsers[slot].get(event.receiver);
-				if (r != null && (r.lastUpdated == -1 // Logging in from this service server, never expired
-						|| Math.abs(System.currentTimeMillis() - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
-					if (r.status != IStatus.CONNECTED) {
-						return 0;
+			int server = ServerId.NONE;
+			UserResult r = XYZMixxer.cachedUsers[slot].peek(event.receiver);
+			if (r != null && (r.lastUpdated == -1 // Logging in from this service server, never expired
+					|| Math.abs(System.currentTimeMillis() - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
+				if (r.status != IStatus.CONNECTED) {
+					return 0;
+				}
+				server = ServerId.intern(r.domain, r.port);
+			}
+			if (server != ServerId.NONE) {
+				if (isPipeFull(server, event)) {
+					return PIPE_REJECTED;
+				}
+				int result = XYZMixxer.pipeOut(server, event);
+				if (result == 0) {
+					ClusterDelivery.complete(event, ClusterDelivery.UNREACHABLE);
+				}
+				return result;
+			}
+			return queryUserForEvent(event, slot);
+		}
+	}
+
+	/**
+	 * Pipe event across cluster servers to specified user, without waiting
+	 * for querying user's server.
+	 * 
+	 * Returned delivery is completed on event being handed to the pipe to
+	 * user's server, which may be later than returning if event is batched
+	 * or held in data lane, see ClusterConfig#clusterOutboundLinger. If
+	 * user's server is not known, delivery is completed on query response
+	 * or on pending event expiring, see ClusterConfig#clusterPendingEventTTL.
+	 * 
+	 * @param event
+	 * @return delivery of the event
+	 */
+	public static ClusterDelivery pipeEventAsync(ClusterEvent event) {
+		ClusterDelivery d = new ClusterDelivery(event);
+		event.setDelivery(d); // Pending event may be completed by other threads
+		int result = pipeEvent(event);
+		if (result == 0) {
+			d.complete(ClusterDelivery.OFFLINE); // or completed as unreachable already
+		} else if (result == PIPE_REJECTED) {
+			d.complete(ClusterDelivery.REJECTED);
+		}
+		return d;
+	}
+
+	/**
+	 * Pipe events across cluster servers, see {@link #pipeEvent(ClusterEvent)}.
+	 * 
+	 * Receivers are looked up by slots, and events to the same server are
+	 * piped through in one call.
+	 * 
+	 * @param events
+	 * @return results of piping, in the same order of given events
+	 */
+	public static int[] pipeEvents(ClusterEvent[] events) {
+		int length = events.length;
+		int[] results = new int[length];
+		int[] uids = new int[length];
+		for (int i = 0; i < length; i++) {
+			uids[i] = events[i].receiver;
+		}
+		int[] servers = new int[length];
+		if (ClusterConfig.clusterPrimaryServer) {
+			long[] records = XYZMixxer.peekStatuses(uids);
+			for (int i = 0; i < length; i++) {
+				long record = records[i];
+				servers[i] = ServerId.NONE;
+				if (record == UserDirectory.NOT_FOUND || UserDirectory.statusOf(record) != IStatus.CONNECTED) {
+					continue; // 0
+				}
+				int server = UserDirectory.serverOf(record);
+				if (ClusterConfig.clusterServerMoving
+						&& ClusterConfig.clusterOldServerIP != null
+						&& ClusterConfig.clusterOldServerIP.equals(ServerId.getDomain(server))
+						&& ClusterConfig.clusterOldServerPort == ServerId.getPort(server)) {
+					// User needs to be moved, pipe it one by one
+					results[i] = pipeEvent(events[i]);
+					continue;
+				}
+				servers[i] = server;
+			}
+			int[] order = groupByServer(servers);
+			int from = 0;
+			while (from < order.length) {
+				int server = servers[order[from]];
+				int to = from + 1;
+				while (to < order.length && servers[order[to]] == server) {
+					to++;
+				}
+				ClusterEvent[] group = new ClusterEvent[to - from];
+				for (int j = from; j < to; j++) {
+					group[j - from] = events[order[j]];
+				}
+				int result = 0;
+				if (!ClusterConfig.clusterPrimaryLoginServer) {
+					result = isPipeFull(server, group) ? PIPE_REJECTED : XYZMixxer.pipeOut(server, group);
+					if (result == 0 && ClusterConfig.clusterUnreachableUserRemoving) {
+						long now = System.currentTimeMillis();
+						for (int j = from; j < to; j++) {
+							long lastUpdated = UserDirectory.timeOf(records[order[j]]);
+							if (lastUpdated > 0 && now - lastUpdated > ClusterConfig.clusterMaxUnreachableTime) {
+								updateUser(uids[order[j]], false); // update its status on primary server
+							}
+						}
 					}
-					remoteHost = r.port == 80 ? r.domain : (r.domain + ":" + r.port);
+				} else {
+					result = XYZMixxer.sendPipeOutRPC(ServerId.getHost(server), group) ? 1 : 0;
 				}
+				for (int j = from; j < to; j++) {
+					results[order[j]] = result;
+				}
+				from = to;
 			}
-			if (remoteHost != null) {
-				return XYZMixxer.pipeOut(remoteHost, event) ? 1 : 0;
-			}
-			// User is not in cached pool, try to save data event in cross pipe data
-			// pool, and then pipe up a query to primary login server. On got query
-			// response, data event saved in the pool will be piped out again.
-			synchronized (XYZMixxer.dataMutex[slot]) {
-				List<ClusterEvent> data = XYZMixxer.crossPipeData[slot].get(event.receiver);
-				if (data == null) {
-					data = new LinkedList<ClusterEvent>();
-					XYZMixxer.crossPipeData[slot].put(event.receiver, data);
+		} else {
+			UserResult[] cachedResults = XYZMixxer.peekCachedUsers(uids);
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < length; i++) {
+				UserResult r = cachedResults[i];
+				servers[i] = ServerId.NONE;
+				if (r != null && (r.lastUpdated == -1 // Logging in from this service server, never expired
+						|| Math.abs(now - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
+					if (r.status == IStatus.CONNECTED) {
+						servers[i] = ServerId.intern(r.domain, r.port);
+					} // else 0
+					continue;
 				}
-				data.add(event);
+				results[i] = queryUserForEvent(events[i], uids[i] & XYZMixxer.SLOTS_MASKS);
 			}
-			UserQuery q = new UserQuery();
-			q.uid = event.receiver;
-			Service2LoginPipe servicePipe = null;
-			synchronized (Service2LoginPipe.pipeMutex) { // across multiple threads
-				servicePipe = Service2LoginPipe.servicePipe;
+			int[] order = groupByServer(servers);
+			int from = 0;
+			while (from < order.length) {
+				int server = servers[order[from]];
+				int to = from + 1;
+				while (to < order.length && servers[order[to]] == server) {
+					to++;
+				}
+				ClusterEvent[] group = new ClusterEvent[to - from];
+				for (int j = from; j < to; j++) {
+					group[j - from] = events[order[j]];
+				}
+				int result = isPipeFull(server, group) ? PIPE_REJECTED
+						: XYZMixxer.pipeOut(server, group);
+				for (int j = from; j < to; j++) {
+					results[order[j]] = result;
+				}
+				from = to;
 			}
-			if (servicePipe != null) {
-				servicePipe.pipeThrough(q);
+		}
+		return results;
+	}
+
+	/**
+	 * Pipe one event to many receivers across cluster servers, e.g. a group
+	 * message.
+	 * 
+	 * Receivers are split by their servers, and each server gets only one
+	 * {@link MulticastEvent}, carrying the event once and its receivers on
+	 * that server. Receiving cluster node gets a copy of the event for each
+	 * receiver in {@link ClusterNode#onReceivedEvent(ClusterEvent)}.
+	 * 
+	 * @param event event to pipe, its receiver field is ignored
+	 * @param receivers
+	 * @return results of piping, in the same order of given receivers, see
+	 * {@link #pipeEvent(ClusterEvent)}
+	 */
+	public static int[] pipeMulticastEvent(ClusterEvent event, int[] receivers) {
+		int length = receivers.length;
+		if (!ClusterConfig.clusterMulticastEvents) {
+			ClusterEvent[] events = new ClusterEvent[length];
+			for (int i = 0; i < length; i++) {
+				events[i] = event.copyFor(receivers[i]);
 			}
-			return -1;
+			return pipeEvents(events);
+		}
+		int[] results = new int[length];
+		int[] servers = new int[length];
+		if (ClusterConfig.clusterPrimaryServer) {
+			long[] records = XYZMixxer.peekStatuses(receivers);
+			for (int i = 0; i < length; i++) {
+				long record = records[i];
+				servers[i] = ServerId.NONE;
+				if (record == UserDirectory.NOT_FOUND || UserDirectory.statusOf(record) != IStatus.CONNECTED) {
+					continue; // 0
+				}
+				int server = UserDirectory.serverOf(record);
+				if (ClusterConfig.clusterServerMoving
+						&& ClusterConfig.clusterOldServerIP != null
+						&& ClusterConfig.clusterOldServerIP.equals(ServerId.getDomain(server))
+						&& ClusterConfig.clusterOldServerPort == ServerId.getPort(server)) {
+					// User needs to be moved, pipe it one by one
+					results[i] = pipeEvent(event.copyFor(receivers[i]));
+					continue;
+				}
+				servers[i] = server;
+			}
+		} else {
+			UserResult[] cachedResults = XYZMixxer.peekCachedUsers(receivers);
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < length; i++) {
+				UserResult r = cachedResults[i];
+				servers[i] = ServerId.NONE;
+				if (r != null && (r.lastUpdated == -1 // Logging in from this service server, never expired
+						|| Math.abs(now - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
+					if (r.status == IStatus.CONNECTED) {
+						servers[i] = ServerId.intern(r.domain, r.port);
+					} // else 0
+					continue;
+				}
+				results[i] = queryUserForEvent(event.copyFor(receivers[i]), receivers[i] & XYZMixxer.SLOTS_MASKS);
+			}
+		}
+		int[] order = groupByServer(servers);
+		int from = 0;
+		while (from < order.length) {
+			int server = servers[order[from]];
+			int to = from + 1;
+			while (to < order.length && servers[order[to]] == server) {
+				to++;
+			}
+			MulticastEvent m = new MulticastEvent();
+			m.payload = event;
+			m.sender = event.sender;
+			m.receivers = new int[to - from];
+			for (int j = from; j < to; j++) {
+				m.receivers[j - from] = receivers[order[j]];
+			}
+			m.receiver = m.receivers[0];
+			int result = 0;
+			if (!ClusterConfig.clusterPrimaryServer || !ClusterConfig.clusterPrimaryLoginServer) {
+				result = isPipeFull(server, m) ? PIPE_REJECTED : XYZMixxer.pipeOut(server, m);
+			} else {
+				result = XYZMixxer.sendPipeOutRPC(ServerId.getHost(server), m) ? 1 : 0;
+			}
+			for (int j = from; j < to; j++) {
+				results[order[j]] = result;
+			}
+			from = to;
+		}
+		return results;
+	}
+
+	/*
+	 * Return indexes of given servers ordered by server ID, skipping
+	 * ServerId#NONE.
+	 */
+	private static int[] groupByServer(int[] servers) {
+		int count = 0;
+		for (int i = 0; i < servers.length; i++) {
+			if (servers[i] != ServerId.NONE) {
+				count++;
+			}
+		}
+		long[] keys = new long[count];
+		int index = 0;
+		for (int i = 0; i < servers.length; i++) {
+			if (servers[i] != ServerId.NONE) {
+				keys[index++] = ((long) servers[i] << 32) | i;
+			}
+		}
+		Arrays.sort(keys);
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = (int) keys[i];
+		}
+		return order;
+	}
+
+	/*
+	 * User is not in cached pool, try to save data event in cross pipe data
+	 * pool, and then pipe up a query to primary login server. On got query
+	 * response, data event saved in the pool will be piped out again.
+	 */
+	private static int queryUserForEvent(ClusterEvent event, int slot) {
+		if (XYZMixxer.isKnownOffline(event.receiver)) {
+			return 0;
 		}
+		XYZMixxer.keepPendingEvent(event, slot);
+		XYZMixxer.queryUser(event.receiver);
+		return -1;
 	}
 	
 	/**
@@ -0,0 +1,33 @@
+package im.webuzz.cluster;
+
+/**
+ * Cluster node with a lot of online users, which are handed over to login
+ * servers in chunks instead of one array.
+ * 
+ * On connecting to login server, online users are piped in several
+ * OnlineUsers events, so no single array is limited by serializer, and
+ * login server can apply them while other chunks are still coming.
+ * 
+ * @author zhourenjian
+ *
+ */
+public interface ClusterStreamingNode extends ClusterNode {
+
+	/**
+	 * Get a chunk of online users in this cluster node, whose user IDs are
+	 * greater than given user ID, in ascending order of user IDs.
+	 * 
+	 * Chunks are paged by user ID instead of index, so users staying online
+	 * are never missed when other users log in or log out between chunks.
+	 * Only users changing status between chunks may be missed, as their
+	 * status changes are also piped to login servers.
+	 * 
+	 * @param afterUser user ID of the last user in previous chunk, or 0 for
+	 * the first chunk
+	 * @param maxUsers maximum users in this chunk
+	 * @return online user IDs in ascending order, null or fewer users than
+	 * maxUsers means there are no more users
+	 */
+	public int[] getOnlineUsersAfter(int afterUser, int maxUsers);
+
+}
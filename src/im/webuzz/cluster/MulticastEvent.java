@@ -0,0 +1,89 @@
+package im.webuzz.cluster;
+
+import java.util.Map;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * One cluster event to many receivers, e.g. a group message.
+ * 
+ * Payload event is serialized once for all receivers on the same server.
+ * Cluster server splits receivers by their servers and pipes one multicast
+ * event to each server. Only the receiving cluster node expands it into
+ * per-user events, see {@link #eventFor(int)}.
+ * 
+ * Field receiver is the first receiver, for routing and checking in older
+ * code paths only.
+ * 
+ * @see ClusterServer#pipeMulticastEvent(ClusterEvent, int[])
+ * 
+ * @author zhourenjian
+ *
+ */
+public class MulticastEvent extends ClusterEvent {
+
+	private static String[] mappings = new String[] {
+		"sender", "s",
+		"receiver", "r",
+		"receivers", "u",
+		"payload", "p",
+	};
+	@J2SIgnore
+	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
+	@J2SIgnore
+	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
+
+	public int[] receivers;
+
+	public ClusterEvent payload;
+
+	@J2SIgnore
+	@Override
+	protected Map<String, String> fieldNameMapping() {
+		return nameMappings;
+	}
+
+	@J2SIgnore
+	@Override
+	protected Map<String, String> fieldAliasMapping() {
+		return aliasMappings;
+	}
+
+	@J2SIgnore
+	@Override
+	protected String[] fieldMapping() {
+		return mappings;
+	}
+
+	/**
+	 * Receivers and payload are always needed on relaying, payload itself
+	 * is kept transparent by its own class.
+	 */
+	@J2SIgnore
+	@Override
+	protected boolean isEventSubclassTransparent() {
+		return false;
+	}
+
+	/**
+	 * Payload event for given receiver.
+	 * 
+	 * @param receiver
+	 * @return a shallow copy of payload, with receiver set
+	 */
+	@J2SIgnore
+	public ClusterEvent eventFor(int receiver) {
+		return payload.copyFor(receiver);
+	}
+
+	@J2SIgnore
+	@Override
+	public int getEstimatedSize() {
+		int size = payload == null ? 0 : payload.getEstimatedSize();
+		if (size < 0) {
+			return -1;
+		}
+		return size + (receivers == null ? 0 : receivers.length * 10);
+	}
+
+}
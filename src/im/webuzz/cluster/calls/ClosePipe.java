@@ -70,13 +70,7 @@ public class ClosePipe extends SimpleRPCRunnable {
 				p.pipeClosed();
 				Login2ServicePipe pipe = (Login2ServicePipe) p;
 				AbstractClusterPipe.removeClusterPipeFromMonitor4Server(pipe);
-				for (Iterator<Login2ServicePipe> itr = Login2ServicePipe.allLoginPipes.values().iterator(); itr.hasNext();) {
-					Login2ServicePipe loginPipe = itr.next();
-					if (p == loginPipe) {
-						itr.remove();
-						break;
-					}
-				}
+				Login2ServicePipe.removePipe(pipe);
 			} else if (p instanceof Service2LoginPipe) {
 				p.pipeClosed();
 				Service2LoginPipe pipe = (Service2LoginPipe) p;
@@ -90,14 +84,7 @@ public class ClosePipe extends SimpleRPCRunnable {
 				p.pipeClosed();
 				Service2ServicePipe pipe = (Service2ServicePipe) p;
 				AbstractClusterPipe.removeClusterPipeFromMonitor4Server(pipe);
-				for (Iterator<Service2ServicePipe> itr = Service2ServicePipe.allServicePipes.values().iterator();
-						itr.hasNext();) {
-					Service2ServicePipe servicePipe = (Service2ServicePipe) itr.next();
-					if (p == servicePipe) {
-						itr.remove();
-						break;
-					}
-				}
+				Service2ServicePipe.removePipe(pipe);
 			} else if (p instanceof Login2LoginPipe) {
 				p.pipeClosed();
 				Login2LoginPipe pipe = (Login2LoginPipe) p;
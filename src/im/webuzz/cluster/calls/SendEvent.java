@@ -67,7 +67,7 @@ public class SendEvent extends AbstractClusterRPC {
 				 * On receiving event from other cluster server, notify target user on
 				 * this cluster node that there is an event.
 				 */
-				serviceNode.onReceivedEvent(event);
+				XYZMixxer.deliverEvent(serviceNode, event);
 			}
 			if (event.sender > 0) {
 				XYZMixxer.fixQueryResult(event.sender, getRemoteDomain(), getRemotePort());
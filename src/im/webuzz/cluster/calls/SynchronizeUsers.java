@@ -1,17 +1,18 @@
 package im.webuzz.cluster.calls;
 
 import im.webuzz.cluster.ClusterConfig;
-import im.webuzz.cluster.ClusterNode;
 import im.webuzz.cluster.ClusterServer;
 import im.webuzz.cluster.events.IStatus;
 import im.webuzz.cluster.events.ServerStatus;
-import im.webuzz.cluster.events.UserResult;
+import im.webuzz.cluster.xyz.ServerId;
+import im.webuzz.cluster.xyz.UserBitmap;
+import im.webuzz.cluster.xyz.UserDirectory;
 import im.webuzz.cluster.xyz.XYZMixxer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +26,8 @@ import net.sf.j2s.ajax.annotation.SimpleOut;
  */
 public class SynchronizeUsers extends AbstractClusterRPC {
 
+	public static final int ENCODING_COMPACT = 1;
+
 	private static String[] mappings = new String[] {
 			"apiSecret", "a",
 			"serverPort", "p",
@@ -36,6 +39,17 @@ public class SynchronizeUsers extends AbstractClusterRPC {
 			"allServers", "l",
 			"time", "t",
 			"masterMode", "m",
+			"slotBits", "b",
+			"epoch", "e",
+			"sinceVersion", "f",
+			"version", "w",
+			"deltaMode", "d",
+			"changedUsers", "c",
+			"encoding", "n",
+			"cursor", "k",
+			"nextCursor", "x",
+			"onlineUsers", "u",
+			"serverRuns", "g",
 	};
 	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
 	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
@@ -72,6 +86,80 @@ public class SynchronizeUsers extends AbstractClusterRPC {
 	 */
 	@SimpleIn
 	public boolean masterMode;
+
+	/**
+	 * Slot bits of requesting server, see ClusterConfig#clusterSlots.
+	 * 0 means legacy servers with 128 slots.
+	 * Online bits are encoded with these slot bits.
+	 */
+	@SimpleIn
+	public int slotBits;
+
+	/**
+	 * Epoch of responding server, which is changed on each restart. Slot
+	 * versions are only comparable in the same epoch. Requesting server
+	 * sends the epoch of its last synchronized version.
+	 */
+	public long epoch;
+
+	/**
+	 * Last synchronized version of this slot. If it is greater than 0, and
+	 * changes since this version are still available, only changed users
+	 * are responded.
+	 */
+	@SimpleIn
+	public long sinceVersion;
+
+	/**
+	 * Version of this slot on responding, 0 means versions are not
+	 * comparable, e.g. servers have different slots.
+	 */
+	@SimpleOut
+	public long version;
+
+	/**
+	 * Whether only changed users are responded or not. In delta mode, there
+	 * are no online bits, and serverIndexes are for changedUsers one by one,
+	 * -1 means user is not online.
+	 */
+	@SimpleOut
+	public boolean deltaMode;
+
+	@SimpleOut
+	public int[] changedUsers;
+
+	/**
+	 * Encoding supported by requesting server. 0 means legacy gzip encoded
+	 * online bits and plain server indexes.
+	 */
+	@SimpleIn
+	public int encoding;
+
+	/**
+	 * Only users at or after this location are responded. Used for
+	 * requesting following chunks in compact encoding.
+	 */
+	@SimpleIn
+	public int cursor;
+
+	/**
+	 * Location of first user in next chunk, 0 means no more chunks.
+	 */
+	@SimpleOut
+	public int nextCursor;
+
+	/**
+	 * Online users' locations in compact encoding, see UserBitmap.
+	 */
+	@SimpleOut
+	public byte[] onlineUsers;
+
+	/**
+	 * Server indexes of online users in run length encoding, see
+	 * UserBitmap#encodeRuns.
+	 */
+	@SimpleOut
+	public byte[] serverRuns;
 	
 	@Override
 	protected Map<String, String> fieldNameMapping() {
@@ -93,6 +181,83 @@ public class SynchronizeUsers extends AbstractClusterRPC {
 		return true;
 	}
 	
+	/*
+	 * Return server that user is considered on, or ServerId.NONE if user
+	 * should not be synchronized.
+	 */
+	private int resolveServer(int server, boolean[] serviceServerIDs, int nodeServer, int localServer) {
+		if (server == ServerId.NONE) {
+			return ServerId.NONE;
+		}
+		if (masterMode && (server >= serviceServerIDs.length || !serviceServerIDs[server])) {
+			// For primary proxy and gateway mode, check if it is on gateway or not
+			if (server != nodeServer) {
+				return ServerId.NONE;
+			} // else on gateway server
+		}
+		if (/*masterMode && */XYZMixxer.isPrimaryProxyMode()) {
+			// If master primary server try to synchronize users from proxy server,
+			// change user to proxy server.
+			server = localServer;
+		}
+		return server;
+	}
+
+	/*
+	 * Respond users changed since requested version.
+	 */
+	private boolean respondChanges(boolean[] serviceServerIDs, int nodeServer, int localServer,
+			Map<String, ServerStatus> serviceServers) {
+		int[] uids = null;
+		int[] servers = null;
+		synchronized (XYZMixxer.statusMutex[slot]) {
+			UserDirectory dir = XYZMixxer.allStatuses[slot];
+			uids = dir.changesSince(sinceVersion);
+			if (uids == null) {
+				return false;
+			}
+			servers = new int[uids.length];
+			for (int i = 0; i < uids.length; i++) {
+				int pos = dir.indexOf(uids[i]);
+				servers[i] = ServerId.NONE;
+				if (pos >= 0 && dir.statusAt(pos) == IStatus.CONNECTED) {
+					servers[i] = resolveServer(dir.serverAt(pos), serviceServerIDs, nodeServer, localServer);
+				}
+			}
+			version = dir.version();
+			time = System.currentTimeMillis();
+		}
+		List<ServerStatus> serverList = new ArrayList<ServerStatus>();
+		int[] serverIndexByID = new int[ServerId.count()];
+		for (int i = 0; i < serverIndexByID.length; i++) {
+			serverIndexByID[i] = -1;
+		}
+		serverIndexes = new int[uids.length];
+		for (int i = 0; i < uids.length; i++) {
+			int server = servers[i];
+			serverIndexes[i] = -1;
+			if (server == ServerId.NONE || server >= serverIndexByID.length) {
+				continue;
+			}
+			int serverIdx = serverIndexByID[server];
+			if (serverIdx < 0) {
+				ServerStatus ss = serviceServers.get(ServerId.getHost(server));
+				if (ss == null) {
+					continue; // server is down
+				}
+				serverIdx = serverList.size();
+				serverIndexByID[server] = serverIdx;
+				serverList.add(ss);
+			}
+			serverIndexes[i] = serverIdx;
+		}
+		allServers = serverList.toArray(new ServerStatus[serverList.size()]);
+		changedUsers = uids;
+		deltaMode = true;
+		returnCode = AbstractClusterRPC.OK;
+		return true;
+	}
+
 	@Override
 	public void ajaxRun() {
 		super.ajaxRun();
@@ -100,61 +265,121 @@ public class SynchronizeUsers extends AbstractClusterRPC {
 			return;
 		}
 		
-		int maxUserID = slot;
-		byte[] bits = new byte[(ClusterConfig.clusterMaxUsers >> (XYZMixxer.SLOTS_BITS + 3)) + 1];
+		int requestBits = slotBits > 0 ? slotBits : XYZMixxer.LEGACY_SLOTS_BITS;
+		int requestMask = (1 << requestBits) - 1;
+		if (slot < 0 || slot > requestMask) {
+			returnCode = AbstractClusterRPC.ERROR;
+			return;
+		}
 
-		String host = ClusterConfig.port == 80 ? ClusterConfig.clusterServerIP
-				: (ClusterConfig.clusterServerIP + ":" + ClusterConfig.port);
+		int localServer = ServerId.local();
+		String host = ServerId.getHost(localServer);
 		Map<String, ServerStatus> serviceServers = XYZMixxer.getAllServiceServers(host, masterMode ? false : true);
+		// Server ID -> index of serverList, or -1 for not being indexed yet
+		int[] serverIndexByID = new int[ServerId.count()];
+		for (int i = 0; i < serverIndexByID.length; i++) {
+			serverIndexByID[i] = -1;
+		}
+		boolean[] serviceServerIDs = new boolean[serverIndexByID.length];
+		for (Iterator<String> itr = serviceServers.keySet().iterator(); itr.hasNext();) {
+			int id = ServerId.fromHost(itr.next());
+			if (id >= 0 && id < serviceServerIDs.length) {
+				serviceServerIDs[id] = true;
+			} // else server is unknown by directory records
+		}
+		int nodeServer = ServerId.NONE;
+		if (masterMode && XYZMixxer.isPrimaryProxyMode()) {
+			nodeServer = XYZMixxer.getNodeServerID(ClusterServer.getClusterNode());
+		}
 
-		Map<Integer, Integer> userServerIndexes = new HashMap<Integer, Integer>(XYZMixxer.allStatuses[slot].size() / 4);
-		Map<String, Integer> serverMap = new HashMap<String, Integer>();
-		List<String> serverList = new ArrayList<String>(XYZMixxer.allServerStatuses.size());
-		synchronized (XYZMixxer.statusMutex[slot]) {
-			for (Iterator<UserResult> itr = XYZMixxer.allStatuses[slot].values().iterator(); itr.hasNext();) {
-				UserResult usr = (UserResult) itr.next();
-				if (usr.status == IStatus.CONNECTED) {
-					// Only return online users
-					String remoteHost = usr.port == 80 ? usr.domain : (usr.domain + ":" + usr.port);
-					if (masterMode && !serviceServers.containsKey(remoteHost)) {
-						boolean skipping = true;
-						if (XYZMixxer.isPrimaryProxyMode()) {
-							ClusterNode node = ClusterServer.getClusterNode();
-							// For primary proxy and gateway mode, check if it is on gateway or not
-							if (node != null && remoteHost.equals(node.getNodeID())) {
-								// on gateway server
-								skipping = false;
-							}
+		boolean versioning = requestBits == XYZMixxer.SLOTS_BITS;
+		long localEpoch = XYZMixxer.getEpoch();
+		if (versioning && sinceVersion > 0 && epoch == localEpoch) {
+			if (respondChanges(serviceServerIDs, nodeServer, localServer, serviceServers)) {
+				epoch = localEpoch;
+				return;
+			} // else changes are trimmed, respond all users
+		}
+		epoch = localEpoch;
+
+		// Requested slot may be split into or be part of local slots, if
+		// requesting server has different slots.
+		int localSlot = slot & XYZMixxer.SLOTS_MASKS;
+		int localStep = 1 << Math.min(requestBits, XYZMixxer.SLOTS_BITS);
+		boolean filtering = requestBits > XYZMixxer.SLOTS_BITS;
+		// Snapshot online users as (location << 32 | server ID), holding slot
+		// lock only for scanning, sorting and encoding are done after.
+		long[] users = new long[Math.max(16, XYZMixxer.allStatuses[localSlot].size() / 4)];
+		int count = 0;
+		for (; localSlot < XYZMixxer.SLOTS; localSlot += localStep) {
+			synchronized (XYZMixxer.statusMutex[localSlot]) {
+				UserDirectory dir = XYZMixxer.allStatuses[localSlot];
+				int capacity = dir.capacity();
+				for (int k = 0; k < capacity; k++) {
+					int uid = dir.keyAt(k);
+					if (uid == 0) {
+						continue; // empty bucket
+					}
+					if (filtering && (uid & requestMask) != slot) {
+						continue; // in another requested slot
+					}
+					if (dir.statusAt(k) == IStatus.CONNECTED) {
+						// Only return online users
+						int location = (uid - slot) >> requestBits;
+						if (location < cursor) {
+							continue; // in previous chunks
 						}
-						if (skipping) {
+						int server = resolveServer(dir.serverAt(k), serviceServerIDs, nodeServer, localServer);
+						if (server == ServerId.NONE) {
 							continue;
 						}
-					}
-					if (/*masterMode && */XYZMixxer.isPrimaryProxyMode()) {
-						// If master primary server try to synchronize users from proxy server,
-						// change user to proxy server.
-						remoteHost = host;
-					}
-					int uid = usr.uid;
-					if (uid > maxUserID) {
-						maxUserID = uid;
-					}
-					int location = (uid - slot) >> XYZMixxer.SLOTS_BITS;
-					int index = location >> 3;
-					int bit = location & 0x7;
-					bits[index] |= 1 << bit;
-					
-					Integer serverIdx = serverMap.get(remoteHost);
-					if (serverIdx == null) {
-						serverIdx = Integer.valueOf(serverMap.size());
-						serverMap.put(remoteHost, serverIdx);
-						serverList.add(remoteHost);
-					}
-					userServerIndexes.put(uid, serverIdx);
-				} // end of if CONNECTED
-			} // end of for
-			time = System.currentTimeMillis();
-		} // end of synchronized block
+						if (count == users.length) {
+							long[] newUsers = new long[count + (count >> 1)];
+							System.arraycopy(users, 0, newUsers, 0, count);
+							users = newUsers;
+						}
+						users[count++] = ((long) location << 32) | server;
+					} // end of if CONNECTED
+				} // end of for
+				time = System.currentTimeMillis();
+				if (versioning) {
+					version = dir.version();
+				}
+			} // end of synchronized block
+		} // end of for local slots
+		Arrays.sort(users, 0, count);
+
+		boolean compact = encoding == ENCODING_COMPACT;
+		int limit = count;
+		if (compact && ClusterConfig.clusterSynchronizingChunkSize > 0
+				&& count > ClusterConfig.clusterSynchronizingChunkSize) {
+			limit = ClusterConfig.clusterSynchronizingChunkSize;
+			nextCursor = (int) (users[limit] >>> 32);
+		}
+
+		List<String> serverList = new ArrayList<String>();
+		int[] locations = new int[limit];
+		int[] indexes = new int[limit];
+		for (int i = 0; i < limit; i++) {
+			locations[i] = (int) (users[i] >>> 32);
+			int server = (int) users[i];
+			if (server >= serverIndexByID.length) {
+				// Server is added after synchronizing started
+				int[] newIndexes = new int[ServerId.count()];
+				System.arraycopy(serverIndexByID, 0, newIndexes, 0, serverIndexByID.length);
+				for (int j = serverIndexByID.length; j < newIndexes.length; j++) {
+					newIndexes[j] = -1;
+				}
+				serverIndexByID = newIndexes;
+			}
+			int serverIdx = serverIndexByID[server];
+			if (serverIdx < 0) {
+				serverIdx = serverList.size();
+				serverIndexByID[server] = serverIdx;
+				serverList.add(ServerId.getHost(server));
+			}
+			indexes[i] = serverIdx;
+		}
 		allServers = new ServerStatus[serverList.size()];
 		for (int i = 0; i < allServers.length; i++) {
 			String remoteHost = serverList.get(i);
@@ -169,36 +394,23 @@ public class SynchronizeUsers extends AbstractClusterRPC {
 				}
 			}
 		}
-		// TODO: Use bits to compress server indexes
-		// FIXME: SimpleSerializable's array has a limit of 1 million items
-		int totalUsers = userServerIndexes.size();
-		serverIndexes = new int[totalUsers];
-		byte[] masks = new byte[8];
-		for (int j = 0; j < 8; j++) {
-			masks[j] = (byte) (1 << j);
-		}
-		int index = 0; // also current online user count
-		for (int i = 0; i < bits.length; i++) {
-			for (int j = 0; j < 8; j++) {
-				if ((bits[i] & masks[j]) == masks[j]) {
-					// user is online
-					int uid = (((i << 3) + j) << XYZMixxer.SLOTS_BITS) + slot;
-					Integer serverIndex = userServerIndexes.get(Integer.valueOf(uid));
-					if (serverIndex != null) {
-						serverIndexes[index] = serverIndex.intValue();
-					}
-					index++;
-					if (index >= totalUsers) {
-						break;
-					}
-				}
-			}
-			if (index >= totalUsers) {
-				break;
-			}
+
+		if (compact) {
+			onlineUsers = UserBitmap.encode(locations, 0, limit);
+			serverRuns = UserBitmap.encodeRuns(indexes, 0, limit);
+			returnCode = AbstractClusterRPC.OK;
+			return;
 		}
 
-		int size = ((maxUserID - slot) >> (XYZMixxer.SLOTS_BITS + 3)) + 1;
+		// Legacy online bits for requesting servers without compact encoding
+		// FIXME: SimpleSerializable's array has a limit of 1 million items
+		serverIndexes = indexes;
+		int size = ((limit > 0 ? locations[limit - 1] : 0) >> 3) + 1;
+		byte[] bits = new byte[size];
+		for (int i = 0; i < limit; i++) {
+			int location = locations[i];
+			bits[location >> 3] |= 1 << (location & 0x7);
+		}
 		//*
 		// Make online bits more compact
 		ByteArrayOutputStream out = new ByteArrayOutputStream(size / 4 + 16); // expect at least 25% compress rate
@@ -0,0 +1,47 @@
+package im.webuzz.cluster.events;
+
+import java.util.Map;
+
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Acknowledgements of ReliableEvent sequences, piped back to sending
+ * server in batches.
+ * 
+ * This event is only visible in Service2ServicePipe.
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class EventAcks extends SimpleSerializable {
+
+	private static String[] mappings = new String[] {
+			"epoch", "e",
+			"sequences", "q",
+	};
+	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
+	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
+	
+	/**
+	 * Epoch of sending server, see ReliableEvent#epoch.
+	 */
+	public long epoch;
+	
+	public long[] sequences;
+
+	@Override
+	protected Map<String, String> fieldNameMapping() {
+		return nameMappings;
+	}
+	
+	@Override
+	protected Map<String, String> fieldAliasMapping() {
+		return aliasMappings;
+	}
+	
+	@Override
+	protected String[] fieldMapping() {
+		return mappings;
+	}
+	
+}
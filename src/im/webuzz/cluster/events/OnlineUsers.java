@@ -0,0 +1,55 @@
+package im.webuzz.cluster.events;
+
+import java.util.Map;
+
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * A chunk of online users on service server, piped up on connecting to
+ * login server, instead of Service2LoginPipe#onlineUsers.
+ * 
+ * Users are sorted by slot, so login server can split them into slots
+ * without sorting.
+ * 
+ * This event is only visible in Service2LoginPipe.
+ * 
+ * @see im.webuzz.cluster.ClusterStreamingNode
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class OnlineUsers extends SimpleSerializable {
+
+	private static String[] mappings = new String[] {
+			"uids", "u",
+			"time", "t",
+			"last", "l",
+	};
+	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
+	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
+	
+	public int[] uids;
+	
+	public long time;
+
+	/**
+	 * Whether this is the last chunk of online users.
+	 */
+	public boolean last;
+
+	@Override
+	protected Map<String, String> fieldNameMapping() {
+		return nameMappings;
+	}
+	
+	@Override
+	protected Map<String, String> fieldAliasMapping() {
+		return aliasMappings;
+	}
+	
+	@Override
+	protected String[] fieldMapping() {
+		return mappings;
+	}
+	
+}
@@ -0,0 +1,85 @@
+package im.webuzz.cluster.events;
+
+import im.webuzz.cluster.ClusterEvent;
+
+import java.util.Map;
+
+import net.sf.j2s.annotation.J2SIgnore;
+
+/**
+ * Cluster event piped between service servers with a sequence, which is
+ * acknowledged by receiving server in EventAcks, and is piped again if
+ * there are no acknowledgements in time.
+ * 
+ * Receiving server drops duplicated sequences, so payload event is passed
+ * to cluster node at least once and mostly exactly once.
+ * 
+ * This event is only visible in Service2ServicePipe.
+ * 
+ * @see im.webuzz.cluster.ClusterConfig#clusterReliableEvents
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class ReliableEvent extends ClusterEvent {
+
+	private static String[] mappings = new String[] {
+		"sender", "s",
+		"receiver", "r",
+		"epoch", "e",
+		"sequence", "q",
+		"payload", "p",
+	};
+	@J2SIgnore
+	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
+	@J2SIgnore
+	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
+
+	/**
+	 * Starting time of sending server, sequences restart on restarting.
+	 */
+	public long epoch;
+
+	/**
+	 * Sequence from sending server to receiving server, starting from 1.
+	 */
+	public long sequence;
+
+	public ClusterEvent payload;
+
+	@J2SIgnore
+	@Override
+	protected Map<String, String> fieldNameMapping() {
+		return nameMappings;
+	}
+
+	@J2SIgnore
+	@Override
+	protected Map<String, String> fieldAliasMapping() {
+		return aliasMappings;
+	}
+
+	@J2SIgnore
+	@Override
+	protected String[] fieldMapping() {
+		return mappings;
+	}
+
+	/**
+	 * Sequence fields are always needed on relaying, payload itself is
+	 * kept transparent by its own class.
+	 */
+	@J2SIgnore
+	@Override
+	protected boolean isEventSubclassTransparent() {
+		return false;
+	}
+
+	@J2SIgnore
+	@Override
+	public int getEstimatedSize() {
+		int size = payload == null ? 0 : payload.getEstimatedSize();
+		return size < 0 ? -1 : size + 40;
+	}
+
+}
@@ -22,6 +22,8 @@ public class ServerLost extends SimpleSerializable {
 			"slot", "s",
 			"offlineBits", "o",
 			"time", "t",
+			"slotBits", "b",
+			"offlineUsers", "u",
 	};
 	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
 	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
@@ -55,6 +57,18 @@ public class ServerLost extends SimpleSerializable {
 	public byte[] offlineBits;
 
 	public long time;
+
+	/**
+	 * Slot bits of the server encoding offline bits. 0 means legacy servers
+	 * with 128 slots.
+	 */
+	public int slotBits;
+
+	/**
+	 * Offline users' locations in compact encoding, see UserBitmap. If it is
+	 * not null, offlineBits is not used.
+	 */
+	public byte[] offlineUsers;
 	
 	@Override
 	protected Map<String, String> fieldNameMapping() {
@@ -0,0 +1,43 @@
+package im.webuzz.cluster.events;
+
+import java.util.Map;
+
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Batched user server query event, carrying many users in one pipe frame.
+ * 
+ * This event is only visible in Service2LoginPipe.
+ * 
+ * @see UserQuery
+ * @see UserResults
+ * 
+ * @author zhourenjian
+ *
+ */
+public class UserQueries extends SimpleSerializable {
+
+	private static String[] mappings = new String[] {
+			"uids", "u",
+	};
+	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
+	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
+	
+	public int[] uids;
+
+	@Override
+	protected Map<String, String> fieldNameMapping() {
+		return nameMappings;
+	}
+	
+	@Override
+	protected Map<String, String> fieldAliasMapping() {
+		return aliasMappings;
+	}
+	
+	@Override
+	protected String[] fieldMapping() {
+		return mappings;
+	}
+	
+}
@@ -0,0 +1,123 @@
+package im.webuzz.cluster.events;
+
+import java.util.Map;
+
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Batched user server result event, responding to {@link UserQueries}.
+ * 
+ * Results are kept in parallel arrays, one item for each user. Servers are
+ * listed only once in domains and ports, and are referenced by index from
+ * servers array, -1 means user is not on any server.
+ * 
+ * This event is only visible in Login2ServicePipe
+ * 
+ * @see UserResult
+ * @see UserQueries
+ * 
+ * @author zhourenjian
+ *
+ */
+public class UserResults extends SimpleSerializable {
+
+	private static String[] mappings = new String[] {
+			"uids", "u",
+			"servers", "v",
+			"statuses", "s",
+			"lastUpdated", "l",
+			"domains", "d",
+			"ports", "p",
+	};
+	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
+	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
+	
+	public int[] uids;
+	
+	public int[] servers;
+	
+	public int[] statuses;
+	
+	public long[] lastUpdated;
+	
+	public String[] domains;
+	
+	public int[] ports;
+	
+	public int size() {
+		return uids == null ? 0 : uids.length;
+	}
+	
+	/**
+	 * Expand result at given index.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public UserResult getResult(int index) {
+		UserResult r = new UserResult();
+		r.uid = uids[index];
+		r.status = statuses != null ? statuses[index] : IStatus.DISCONNECTED;
+		r.lastUpdated = lastUpdated != null ? lastUpdated[index] : 0;
+		int server = servers != null ? servers[index] : -1;
+		if (server >= 0 && domains != null && ports != null
+				&& server < domains.length && server < ports.length) {
+			r.domain = domains[server];
+			r.port = ports[server];
+		} else {
+			r.domain = null;
+			r.port = -1;
+		}
+		return r;
+	}
+
+	/**
+	 * Copy selected results into a new event, sharing servers.
+	 * 
+	 * @param selected
+	 * @return
+	 */
+	public UserResults select(boolean[] selected) {
+		int length = size();
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			if (selected[i]) {
+				count++;
+			}
+		}
+		UserResults rs = new UserResults();
+		rs.uids = new int[count];
+		rs.servers = new int[count];
+		rs.statuses = new int[count];
+		rs.lastUpdated = new long[count];
+		rs.domains = domains;
+		rs.ports = ports;
+		int index = 0;
+		for (int i = 0; i < length; i++) {
+			if (selected[i]) {
+				rs.uids[index] = uids[i];
+				rs.servers[index] = servers[i];
+				rs.statuses[index] = statuses[i];
+				rs.lastUpdated[index] = lastUpdated[i];
+				index++;
+			}
+		}
+		return rs;
+	}
+
+	@Override
+	protected Map<String, String> fieldNameMapping() {
+		return nameMappings;
+	}
+	
+	@Override
+	protected Map<String, String> fieldAliasMapping() {
+		return aliasMappings;
+	}
+	
+	@Override
+	protected String[] fieldMapping() {
+		return mappings;
+	}
+	
+}
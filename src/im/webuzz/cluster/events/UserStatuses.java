@@ -0,0 +1,50 @@
+package im.webuzz.cluster.events;
+
+import java.util.Map;
+
+import net.sf.j2s.ajax.SimpleSerializable;
+
+/**
+ * Batched user server status event, telling login server that users are
+ * connected or disconnected from this service server. Each user appears
+ * only once, with its latest status in the batching window.
+ * 
+ * This event is only visible in Service2LoginPipe.
+ * 
+ * @see UserStatus
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class UserStatuses extends SimpleSerializable {
+
+	private static String[] mappings = new String[] {
+			"uids", "u",
+			"statuses", "s",
+			"times", "t"
+	};
+	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
+	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
+	
+	public int[] uids;
+	
+	public int[] statuses; // CONNECTED, DISCONNECTED
+	
+	public long[] times;
+
+	@Override
+	protected Map<String, String> fieldNameMapping() {
+		return nameMappings;
+	}
+	
+	@Override
+	protected Map<String, String> fieldAliasMapping() {
+		return aliasMappings;
+	}
+	
+	@Override
+	protected String[] fieldMapping() {
+		return mappings;
+	}
+	
+}
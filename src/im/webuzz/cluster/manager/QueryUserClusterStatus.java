@@ -4,9 +4,9 @@ import net.sf.j2s.ajax.SimpleRPCRunnable;
 import im.webuzz.cluster.ClusterConfig;
 import im.webuzz.cluster.ClusterServer;
 import im.webuzz.cluster.events.IStatus;
-import im.webuzz.cluster.events.UserQuery;
 import im.webuzz.cluster.events.UserResult;
-import im.webuzz.cluster.pipes.Service2LoginPipe;
+import im.webuzz.cluster.xyz.ServerId;
+import im.webuzz.cluster.xyz.UserDirectory;
 import im.webuzz.cluster.xyz.XYZMixxer;
 
 public class QueryUserClusterStatus extends SimpleRPCRunnable {
@@ -42,46 +42,40 @@ public class QueryUserClusterStatus extends SimpleRPCRunnable {
 			// Primary login server knows which user on which server directly.
 			// Select correct pipe and pipe out data event.
 			returnCode = 1;
-			synchronized (XYZMixxer.statusMutex[slot]) {
-				UserResult r = XYZMixxer.allStatuses[slot].get(uid);
-				if (r == null || r.status != IStatus.CONNECTED) {
-					returnCode = 0;
-				}
-				if (r != null) {
-					status = r.status;
-					domain = r.domain;
-					port = r.port;
-				}
+			long record = XYZMixxer.allStatuses[slot].peek(uid);
+			if (record == UserDirectory.NOT_FOUND || UserDirectory.statusOf(record) != IStatus.CONNECTED) {
+				returnCode = 0;
+			}
+			if (record != UserDirectory.NOT_FOUND) {
+				int server = UserDirectory.serverOf(record);
+				status = UserDirectory.statusOf(record);
+				domain = ServerId.getDomain(server);
+				port = ServerId.getPort(server);
 			}
 			return;
 		} else {
 			// For normal service, try to check cached users. If there are
 			// not-expired-yet cached user, try to pipe data through service-
 			// service pipe for this cached user.
-			synchronized (XYZMixxer.userMutex[slot]) {
-				UserResult r = XYZMixxer.cachedUsers[slot].get(uid);
-				if (r != null && (r.lastUpdated == -1
-						|| Math.abs(System.currentTimeMillis() - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
-					if (r.status != IStatus.CONNECTED) {
-						returnCode = 0;
-					}
-					returnCode = 1;
-					
-					status = r.status;
-					domain = r.domain;
-					port = r.port;
-					return;
+			UserResult r = XYZMixxer.cachedUsers[slot].peek(uid);
+			if (r != null && (r.lastUpdated == -1
+					|| Math.abs(System.currentTimeMillis() - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
+				if (r.status != IStatus.CONNECTED) {
+					returnCode = 0;
 				}
+				returnCode = 1;
+				
+				status = r.status;
+				domain = r.domain;
+				port = r.port;
+				return;
 			}
-			UserQuery q = new UserQuery();
-			q.uid = uid;
-			Service2LoginPipe servicePipe = null;
-			synchronized (Service2LoginPipe.pipeMutex) { // across multiple threads
-				servicePipe = Service2LoginPipe.servicePipe;
-			}
-			if (servicePipe != null) {
-				servicePipe.pipeThrough(q);
+			if (XYZMixxer.isKnownOffline(uid)) {
+				returnCode = 1;
+				status = IStatus.DISCONNECTED;
+				return;
 			}
+			XYZMixxer.queryUser(uid);
 			returnCode = -1;
 		}
 	}
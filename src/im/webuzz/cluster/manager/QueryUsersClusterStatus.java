@@ -0,0 +1,173 @@
+package im.webuzz.cluster.manager;
+
+import net.sf.j2s.ajax.SimpleRPCRunnable;
+import im.webuzz.cluster.ClusterConfig;
+import im.webuzz.cluster.ClusterServer;
+import im.webuzz.cluster.events.IStatus;
+import im.webuzz.cluster.events.UserResult;
+import im.webuzz.cluster.xyz.ServerId;
+import im.webuzz.cluster.xyz.UserDirectory;
+import im.webuzz.cluster.xyz.XYZMixxer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Query cluster statuses of many users in one request, see
+ * {@link QueryUserClusterStatus}.
+ * 
+ * Results are returned in parallel arrays, in the same order of given users.
+ * 
+ * @author zhourenjian
+ *
+ */
+public class QueryUsersClusterStatus extends SimpleRPCRunnable {
+
+	public int[] uids;
+	
+	public String apiSecret;
+	
+	/**
+	 * 1: OK, -2: not authorized.
+	 */
+	public int returnCode;
+	
+	/**
+	 * Query result of each user, same as QueryUserClusterStatus#returnCode.
+	 * 1: online or cached, 0: off-line, -1: not known yet, query is sent.
+	 */
+	public int[] results;
+	
+	public int[] statuses;
+	
+	/**
+	 * Index of each user's server in domains and ports, -1 for no server.
+	 */
+	public int[] serverIndexes;
+	
+	public String[] domains;
+	
+	public int[] ports;
+	
+	@Override
+	public void ajaxRun() {
+		returnCode = 0;
+		if (!ClusterServer.isClusterServer()) {
+			returnCode = -2;
+			return; // silently
+		}
+		if (!XYZMixxer.isAPISecretOK(apiSecret)) {
+			if (ClusterConfig.clusterLogging) {
+				System.out.println("Cluster: API secret " + apiSecret + " authorization failed!");
+			}
+			returnCode = -2;
+			return; // silently
+		}
+		if (uids == null) {
+			uids = new int[0];
+		}
+		int length = uids.length;
+		results = new int[length];
+		statuses = new int[length];
+		serverIndexes = new int[length];
+		// Server ID -> index of domains and ports, or -1 for not being indexed yet
+		int[] indexByID = new int[ServerId.count()];
+		for (int i = 0; i < indexByID.length; i++) {
+			indexByID[i] = -1;
+		}
+		List<Integer> allServers = new ArrayList<Integer>();
+		if (ClusterConfig.clusterPrimaryServer) {
+			long[] records = XYZMixxer.peekStatuses(uids);
+			for (int i = 0; i < length; i++) {
+				long record = records[i];
+				serverIndexes[i] = -1;
+				if (record == UserDirectory.NOT_FOUND) {
+					statuses[i] = IStatus.DISCONNECTED;
+					continue; // results[i] = 0
+				}
+				statuses[i] = UserDirectory.statusOf(record);
+				results[i] = statuses[i] == IStatus.CONNECTED ? 1 : 0;
+				int server = UserDirectory.serverOf(record);
+				if (server == ServerId.NONE) {
+					continue;
+				}
+				if (server >= indexByID.length) {
+					int[] newIndexes = new int[ServerId.count()];
+					System.arraycopy(indexByID, 0, newIndexes, 0, indexByID.length);
+					for (int j = indexByID.length; j < newIndexes.length; j++) {
+						newIndexes[j] = -1;
+					}
+					indexByID = newIndexes;
+				}
+				int index = indexByID[server];
+				if (index < 0) {
+					index = allServers.size();
+					indexByID[server] = index;
+					allServers.add(Integer.valueOf(server));
+				}
+				serverIndexes[i] = index;
+			}
+		} else {
+			// For normal service, try to check cached users. For those users
+			// which are not cached, pipe up queries to primary login server.
+			UserResult[] cachedResults = XYZMixxer.peekCachedUsers(uids);
+			int[] missedUIDs = new int[length];
+			int missed = 0;
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < length; i++) {
+				UserResult r = cachedResults[i];
+				serverIndexes[i] = -1;
+				if (r == null || (r.lastUpdated != -1
+						&& Math.abs(now - r.lastUpdated) >= ClusterConfig.clusterUserCachingTime)) {
+					statuses[i] = IStatus.DISCONNECTED;
+					if (XYZMixxer.isKnownOffline(uids[i])) {
+						results[i] = 1;
+						continue;
+					}
+					missedUIDs[missed++] = uids[i];
+					results[i] = -1;
+					continue;
+				}
+				results[i] = 1;
+				statuses[i] = r.status;
+				int server = ServerId.intern(r.domain, r.port);
+				if (server == ServerId.NONE) {
+					continue;
+				}
+				if (server >= indexByID.length) {
+					int[] newIndexes = new int[ServerId.count()];
+					System.arraycopy(indexByID, 0, newIndexes, 0, indexByID.length);
+					for (int j = indexByID.length; j < newIndexes.length; j++) {
+						newIndexes[j] = -1;
+					}
+					indexByID = newIndexes;
+				}
+				int index = indexByID[server];
+				if (index < 0) {
+					index = allServers.size();
+					indexByID[server] = index;
+					allServers.add(Integer.valueOf(server));
+				}
+				serverIndexes[i] = index;
+			}
+			if (missed > 0) {
+				if (missed < length) {
+					int[] newUIDs = new int[missed];
+					System.arraycopy(missedUIDs, 0, newUIDs, 0, missed);
+					missedUIDs = newUIDs;
+				}
+				XYZMixxer.queryUsers(missedUIDs);
+			}
+		}
+		int size = allServers.size();
+		domains = new String[size];
+		ports = new int[size];
+		for (int i = 0; i < size; i++) {
+			int server = allServers.get(i).intValue();
+			domains[i] = ServerId.getDomain(server);
+			ports[i] = ServerId.getPort(server);
+		}
+		returnCode = 1;
+	}
+	
+}
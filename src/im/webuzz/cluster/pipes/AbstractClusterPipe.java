@@ -1,16 +1,29 @@
 package im.webuzz.cluster.pipes;
 
 import im.webuzz.cluster.ClusterConfig;
+import im.webuzz.cluster.ClusterDelivery;
+import im.webuzz.cluster.ClusterEvent;
+import im.webuzz.cluster.ClusterNode;
+import im.webuzz.cluster.ClusterOverflowNode;
 import im.webuzz.cluster.ClusterServer;
 import im.webuzz.cluster.calls.ClosePipe;
+import im.webuzz.cluster.events.EventAcks;
 import im.webuzz.cluster.events.HeartBeat;
+import im.webuzz.cluster.events.ReliableEvent;
+import im.webuzz.cluster.events.ServerStatus;
+import im.webuzz.cluster.events.ServerStopping;
+import im.webuzz.cluster.events.UserDuplicated;
 import im.webuzz.cluster.xyz.XYZMixxer;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 
 import net.sf.j2s.ajax.ISimpleRequestInfoBinding;
+import net.sf.j2s.ajax.SimpleFilter;
 import net.sf.j2s.ajax.SimplePipeRequest;
 import net.sf.j2s.ajax.SimplePipeRunnable;
 import net.sf.j2s.ajax.SimpleRPCRequest;
@@ -26,6 +39,10 @@ import net.sf.j2s.ajax.annotation.SimpleIn;
 public abstract class AbstractClusterPipe extends SimplePipeRunnable implements
 		ISimpleRequestInfoBinding, Comparable<AbstractClusterPipe> {
 
+	public static final int OVERFLOW_REJECT = 0;
+	public static final int OVERFLOW_DROP_OLDEST = 1;
+	public static final int OVERFLOW_DROP_NEWEST = 2;
+
 	/**
 	 * @See ClusterConfig.clusterAPISecret and ClusterConfig.clusterGatewaySecret
 	 */
@@ -42,6 +59,17 @@ public abstract class AbstractClusterPipe extends SimplePipeRunnable implements
 	
 	private int retries;
 	
+	private Object dataLaneMutex = new Object();
+	
+	// Data events waiting for earlier data being sent, guarded by dataLaneMutex
+	private ArrayDeque<SimpleSerializable> dataLane = new ArrayDeque<SimpleSerializable>();
+	
+	private long dataLaneBytes;
+	
+	private volatile long droppedEvents;
+	
+	private volatile long rejectedEvents;
+	
 	private static Set<AbstractClusterPipe> allMonitoredPipes4Server = new ConcurrentSkipListSet<AbstractClusterPipe>();
 	
 	private static boolean thread4ServerStarted = false;
@@ -215,6 +243,430 @@ public abstract class AbstractClusterPipe extends SimplePipeRunnable implements
 		reconnectThread.start();
 	}
 
+	private static Object dataLaneMutex4Pump = new Object();
+	
+	private static Set<AbstractClusterPipe> allDataLanedPipes = new ConcurrentSkipListSet<AbstractClusterPipe>();
+	
+	private static boolean dataLanePumpStarted = false;
+	
+	private static void startDataLanePump() {
+		if (dataLanePumpStarted) {
+			return;
+		}
+		synchronized (AbstractClusterPipe.class) {
+			if (dataLanePumpStarted) {
+				return;
+			}
+			dataLanePumpStarted = true;
+		}
+		Thread pumpThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				while (true) {
+					for (Iterator<AbstractClusterPipe> itr = allDataLanedPipes.iterator(); itr.hasNext();) {
+						AbstractClusterPipe p = (AbstractClusterPipe) itr.next();
+						// Remove before pumping, pipe is added back if there are data left
+						itr.remove();
+						try {
+							if (!p.pumpDataLane()) {
+								allDataLanedPipes.add(p);
+							}
+						} catch (Throwable e) {
+							e.printStackTrace();
+							allDataLanedPipes.add(p);
+						}
+					}
+					synchronized (dataLaneMutex4Pump) {
+						try {
+							if (allDataLanedPipes.size() > 0) {
+								dataLaneMutex4Pump.wait(Math.max(1, ClusterConfig.clusterPipeDataLaneInterval));
+							} else {
+								dataLaneMutex4Pump.wait();
+							}
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+			
+		}, "Cluster Pipe Data Lane Pump");
+		pumpThread.setDaemon(true);
+		pumpThread.start();
+	}
+
+	/**
+	 * Return true for control events, which are piped ahead of data events
+	 * held in data lane.
+	 * 
+	 * @param ss
+	 * @return
+	 */
+	protected boolean isControlEvent(SimpleSerializable ss) {
+		return ss instanceof HeartBeat || ss instanceof ServerStatus
+				|| ss instanceof ServerStopping || ss instanceof UserDuplicated
+				|| ss instanceof EventAcks;
+	}
+
+	/*
+	 * Control events are piped through directly. Data events are piped
+	 * through directly only if there are no pipe data or data lane, or
+	 * they are held in data lane and piped by data lane pump later.
+	 * So there is at most one slice of data events before control events.
+	 */
+	@Override
+	public void pipeThrough(SimpleSerializable... objs) {
+		pipeData(objs);
+	}
+
+	/**
+	 * Pipe through given events, like {@link #pipeThrough(SimpleSerializable...)}.
+	 * 
+	 * On {@link #OVERFLOW_REJECT}, data events are all piped or all rejected,
+	 * control events are never rejected or dropped.
+	 * 
+	 * @param objs
+	 * @return 1 if events are piped or held in data lane, or
+	 * {@link ClusterServer#PIPE_REJECTED} if data events are rejected by full
+	 * data lane, see ClusterConfig#clusterPipeOverflowPolicy
+	 */
+	public int pipeData(SimpleSerializable... objs) {
+		if (objs == null || objs.length == 0) {
+			super.pipeThrough(objs);
+			return 1;
+		}
+		int controls = 0;
+		if (ClusterConfig.clusterPipeControlLane) {
+			for (int i = 0; i < objs.length; i++) {
+				if (isControlEvent(objs[i])) {
+					controls++;
+				}
+			}
+		}
+		if (controls == objs.length) {
+			super.pipeThrough(objs);
+			return 1;
+		}
+		SimpleSerializable[] data = objs;
+		if (controls > 0) {
+			SimpleSerializable[] control = new SimpleSerializable[controls];
+			data = new SimpleSerializable[objs.length - controls];
+			int c = 0;
+			int d = 0;
+			for (int i = 0; i < objs.length; i++) {
+				if (isControlEvent(objs[i])) {
+					control[c++] = objs[i];
+				} else {
+					data[d++] = objs[i];
+				}
+			}
+			super.pipeThrough(control);
+		}
+		int sliceSize = Math.max(1, ClusterConfig.clusterPipeDataSliceSize);
+		List<SimpleSerializable> dropped = null;
+		// Events handed to pipe data, their deliveries are completed outside of lock
+		SimpleSerializable[] piped = null;
+		boolean rejecting = false;
+		synchronized (dataLaneMutex) {
+			int from = 0;
+			if (dataLane.isEmpty() && !hasPipeData()) {
+				from = Math.min(sliceSize, data.length);
+			}
+			int policy = ClusterConfig.clusterPipeOverflowPolicy;
+			if (policy == OVERFLOW_REJECT && !fits(data, from)) {
+				List<SimpleSerializable> control = null;
+				int rejected = 0;
+				for (int i = 0; i < data.length; i++) {
+					if (isControlEvent(data[i])) { // control lane is disabled
+						if (control == null) {
+							control = new ArrayList<SimpleSerializable>();
+						}
+						control.add(data[i]);
+					} else {
+						rejected++;
+					}
+				}
+				rejectedEvents += rejected;
+				if (control != null) {
+					super.pipeThrough(control.toArray(new SimpleSerializable[control.size()]));
+				}
+				rejecting = true;
+			} else if (from == data.length) {
+				super.pipeThrough(data);
+				piped = data;
+			} else {
+				if (from > 0) {
+					piped = new SimpleSerializable[from];
+					System.arraycopy(data, 0, piped, 0, from);
+					super.pipeThrough(piped);
+				}
+				dropped = holdDataEvents(data, from, policy);
+			}
+		}
+		if (piped != null) {
+			completeDeliveries(piped, ClusterDelivery.DELIVERED);
+		}
+		if (rejecting) {
+			completeDeliveries(data, ClusterDelivery.REJECTED);
+			return ClusterServer.PIPE_REJECTED;
+		}
+		if (piped == data) {
+			return 1;
+		}
+		if (dropped != null) {
+			eventsDropped(dropped.toArray(new SimpleSerializable[dropped.size()]));
+		}
+		allDataLanedPipes.add(this);
+		startDataLanePump();
+		synchronized (dataLaneMutex4Pump) {
+			dataLaneMutex4Pump.notify();
+		}
+		return 1;
+	}
+
+	/*
+	 * Hold data events from given index in data lane, dropping events on
+	 * exceeding limits. Caller should synchronize on dataLaneMutex.
+	 */
+	private List<SimpleSerializable> holdDataEvents(SimpleSerializable[] data, int from, int policy) {
+		List<SimpleSerializable> dropped = null;
+		int maxEvents = ClusterConfig.clusterPipeMaxPendingEvents;
+		long maxBytes = ClusterConfig.clusterPipeMaxPendingBytes;
+		for (int i = from; i < data.length; i++) {
+			int size = estimateSize(data[i]);
+			if (policy == OVERFLOW_DROP_NEWEST && !isControlEvent(data[i])
+					&& ((maxEvents > 0 && dataLane.size() + 1 > maxEvents)
+							|| (maxBytes > 0 && dataLaneBytes + size > maxBytes))) {
+				if (dropped == null) {
+					dropped = new ArrayList<SimpleSerializable>();
+				}
+				dropped.add(data[i]);
+				continue;
+			}
+			dataLane.add(data[i]);
+			dataLaneBytes += size;
+		}
+		if (policy == OVERFLOW_DROP_OLDEST) {
+			dropped = trimDataLane(true, dropped);
+		}
+		if (dropped != null) {
+			droppedEvents += dropped.size();
+		}
+		return dropped;
+	}
+
+	/*
+	 * Complete deliveries of given cluster events, see ClusterDelivery.
+	 */
+	private static void completeDeliveries(SimpleSerializable[] objs, int result) {
+		for (int i = 0; i < objs.length; i++) {
+			if (objs[i] instanceof ClusterEvent) {
+				ClusterDelivery.complete((ClusterEvent) objs[i], result);
+			}
+		}
+	}
+
+	/**
+	 * Whether given events can be piped without being rejected by full data
+	 * lane or not, measured in the same way as {@link #pipeData(SimpleSerializable...)}.
+	 * 
+	 * @param objs
+	 * @return
+	 */
+	public boolean canHold(SimpleSerializable... objs) {
+		synchronized (dataLaneMutex) {
+			int from = 0;
+			if (dataLane.isEmpty() && !hasPipeData()) {
+				from = Math.min(Math.max(1, ClusterConfig.clusterPipeDataSliceSize), objs.length);
+			}
+			return fits(objs, from);
+		}
+	}
+
+	/*
+	 * Whether data events from given index fit in data lane or not. Control
+	 * events are not counted. Caller should synchronize on dataLaneMutex.
+	 */
+	private boolean fits(SimpleSerializable[] data, int from) {
+		int maxEvents = ClusterConfig.clusterPipeMaxPendingEvents;
+		long maxBytes = ClusterConfig.clusterPipeMaxPendingBytes;
+		if (from >= data.length || (maxEvents <= 0 && maxBytes <= 0)) {
+			return true;
+		}
+		int count = 0;
+		long bytes = 0;
+		for (int i = from; i < data.length; i++) {
+			if (!isControlEvent(data[i])) {
+				count++;
+				bytes += estimateSize(data[i]);
+			}
+		}
+		return !((maxEvents > 0 && dataLane.size() + count > maxEvents)
+				|| (maxBytes > 0 && dataLaneBytes + bytes > maxBytes));
+	}
+
+	/*
+	 * Drop data events from head (oldest) or tail (newest) of data lane until
+	 * it is within limits, keeping control events and at least one event.
+	 * Caller should synchronize on dataLaneMutex.
+	 */
+	private List<SimpleSerializable> trimDataLane(boolean oldest, List<SimpleSerializable> dropped) {
+		int maxEvents = ClusterConfig.clusterPipeMaxPendingEvents;
+		long maxBytes = ClusterConfig.clusterPipeMaxPendingBytes;
+		Iterator<SimpleSerializable> itr = oldest ? dataLane.iterator() : dataLane.descendingIterator();
+		while (dataLane.size() > 1 && ((maxEvents > 0 && dataLane.size() > maxEvents)
+				|| (maxBytes > 0 && dataLaneBytes > maxBytes)) && itr.hasNext()) {
+			SimpleSerializable ss = itr.next();
+			if (isControlEvent(ss)) {
+				continue;
+			}
+			itr.remove();
+			dataLaneBytes -= estimateSize(ss);
+			if (dropped == null) {
+				dropped = new ArrayList<SimpleSerializable>();
+			}
+			dropped.add(ss);
+		}
+		return dropped;
+	}
+
+	/*
+	 * Estimated serialized size of given pipe data.
+	 */
+	private static int estimateSize(SimpleSerializable ss) {
+		if (ss instanceof ClusterEvent) {
+			int size = ((ClusterEvent) ss).getEstimatedSize();
+			if (size >= 0) {
+				return size;
+			}
+		}
+		return ClusterConfig.clusterPipeEventEstimatedSize;
+	}
+
+	/**
+	 * Report events dropped by full data lane to cluster node, if it is a
+	 * ClusterOverflowNode, and complete their deliveries as rejected. Also
+	 * called for events rejected without a caller being told, e.g. batched
+	 * events rejected on flushing, and for events left in data lane of
+	 * destroyed pipe.
+	 * 
+	 * Dropped ReliableEvent wrappers are not reported, as they are resent
+	 * until being acknowledged or given up, see ClusterConfig#clusterReliableEvents.
+	 * 
+	 * @param dropped
+	 */
+	public void eventsDropped(SimpleSerializable[] dropped) {
+		if (ClusterConfig.clusterLogging) {
+			System.out.println("Cluster: Pipe " + getClass().getSuperclass().getName() + " / " + getRemoteIP()
+					+ " dropped " + dropped.length + " events");
+		}
+		completeDeliveries(dropped, ClusterDelivery.REJECTED);
+		ClusterNode node = ClusterServer.getClusterNode();
+		if (!(node instanceof ClusterOverflowNode)) {
+			return;
+		}
+		List<ClusterEvent> events = new ArrayList<ClusterEvent>(dropped.length);
+		for (int i = 0; i < dropped.length; i++) {
+			SimpleSerializable ss = dropped[i];
+			if (ss instanceof ClusterEvent && !(ss instanceof ReliableEvent)) {
+				events.add((ClusterEvent) ss);
+			}
+		}
+		if (events.size() > 0) {
+			try {
+				((ClusterOverflowNode) node).onEventsDropped(events.toArray(new ClusterEvent[events.size()]));
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Pipe through next slice of data lane if earlier pipe data has been
+	 * sent. Return true if data lane is empty.
+	 */
+	private boolean pumpDataLane() {
+		SimpleSerializable[] slice = null;
+		boolean empty = false;
+		synchronized (dataLaneMutex) {
+			if (dataLane.isEmpty()) {
+				return true;
+			}
+			if (pipeKey == null || hasPipeData()) {
+				return false;
+			}
+			int size = Math.min(dataLane.size(), Math.max(1, ClusterConfig.clusterPipeDataSliceSize));
+			slice = new SimpleSerializable[size];
+			for (int i = 0; i < size; i++) {
+				slice[i] = dataLane.poll();
+				dataLaneBytes -= estimateSize(slice[i]);
+			}
+			if (dataLane.isEmpty()) {
+				dataLaneBytes = 0;
+			}
+			super.pipeThrough(slice);
+			empty = dataLane.isEmpty();
+		}
+		completeDeliveries(slice, ClusterDelivery.DELIVERED);
+		return empty;
+	}
+
+	/**
+	 * Return the number of data events held in data lane.
+	 * 
+	 * @return
+	 */
+	public int getDataLaneSize() {
+		synchronized (dataLaneMutex) {
+			return dataLane.size();
+		}
+	}
+
+	/**
+	 * Return how many more data events can be held in data lane before
+	 * reaching its limits. Bytes are counted by estimated sizes of events,
+	 * same as {@link #canHold(SimpleSerializable...)}, and remaining bytes
+	 * are converted into events by average size of held events.
+	 * 
+	 * @return remaining events, Integer.MAX_VALUE for no limits
+	 */
+	public int getRemainingCapacity() {
+		int maxEvents = ClusterConfig.clusterPipeMaxPendingEvents;
+		long maxBytes = ClusterConfig.clusterPipeMaxPendingBytes;
+		int remaining = Integer.MAX_VALUE;
+		synchronized (dataLaneMutex) {
+			if (maxEvents > 0) {
+				remaining = Math.max(0, maxEvents - dataLane.size());
+			}
+			if (maxBytes > 0) {
+				long average = dataLane.isEmpty() ? ClusterConfig.clusterPipeEventEstimatedSize
+						: dataLaneBytes / dataLane.size();
+				long bytes = (maxBytes - dataLaneBytes) / Math.max(1, average);
+				remaining = (int) Math.max(0, Math.min(remaining, bytes));
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Return the number of data events dropped by full data lane.
+	 * 
+	 * @return
+	 */
+	public long getDroppedEvents() {
+		return droppedEvents;
+	}
+
+	/**
+	 * Return the number of data events rejected by full data lane.
+	 * 
+	 * @return
+	 */
+	public long getRejectedEvents() {
+		return rejectedEvents;
+	}
+
 	protected void delayReconnectPipe(AbstractClusterPipe pipe) {
 		if (Math.abs(System.currentTimeMillis() - pipe.lastHeartbeat) > Math.max(ClusterConfig.clusterReconnectMaxTime, ClusterConfig.clusterPipeHeartBeatTimeoutInterval)
 				&& pipe.retries > ClusterConfig.clusterReconnectMinimumRetries && !(pipe instanceof Login2ServicePipe)) {
@@ -326,6 +778,20 @@ public abstract class AbstractClusterPipe extends SimplePipeRunnable implements
 	@Override
 	public boolean pipeDestroy() {
 		allMonitoredPipes4Server.remove(this);
+		allDataLanedPipes.remove(this);
+		SimpleSerializable[] dropped = null;
+		synchronized (dataLaneMutex) {
+			if (!dataLane.isEmpty()) {
+				// Data lane is already moved if pipe is cloned
+				dropped = dataLane.toArray(new SimpleSerializable[dataLane.size()]);
+				droppedEvents += dropped.length;
+				dataLane.clear();
+			}
+			dataLaneBytes = 0;
+		}
+		if (dropped != null) {
+			eventsDropped(dropped);
+		}
 		return super.pipeDestroy();
 	}
 	
@@ -334,6 +800,48 @@ public abstract class AbstractClusterPipe extends SimplePipeRunnable implements
 		// do nothing to keep existed pipe data
 	}
 
+	/*
+	 * Data lane of old pipe is moved after its cloned pipe data, keeping
+	 * data events in order. Old pipe's pipe data is at most one slice.
+	 * Merged data lane is bounded again, dropping oldest or newest data
+	 * events, as there are no callers for rejecting.
+	 */
+	@Override
+	protected void pipeCloneData(SimplePipeRunnable pipe, SimpleFilter filter, boolean cloning) {
+		super.pipeCloneData(pipe, filter, cloning);
+		if (!(pipe instanceof AbstractClusterPipe) || pipe == this) {
+			return;
+		}
+		AbstractClusterPipe p = (AbstractClusterPipe) pipe;
+		boolean moved = false;
+		List<SimpleSerializable> dropped = null;
+		synchronized (p.dataLaneMutex) {
+			if (!p.dataLane.isEmpty()) {
+				synchronized (dataLaneMutex) {
+					dataLane.addAll(p.dataLane);
+					dataLaneBytes += p.dataLaneBytes;
+					dropped = trimDataLane(ClusterConfig.clusterPipeOverflowPolicy == OVERFLOW_DROP_OLDEST, null);
+					if (dropped != null) {
+						droppedEvents += dropped.size();
+					}
+				}
+				p.dataLane.clear();
+				p.dataLaneBytes = 0;
+				moved = true;
+			}
+		}
+		if (dropped != null) {
+			eventsDropped(dropped.toArray(new SimpleSerializable[dropped.size()]));
+		}
+		if (moved) {
+			allDataLanedPipes.add(this);
+			startDataLanePump();
+			synchronized (dataLaneMutex4Pump) {
+				dataLaneMutex4Pump.notify();
+			}
+		}
+	}
+
 	@Override
 	public int compareTo(AbstractClusterPipe o) {
 		return hashCode() - o.hashCode();
@@ -6,6 +6,7 @@ import im.webuzz.cluster.events.ServerLost;
 import im.webuzz.cluster.events.ServerStatus;
 import im.webuzz.cluster.events.ServerStopping;
 import im.webuzz.cluster.events.UserResult;
+import im.webuzz.cluster.events.UserResults;
 import im.webuzz.cluster.xyz.XYZMixxer;
 
 import java.util.Map;
@@ -43,6 +44,7 @@ public class Login2LoginPipe extends AbstractClusterPipe {
 			"domain", "d",
 			"onlineServers", "o",
 			"target", "t",
+			"batching", "b",
 	};
 	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
 	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
@@ -68,6 +70,13 @@ public class Login2LoginPipe extends AbstractClusterPipe {
 	@SimpleIn
 	public String target;
 	
+	/**
+	 * Whether remote login server deals batched UserResults or not. Older
+	 * login servers do not set it, and get UserResult for each user.
+	 */
+	@SimpleIn
+	public boolean batching;
+	
 	private String host;
 	
 	// client side
@@ -194,6 +203,25 @@ public class Login2LoginPipe extends AbstractClusterPipe {
 		return true;
 	}
 
+	/**
+	 * Pipe user status updates to remote login server, in one UserResults
+	 * event if remote server deals batches, or in UserResult events.
+	 * 
+	 * @param usrs
+	 */
+	public void pipeUserResults(UserResults usrs) {
+		if (batching) {
+			pipeThrough(usrs);
+			return;
+		}
+		int length = usrs.size();
+		UserResult[] rs = new UserResult[length];
+		for (int i = 0; i < length; i++) {
+			rs[i] = usrs.getResult(i);
+		}
+		pipeThrough(rs);
+	}
+
 	public boolean deal(ServerStopping ssp) {
 		return true;
 	}
@@ -202,6 +230,16 @@ public class Login2LoginPipe extends AbstractClusterPipe {
 		return true;
 	}
 
+	/**
+	 * Batched user status updates from other login server.
+	 * 
+	 * @param usrs
+	 * @return
+	 */
+	public boolean deal(UserResults usrs) {
+		return true;
+	}
+
 	public boolean deal(ServerStatus ss) {
 		return true;
 	}
@@ -6,6 +6,8 @@ import im.webuzz.cluster.events.IStatus;
 import im.webuzz.cluster.events.ServerStatus;
 import im.webuzz.cluster.events.UserDuplicated;
 import im.webuzz.cluster.events.UserResult;
+import im.webuzz.cluster.events.UserResults;
+import im.webuzz.cluster.xyz.ServerId;
 import im.webuzz.cluster.xyz.XYZMixxer;
 
 import java.util.HashMap;
@@ -38,6 +40,8 @@ public class Login2ServicePipe extends AbstractClusterPipe {
 	
 	public static Map<String, Login2ServicePipe> allLoginPipes = new ConcurrentHashMap<String, Login2ServicePipe>();
 
+	private static ServerPipes<Login2ServicePipe> loginPipesByID = new ServerPipes<Login2ServicePipe>();
+
 	private static String[] mappings = new String[] {
 			"pipeKey", "k", // Fixed
 			"pipeAlive", "a", // Fixed
@@ -59,6 +63,8 @@ public class Login2ServicePipe extends AbstractClusterPipe {
 	
 	private String host;
 	
+	private int serverID = ServerId.NONE;
+	
 	/* For client side only */
 	private String remoteHost;
 
@@ -87,6 +93,10 @@ public class Login2ServicePipe extends AbstractClusterPipe {
 	public String getHost() {
 		return host;
 	}
+
+	public int getServerID() {
+		return serverID;
+	}
 	
 	/* For client side only */
 	public String getRemoteHost() {
@@ -105,7 +115,11 @@ public class Login2ServicePipe extends AbstractClusterPipe {
 		}
 		setLastHeartbeat(System.currentTimeMillis());
 		
-		host = port == 80 ? getRemoteDomain() : (getRemoteDomain() + ":" + port);
+		serverID = ServerId.intern(getRemoteDomain(), port);
+		host = ServerId.getHost(serverID);
+		if (host == null) {
+			host = port == 80 ? getRemoteDomain() : (getRemoteDomain() + ":" + port);
+		}
 		Map<String, ServerStatus> onlineServers = new HashMap<String, ServerStatus>(allLoginPipes.size());
 		
 		if (!ClusterConfig.clusterPrimaryLoginServer) {
@@ -145,6 +159,7 @@ public class Login2ServicePipe extends AbstractClusterPipe {
 		}
 		synchronized (loginDataMutex) {
 			p = allLoginPipes.put(host, this);
+			loginPipesByID.set(serverID, this);
 			if (p != null) {
 				this.pipeCloneData(p, HeartBeatFilter.singleton, true);
 			}
@@ -190,6 +205,56 @@ public class Login2ServicePipe extends AbstractClusterPipe {
 		return true;
 	}
 	
+	/**
+	 * Return pipe to given service server, see {@link ServerId}.
+	 * 
+	 * @param serverID
+	 * @return
+	 */
+	public static Login2ServicePipe getPipe(int serverID) {
+		return loginPipesByID.get(serverID);
+	}
+
+	/**
+	 * Remove pipe of given host.
+	 * 
+	 * @param remoteHost
+	 * @return removed pipe
+	 */
+	public static Login2ServicePipe removePipe(String remoteHost) {
+		Login2ServicePipe p = allLoginPipes.remove(remoteHost);
+		if (p != null) {
+			loginPipesByID.remove(p.serverID, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Put back given pipe, which is removed by {@link #removePipe(String)}.
+	 * 
+	 * @param pipe
+	 */
+	public static void putPipe(Login2ServicePipe pipe) {
+		allLoginPipes.put(pipe.host, pipe);
+		loginPipesByID.set(pipe.serverID, pipe);
+	}
+
+	/**
+	 * Remove given pipe.
+	 * 
+	 * @param pipe
+	 */
+	public static void removePipe(Login2ServicePipe pipe) {
+		for (Iterator<Login2ServicePipe> itr = allLoginPipes.values().iterator(); itr.hasNext();) {
+			Login2ServicePipe p = itr.next();
+			if (p == pipe) {
+				itr.remove();
+				break;
+			}
+		}
+		loginPipesByID.remove(pipe.serverID, pipe);
+	}
+
 	/**
 	 * Server is having its normal heart beat.
 	 * @param shb
@@ -222,6 +287,16 @@ public class Login2ServicePipe extends AbstractClusterPipe {
 		return true;
 	}
 
+	/**
+	 * Batched user server query results from login server.
+	 * 
+	 * @param usrs
+	 * @return
+	 */
+	public boolean deal(UserResults usrs) {
+		return true;
+	}
+
 	/**
 	 * Service server gets user duplicated events from login server. Service
 	 * server should try to notify client that user is login from another
@@ -0,0 +1,60 @@
+package im.webuzz.cluster.pipes;
+
+import im.webuzz.cluster.xyz.ServerId;
+
+/**
+ * Pipes indexed by server ID, see {@link ServerId}.
+ * 
+ * Pipes are still kept in maps keyed by host strings for compatibility.
+ * This table mirrors those maps, so routing can resolve server ID to pipe
+ * by an array index. Array is copied on write, reading requires no locks.
+ * 
+ * @author zhourenjian
+ *
+ */
+class ServerPipes<P extends AbstractClusterPipe> {
+
+	private volatile AbstractClusterPipe[] pipes = new AbstractClusterPipe[16];
+
+	@SuppressWarnings("unchecked")
+	public P get(int id) {
+		AbstractClusterPipe[] ps = pipes;
+		if (id < 0 || id >= ps.length) {
+			return null;
+		}
+		return (P) ps[id];
+	}
+
+	public synchronized void set(int id, P pipe) {
+		if (id < 0) {
+			return;
+		}
+		AbstractClusterPipe[] ps = pipes;
+		int length = ps.length;
+		while (id >= length) {
+			length <<= 1;
+		}
+		AbstractClusterPipe[] newPipes = new AbstractClusterPipe[length];
+		System.arraycopy(ps, 0, newPipes, 0, ps.length);
+		newPipes[id] = pipe;
+		pipes = newPipes;
+	}
+
+	/**
+	 * Remove given pipe. If there is a newer pipe for given server, keep it.
+	 * 
+	 * @param id
+	 * @param pipe
+	 */
+	public synchronized void remove(int id, P pipe) {
+		AbstractClusterPipe[] ps = pipes;
+		if (id < 0 || id >= ps.length || ps[id] != pipe) {
+			return;
+		}
+		AbstractClusterPipe[] newPipes = new AbstractClusterPipe[ps.length];
+		System.arraycopy(ps, 0, newPipes, 0, ps.length);
+		newPipes[id] = null;
+		pipes = newPipes;
+	}
+
+}
@@ -2,14 +2,20 @@ package im.webuzz.cluster.pipes;
 
 import java.util.Map;
 
+import net.sf.j2s.ajax.annotation.SimpleIn;
 import net.sf.j2s.ajax.annotation.SimpleOut;
 
 import im.webuzz.cluster.ClusterNode;
 import im.webuzz.cluster.ClusterServer;
+import im.webuzz.cluster.ClusterStreamingNode;
 import im.webuzz.cluster.events.HeartBeat;
+import im.webuzz.cluster.events.OnlineUsers;
 import im.webuzz.cluster.events.ServerStopping;
+import im.webuzz.cluster.events.UserQueries;
 import im.webuzz.cluster.events.UserQuery;
 import im.webuzz.cluster.events.UserStatus;
+import im.webuzz.cluster.events.UserStatuses;
+import im.webuzz.cluster.xyz.XYZMixxer;
 
 /**
  * These pipes will be managed on service servers.
@@ -40,6 +46,7 @@ public class Service2LoginPipe extends AbstractClusterPipe {
 			"apiSecret", "s",
 			"onlineUsers", "o",
 			"time", "t",
+			"streaming", "m",
 	};
 	private static Map<String, String> nameMappings = mappingFromArray(mappings, false);
 	private static Map<String, String> aliasMappings = mappingFromArray(mappings, true);
@@ -50,6 +57,14 @@ public class Service2LoginPipe extends AbstractClusterPipe {
 	@SimpleOut
 	public long time;
 
+	/**
+	 * Whether login server accepts online users in OnlineUsers events or
+	 * not. If it does and cluster node is a ClusterStreamingNode, online
+	 * users are piped up in chunks instead of onlineUsers.
+	 */
+	@SimpleIn
+	public boolean streaming;
+
 	private boolean stopping;
 	
 	@Override
@@ -96,7 +111,9 @@ public class Service2LoginPipe extends AbstractClusterPipe {
 		time = System.currentTimeMillis();
 		
 		ClusterNode serviceNode = ClusterServer.getClusterNode();
-		if (serviceNode != null) {
+		if (streaming && serviceNode instanceof ClusterStreamingNode) {
+			XYZMixxer.pipeUpOnlineUsers(this, (ClusterStreamingNode) serviceNode, time);
+		} else if (serviceNode != null) {
 			onlineUsers = serviceNode.getOnlineUsers();
 		}
 		return true;
@@ -125,6 +142,28 @@ public class Service2LoginPipe extends AbstractClusterPipe {
 		return true;
 	}
 
+	/**
+	 * Batched user-server statuses, login server will apply them slot by
+	 * slot and synchronize them to other login servers in one batch.
+	 * 
+	 * @param usss
+	 * @return
+	 */
+	public boolean deal(UserStatuses usss) {
+		return true;
+	}
+
+	/**
+	 * Chunk of online users on connecting, login server will apply them
+	 * slot by slot in parallel.
+	 * 
+	 * @param ous
+	 * @return
+	 */
+	public boolean deal(OnlineUsers ous) {
+		return true;
+	}
+
 	/**
 	 * On receiving user-server queries, login server will search the
 	 * server that user is connecting, and pipe down it as a result in
@@ -137,4 +176,15 @@ public class Service2LoginPipe extends AbstractClusterPipe {
 		return true;
 	}
 
+	/**
+	 * Batched user-server queries, login server will pipe down results in
+	 * one UserResults event.
+	 * 
+	 * @param usqs
+	 * @return
+	 */
+	public boolean deal(UserQueries usqs) {
+		return true;
+	}
+
 }
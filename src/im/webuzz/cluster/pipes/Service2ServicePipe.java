@@ -1,9 +1,12 @@
 package im.webuzz.cluster.pipes;
 
 import im.webuzz.cluster.ClusterEvent;
+import im.webuzz.cluster.events.EventAcks;
 import im.webuzz.cluster.events.HeartBeat;
+import im.webuzz.cluster.xyz.ServerId;
 import im.webuzz.cluster.xyz.XYZMixxer;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -29,6 +32,8 @@ public class Service2ServicePipe extends AbstractClusterPipe {
 	
 	public static Map<String, Service2ServicePipe> allServicePipes = new ConcurrentHashMap<String, Service2ServicePipe>();
 
+	private static ServerPipes<Service2ServicePipe> servicePipesByID = new ServerPipes<Service2ServicePipe>();
+
 	private static String[] mappings = new String[] {
 			"pipeKey", "k", // Fixed
 			"pipeAlive", "a", // Fixed
@@ -51,6 +56,8 @@ public class Service2ServicePipe extends AbstractClusterPipe {
 	@SimpleIn
 	public String domain;
 
+	private int serverID = ServerId.NONE;
+
 	@Override
 	protected Map<String, String> fieldNameMapping() {
 		return nameMappings;
@@ -76,11 +83,16 @@ public class Service2ServicePipe extends AbstractClusterPipe {
 		if (domain == null || domain.length() == 0) {
 			host = getRemoteIP();
 		}
-		String remoteHost = port == 80 ? host : (host + ":" + port);
+		serverID = ServerId.intern(host, port);
+		String remoteHost = ServerId.getHost(serverID);
+		if (remoteHost == null) {
+			remoteHost = port == 80 ? host : (host + ":" + port);
+		}
 
 		Service2ServicePipe p = null;
 		synchronized (serviceDataMutex) { // this mutex is used to clone pipe data synchronously
 			p = allServicePipes.put(remoteHost, this);
+			servicePipesByID.set(serverID, this);
 			if (p != null) {
 				this.pipeCloneData(p, HeartBeatFilter.singleton, true);
 			}
@@ -94,6 +106,50 @@ public class Service2ServicePipe extends AbstractClusterPipe {
 		return true;
 	}
 
+	public int getServerID() {
+		return serverID;
+	}
+
+	/**
+	 * Return pipe from given service server, see {@link ServerId}.
+	 * 
+	 * @param serverID
+	 * @return
+	 */
+	public static Service2ServicePipe getPipe(int serverID) {
+		return servicePipesByID.get(serverID);
+	}
+
+	/**
+	 * Remove pipe of given host.
+	 * 
+	 * @param remoteHost
+	 * @return removed pipe
+	 */
+	public static Service2ServicePipe removePipe(String remoteHost) {
+		Service2ServicePipe p = allServicePipes.remove(remoteHost);
+		if (p != null) {
+			servicePipesByID.remove(p.serverID, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Remove given pipe.
+	 * 
+	 * @param pipe
+	 */
+	public static void removePipe(Service2ServicePipe pipe) {
+		for (Iterator<Service2ServicePipe> itr = allServicePipes.values().iterator(); itr.hasNext();) {
+			Service2ServicePipe p = itr.next();
+			if (p == pipe) {
+				itr.remove();
+				break;
+			}
+		}
+		servicePipesByID.remove(pipe.serverID, pipe);
+	}
+
 	/**
 	 * Server is having its normal heart beat.
 	 * @param shb
@@ -107,4 +163,13 @@ public class Service2ServicePipe extends AbstractClusterPipe {
 		return true;
 	}
 
+	/**
+	 * Acknowledgements of reliable events piped to remote server.
+	 * @param acks
+	 * @return
+	 */
+	public boolean deal(EventAcks acks) {
+		return true;
+	}
+
 }
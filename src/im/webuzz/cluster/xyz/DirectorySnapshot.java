@@ -0,0 +1,273 @@
+package im.webuzz.cluster.xyz;
+
+import im.webuzz.cluster.ClusterConfig;
+import im.webuzz.cluster.events.IStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot of primary server's user directory, kept in a memory-mapped
+ * file for warm restarts.
+ * 
+ * Only online users are saved, together with the server table, as offline
+ * records are rebuilt by queries anyway. Snapshot is written into a
+ * temporary file, forced to disk and then moved to its final name
+ * atomically, so a crash during saving never breaks the last snapshot.
+ * A CRC32 trailer is verified on loading.
+ * 
+ * File layout:
+ * <pre>
+ * int magic, int version, long time, long journal sequence
+ * int server count, { short domain length, domain bytes, int port } ...
+ * { int record count, { int uid, short server, byte status, int time } ... } ...
+ * int -1, long CRC32 of all preceding bytes
+ * </pre>
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class DirectorySnapshot {
+
+	private static final int MAGIC = 0x575A4344; // WZCD
+
+	private static final int VERSION = 2;
+
+	private static final int RECORD_SIZE = 4 + 2 + 1 + 4;
+
+	private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private FileChannel channel;
+
+	private MappedByteBuffer buffer;
+
+	// file offset of current mapped buffer
+	private long offset;
+
+	// position in current buffer, bytes before it are counted in CRC
+	private int crcMark;
+
+	private CRC32 crc = new CRC32();
+
+	private DirectorySnapshot(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (buffer != null && buffer.remaining() >= bytes) {
+			return;
+		}
+		if (buffer != null) {
+			updateCRC();
+			buffer.force();
+			offset += buffer.position();
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, Math.max(bytes, CHUNK_SIZE));
+		crcMark = 0;
+	}
+
+	private void updateCRC() {
+		ByteBuffer written = buffer.duplicate();
+		written.position(crcMark);
+		written.limit(buffer.position());
+		crc.update(written);
+		crcMark = buffer.position();
+	}
+
+	/**
+	 * Save online users of all slots. Each slot is copied under its slot
+	 * mutex, so slots are consistent respectively.
+	 * 
+	 * @param file
+	 * @return count of saved users, or -1 on errors
+	 */
+	public static int save(File file) {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = null;
+		int total = 0;
+		try {
+			raf = new RandomAccessFile(tmpFile, "rw");
+			raf.setLength(0);
+			DirectorySnapshot s = new DirectorySnapshot(raf.getChannel());
+			s.ensure(4 + 4 + 8 + 8 + 4);
+			s.buffer.putInt(MAGIC);
+			s.buffer.putInt(VERSION);
+			s.buffer.putLong(System.currentTimeMillis());
+			// Changes after this sequence may or may not be in this snapshot,
+			// replaying them again on loading is harmless
+			s.buffer.putLong(StatusJournal.committedSequence());
+			int serverCount = ServerId.count();
+			s.buffer.putInt(serverCount);
+			for (int i = 0; i < serverCount; i++) {
+				String domain = ServerId.getDomain(i);
+				byte[] bytes = domain == null ? new byte[0] : domain.getBytes(UTF8);
+				s.ensure(2 + bytes.length + 4);
+				s.buffer.putShort((short) bytes.length);
+				s.buffer.put(bytes);
+				s.buffer.putInt(ServerId.getPort(i));
+			}
+			for (int slot = 0; slot < XYZMixxer.SLOTS; slot++) {
+				synchronized (XYZMixxer.statusMutex[slot]) {
+					UserDirectory dir = XYZMixxer.allStatuses[slot];
+					int capacity = dir.capacity();
+					int count = 0;
+					for (int k = 0; k < capacity; k++) {
+						if (dir.keyAt(k) != 0 && dir.statusAt(k) == IStatus.CONNECTED
+								&& dir.serverAt(k) != ServerId.NONE) {
+							count++;
+						}
+					}
+					s.ensure(4 + count * RECORD_SIZE);
+					MappedByteBuffer b = s.buffer;
+					b.putInt(count);
+					for (int k = 0; k < capacity; k++) {
+						int uid = dir.keyAt(k);
+						if (uid == 0 || dir.statusAt(k) != IStatus.CONNECTED) {
+							continue;
+						}
+						int server = dir.serverAt(k);
+						if (server == ServerId.NONE) {
+							continue;
+						}
+						b.putInt(uid);
+						b.putShort((short) server);
+						b.put((byte) IStatus.CONNECTED);
+						b.putInt(UserDirectory.toRelativeTime(dir.timeAt(k)));
+					}
+					total += count;
+				}
+			}
+			s.ensure(4 + 8);
+			s.buffer.putInt(-1);
+			s.updateCRC();
+			s.buffer.putLong(s.crc.getValue());
+			s.buffer.force();
+			long length = s.offset + s.buffer.position();
+			s.buffer = null;
+			raf.setLength(length);
+			raf.getChannel().force(true);
+			raf.close();
+			raf = null;
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return total;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Load snapshot into user directory. Records of servers are re-interned,
+	 * so server IDs of this run are used.
+	 * 
+	 * @param file
+	 * @param maxAge snapshot older than this age is ignored
+	 * @return journal sequence of the snapshot, from which journal should be
+	 * replayed, or -1 if snapshot is missing, broken or too old
+	 */
+	public static long load(File file, long maxAge) {
+		if (!file.exists()) {
+			return -1;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			long length = raf.length();
+			if (length < 4 + 4 + 8 + 8 + 4 + 4 + 8 || length > Integer.MAX_VALUE) {
+				if (ClusterConfig.clusterLogging) {
+					System.out.println("Cluster: Snapshot " + file + " has invalid length " + length + "!");
+				}
+				return -1;
+			}
+			MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			ByteBuffer content = b.duplicate();
+			content.limit((int) length - 8);
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			if (crc.getValue() != b.getLong((int) length - 8)) {
+				if (ClusterConfig.clusterLogging) {
+					System.out.println("Cluster: Snapshot " + file + " is broken!");
+				}
+				return -1;
+			}
+			if (b.getInt() != MAGIC) {
+				return -1;
+			}
+			int version = b.getInt();
+			if (version < 1 || version > VERSION) {
+				return -1;
+			}
+			long time = b.getLong();
+			long seq = version >= 2 ? b.getLong() : 0; // version 1 has no journal
+
+			if (Math.abs(System.currentTimeMillis() - time) > maxAge) {
+				if (ClusterConfig.clusterLogging) {
+					System.out.println("Cluster: Snapshot " + file + " is too old, ignore it.");
+				}
+				return -1;
+			}
+			int serverCount = b.getInt();
+			int[] serverIDs = new int[serverCount];
+			for (int i = 0; i < serverCount; i++) {
+				byte[] bytes = new byte[b.getShort() & 0xffff];
+				b.get(bytes);
+				int port = b.getInt();
+				serverIDs[i] = bytes.length == 0 ? ServerId.NONE : ServerId.intern(new String(bytes, UTF8), port);
+			}
+			int total = 0;
+			int count;
+			while ((count = b.getInt()) >= 0) {
+				for (int i = 0; i < count; i++) {
+					int uid = b.getInt();
+					int server = b.getShort();
+					int status = b.get();
+					long lastUpdated = UserDirectory.toAbsoluteTime(b.getInt());
+					if (server < 0 || server >= serverCount || serverIDs[server] == ServerId.NONE) {
+						continue;
+					}
+					int slot = uid & XYZMixxer.SLOTS_MASKS; // slots may be changed since last run
+					synchronized (XYZMixxer.statusMutex[slot]) {
+						XYZMixxer.allStatuses[slot].put(uid, serverIDs[server], status, lastUpdated);
+					}
+					total++;
+				}
+			}
+			if (ClusterConfig.clusterLogging) {
+				System.out.println("Cluster: " + total + " users are loaded from snapshot " + file + ".");
+			}
+			return seq;
+		} catch (Exception e) {
+			// IOException, or BufferUnderflowException for broken files
+			e.printStackTrace();
+			return -1;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+}
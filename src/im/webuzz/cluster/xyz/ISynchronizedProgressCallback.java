@@ -0,0 +1,24 @@
+package im.webuzz.cluster.xyz;
+
+/**
+ * Synchronized callback with progress of each slot.
+ * 
+ * Slots are synchronized concurrently, so slots may be reported out of
+ * order. Callbacks are invoked from worker threads.
+ * 
+ * @author zhourenjian
+ *
+ */
+public interface ISynchronizedProgressCallback extends ISynchronizedCallback {
+
+	/**
+	 * Given slot from remote server is synchronized.
+	 * 
+	 * @param remoteHost remote primary server, domain:port or domain
+	 * @param slot
+	 * @param synchronizedSlots slots synchronized so far
+	 * @param totalSlots slots to be synchronized
+	 */
+	public void slotSynchronized(String remoteHost, int slot, int synchronizedSlots, int totalSlots);
+
+}
@@ -0,0 +1,71 @@
+package im.webuzz.cluster.xyz;
+
+import im.webuzz.cluster.ClusterConfig;
+
+/**
+ * Users of one slot being queried from primary login server, with time of
+ * query being sent.
+ * 
+ * Only the first query of a user is sent. Later queries of the same user are
+ * considered being attached to the in-flight query, as their pending events
+ * or status requests are served by the same query result. If no result comes
+ * back in {@link ClusterConfig#clusterUserQueryRetryTimeout}, next query of
+ * the user is sent again.
+ * 
+ * Not thread safe. Callers should synchronize on the slot mutex.
+ * 
+ * @author zhourenjian
+ *
+ */
+public class InFlightQueries extends TimedIntSet {
+
+	public InFlightQueries() {
+		super();
+	}
+
+	public InFlightQueries(int initialCapacity) {
+		super(initialCapacity);
+	}
+
+	/**
+	 * Mark user as being queried.
+	 * 
+	 * @param uid
+	 * @param now
+	 * @return true if query should be sent, false if there is a query in
+	 * flight already
+	 */
+	public boolean start(int uid, long now) {
+		if (uid == IntMap.EMPTY) {
+			return false;
+		}
+		long time = timeOf(uid);
+		if (time != -1 && Math.abs(now - time) < ClusterConfig.clusterUserQueryRetryTimeout) {
+			return false;
+		}
+		put(uid, now); // new query, or timed out and retry
+		return true;
+	}
+
+	/**
+	 * Query result is received, or query is not sent.
+	 * 
+	 * @param uid
+	 * @return true if user was being queried
+	 */
+	public boolean finish(int uid) {
+		return remove(uid);
+	}
+
+	/**
+	 * Remove queries which have no results in retry timeout, in case that
+	 * their users are never queried again.
+	 * 
+	 * @param now
+	 * @return count of removed queries
+	 */
+	public int expire(long now) {
+		return removeBefore(now - ClusterConfig.clusterUserQueryRetryTimeout + 1);
+	}
+
+}
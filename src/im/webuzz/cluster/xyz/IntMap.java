@@ -0,0 +1,375 @@
+package im.webuzz.cluster.xyz;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Open addressing hash map with primitive int keys.
+ *
+ * User directory maps are keyed by user ID and may hold tens of millions of
+ * entries on primary servers. Boxing user IDs into Integer objects and
+ * wrapping every entry into a HashMap.Node costs more heap than the entries
+ * themselves. This map keeps keys in an int array and values in a parallel
+ * array, and resolves collisions by linear probing.
+ *
+ * Key 0 is reserved for empty buckets, as user ID 0 is never a valid user.
+ * Putting key 0 into the map is silently ignored.
+ *
+ * This map is not thread safe. Callers should synchronize on the slot mutex
+ * that guards the map. Only {@link #peek(int)} can be called without holding
+ * the slot mutex.
+ *
+ * @author zhourenjian
+ *
+ */
+public class IntMap<V> {
+
+	static final int EMPTY = 0;
+
+	private static final int MIN_CAPACITY = 16;
+
+	/*
+	 * Optimistic reads before falling back to read lock.
+	 */
+	static final int OPTIMISTIC_RETRIES = 4;
+
+	private int[] keys;
+
+	private Object[] values;
+
+	private int size;
+
+	private int mask;
+
+	private int threshold;
+
+	/*
+	 * Writers are already serialized by slot mutex, this lock is used as
+	 * sequence for validating optimistic reads, so write lock is never
+	 * contended by other writers.
+	 */
+	private final StampedLock sequence = new StampedLock();
+
+	public IntMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public IntMap(int initialCapacity) {
+		allocate(tableSizeFor(initialCapacity));
+	}
+
+	/*
+	 * Keys in the same slot share their lowest bits, spread them with the
+	 * golden ratio multiplier and fold the higher bits back down.
+	 */
+	static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	static int tableSizeFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < (1 << 30) && (capacity >> 2) * 3 < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		threshold = (capacity >> 2) * 3;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private int indexOf(int key) {
+		if (key == EMPTY) {
+			return -1;
+		}
+		int[] ks = keys;
+		int m = mask;
+		int pos = hash(key) & m;
+		int k;
+		while ((k = ks[pos]) != EMPTY) {
+			if (k == key) {
+				return pos;
+			}
+			pos = (pos + 1) & m;
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int pos = indexOf(key);
+		return pos < 0 ? null : (V) values[pos];
+	}
+
+	public boolean containsKey(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Get value without holding slot mutex.
+	 * 
+	 * Lookup is run optimistically and validated against concurrent writes.
+	 * Only on continuous writes, it falls back to a read lock, which blocks
+	 * writers for a short while.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V peek(int key) {
+		if (key == EMPTY) {
+			return null;
+		}
+		StampedLock lock = sequence;
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue; // being written
+			}
+			Object value = null;
+			try {
+				value = find(key);
+			} catch (RuntimeException e) {
+				// Arrays being replaced by rehash, validation will fail
+			}
+			if (lock.validate(stamp)) {
+				return (V) value;
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return (V) find(key);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Get values of given keys without holding slot mutex, with only one
+	 * validation for all keys.
+	 * 
+	 * @param keys
+	 * @param order indexes of keys to get are order[from] ... order[to - 1]
+	 * @param from
+	 * @param to
+	 * @param values values are put into values[order[i]]
+	 */
+	public void peek(int[] keys, int[] order, int from, int to, Object[] values) {
+		StampedLock lock = sequence;
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue; // being written
+			}
+			try {
+				for (int j = from; j < to; j++) {
+					int idx = order[j];
+					int key = keys[idx];
+					values[idx] = key == EMPTY ? null : find(key);
+				}
+			} catch (RuntimeException e) {
+				// Arrays being replaced by rehash, validation will fail
+			}
+			if (lock.validate(stamp)) {
+				return;
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			for (int j = from; j < to; j++) {
+				int idx = order[j];
+				int key = keys[idx];
+				values[idx] = key == EMPTY ? null : find(key);
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * Lookup may be run against a map being modified, probing is bounded.
+	 */
+	private Object find(int key) {
+		int[] ks = keys;
+		Object[] vs = values;
+		int m = mask;
+		int pos = hash(key) & m;
+		for (int i = 0; i < ks.length; i++) {
+			int k = ks[pos];
+			if (k == key) {
+				return vs[pos];
+			}
+			if (k == EMPTY) {
+				return null;
+			}
+			pos = (pos + 1) & m;
+		}
+		return null;
+	}
+
+	public V put(int key, V value) {
+		if (key == EMPTY) {
+			return null;
+		}
+		long stamp = sequence.writeLock();
+		try {
+			return doPut(key, value);
+		} finally {
+			sequence.unlockWrite(stamp);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private V doPut(int key, V value) {
+		int[] ks = keys;
+		int m = mask;
+		int pos = hash(key) & m;
+		int k;
+		while ((k = ks[pos]) != EMPTY) {
+			if (k == key) {
+				V old = (V) values[pos];
+				values[pos] = value;
+				return old;
+			}
+			pos = (pos + 1) & m;
+		}
+		ks[pos] = key;
+		values[pos] = value;
+		if (++size > threshold) {
+			rehash(keys.length << 1);
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int pos = indexOf(key);
+		if (pos < 0) {
+			return null;
+		}
+		V old = (V) values[pos];
+		long stamp = sequence.writeLock();
+		try {
+			shiftKeys(pos);
+			size--;
+		} finally {
+			sequence.unlockWrite(stamp);
+		}
+		return old;
+	}
+
+	public void clear() {
+		if (size == 0) {
+			return;
+		}
+		long stamp = sequence.writeLock();
+		try {
+			size = 0;
+			int[] ks = keys;
+			Object[] vs = values;
+			for (int i = 0; i < ks.length; i++) {
+				ks[i] = EMPTY;
+				vs[i] = null;
+			}
+		} finally {
+			sequence.unlockWrite(stamp);
+		}
+	}
+
+	/*
+	 * Backward shift deletion. Move following entries of the same probing
+	 * chain into the emptied bucket, so no tombstones are needed.
+	 */
+	private void shiftKeys(int pos) {
+		int[] ks = keys;
+		Object[] vs = values;
+		int m = mask;
+		int last, slot, k;
+		while (true) {
+			last = pos;
+			pos = (pos + 1) & m;
+			while (true) {
+				if ((k = ks[pos]) == EMPTY) {
+					ks[last] = EMPTY;
+					vs[last] = null;
+					return;
+				}
+				slot = hash(k) & m;
+				if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+					break;
+				}
+				pos = (pos + 1) & m;
+			}
+			ks[last] = k;
+			vs[last] = vs[pos];
+		}
+	}
+
+	private void rehash(int newCapacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(newCapacity);
+		int[] ks = keys;
+		Object[] vs = values;
+		int m = mask;
+		for (int i = 0; i < oldKeys.length; i++) {
+			int k = oldKeys[i];
+			if (k == EMPTY) {
+				continue;
+			}
+			int pos = hash(k) & m;
+			while (ks[pos] != EMPTY) {
+				pos = (pos + 1) & m;
+			}
+			ks[pos] = k;
+			vs[pos] = oldValues[i];
+		}
+	}
+
+	/**
+	 * Bucket count for iterating entries by position.
+	 *
+	 * Usage:
+	 * <code>
+	 * for (int i = 0; i < map.capacity(); i++) {
+	 * 	int uid = map.keyAt(i);
+	 * 	if (uid == 0) continue; // empty bucket
+	 * 	UserResult r = map.valueAt(i);
+	 * }
+	 * </code>
+	 *
+	 * Map should not be modified while iterating.
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * Key of given bucket position, or 0 for empty bucket.
+	 *
+	 * @param pos
+	 * @return
+	 */
+	public int keyAt(int pos) {
+		return keys[pos];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V valueAt(int pos) {
+		return (V) values[pos];
+	}
+
+}
@@ -0,0 +1,163 @@
+package im.webuzz.cluster.xyz;
+
+/**
+ * Open addressing hash set with primitive int elements, same probing and
+ * deletion as {@link IntMap}.
+ * 
+ * Element 0 is reserved for empty buckets, adding 0 is silently ignored.
+ * 
+ * Not thread safe. Callers should synchronize on the slot mutex.
+ * 
+ * @author zhourenjian
+ *
+ */
+public class IntSet {
+
+	private static final int EMPTY = IntMap.EMPTY;
+
+	private int[] keys;
+
+	private int size;
+
+	private int mask;
+
+	private int threshold;
+
+	public IntSet() {
+		this(16);
+	}
+
+	public IntSet(int initialCapacity) {
+		allocate(IntMap.tableSizeFor(initialCapacity));
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		mask = capacity - 1;
+		threshold = (capacity >> 2) * 3;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private int indexOf(int key) {
+		if (key == EMPTY) {
+			return -1;
+		}
+		int[] ks = keys;
+		int m = mask;
+		int pos = IntMap.hash(key) & m;
+		int k;
+		while ((k = ks[pos]) != EMPTY) {
+			if (k == key) {
+				return pos;
+			}
+			pos = (pos + 1) & m;
+		}
+		return -1;
+	}
+
+	public boolean contains(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @param key
+	 * @return true if key is added, false if key exists already
+	 */
+	public boolean add(int key) {
+		if (key == EMPTY) {
+			return false;
+		}
+		int[] ks = keys;
+		int m = mask;
+		int pos = IntMap.hash(key) & m;
+		int k;
+		while ((k = ks[pos]) != EMPTY) {
+			if (k == key) {
+				return false;
+			}
+			pos = (pos + 1) & m;
+		}
+		ks[pos] = key;
+		if (++size > threshold) {
+			rehash(keys.length << 1);
+		}
+		return true;
+	}
+
+	public boolean remove(int key) {
+		int pos = indexOf(key);
+		if (pos < 0) {
+			return false;
+		}
+		shiftKeys(pos);
+		size--;
+		return true;
+	}
+
+	/*
+	 * Backward shift deletion, see IntMap#shiftKeys
+	 */
+	private void shiftKeys(int pos) {
+		int[] ks = keys;
+		int m = mask;
+		int last, slot, k;
+		while (true) {
+			last = pos;
+			pos = (pos + 1) & m;
+			while (true) {
+				if ((k = ks[pos]) == EMPTY) {
+					ks[last] = EMPTY;
+					return;
+				}
+				slot = IntMap.hash(k) & m;
+				if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+					break;
+				}
+				pos = (pos + 1) & m;
+			}
+			ks[last] = k;
+		}
+	}
+
+	private void rehash(int newCapacity) {
+		int[] oldKeys = keys;
+		allocate(newCapacity);
+		int[] ks = keys;
+		int m = mask;
+		for (int i = 0; i < oldKeys.length; i++) {
+			int k = oldKeys[i];
+			if (k == EMPTY) {
+				continue;
+			}
+			int pos = IntMap.hash(k) & m;
+			while (ks[pos] != EMPTY) {
+				pos = (pos + 1) & m;
+			}
+			ks[pos] = k;
+		}
+	}
+
+	/**
+	 * Return all elements in a new array.
+	 * @return
+	 */
+	public int[] toArray() {
+		int[] result = new int[size];
+		int[] ks = keys;
+		int index = 0;
+		for (int i = 0; i < ks.length && index < result.length; i++) {
+			if (ks[i] != EMPTY) {
+				result[index++] = ks[i];
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,349 @@
+package im.webuzz.cluster.xyz;
+
+import im.webuzz.cluster.ClusterConfig;
+import im.webuzz.cluster.ClusterDelivery;
+import im.webuzz.cluster.ClusterEvent;
+import im.webuzz.cluster.events.ReliableEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Outbound batching of cluster events, for each destination server.
+ * 
+ * Events to the same service server pipe, or to the same server by
+ * SendEvent RPC, are kept for a short linger, and are flushed as one pipe
+ * frame or one RPC, or earlier on reaching ClusterConfig#clusterOutboundBatchSize.
+ * 
+ * Linger adapts to measured outbound throughput. On light workloads, when
+ * fewer than two events are expected in the maximum linger, events are
+ * sent directly without lingering. On heavy workloads, linger is shortened
+ * to the time expected for collecting a full batch, so batches are full
+ * without adding more latency than needed.
+ * 
+ * A batch stays registered for its destination while it is being flushed,
+ * events queued meanwhile are appended to it and are flushed after, so
+ * events are never reordered by bypassing a batch in flight.
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class OutboundBatcher {
+
+	private static final long MEASURING_INTERVAL = 1000000L; // 1ms in nanoseconds
+
+	private static final class Batch {
+
+		final int server;
+		final String host;
+		long firstQueued;
+		List<ClusterEvent> events = new ArrayList<ClusterEvent>();
+		// Being flushed by a thread, which flushes later events too
+		boolean flushing;
+
+		Batch(int server, String host, long firstQueued) {
+			this.server = server;
+			this.host = host;
+			this.firstQueued = firstQueued;
+		}
+
+	}
+
+	private static final Object mutex = new Object();
+
+	// server ID + 1 -> batch to pipe, as key 0 is reserved by IntMap
+	private static IntMap<Batch> pipeBatches = new IntMap<Batch>();
+
+	// host -> batch to send by RPC
+	private static Map<String, Batch> rpcBatches = new HashMap<String, Batch>();
+
+	private static volatile int queuedBatches = 0;
+
+	private static volatile Thread batchingThread;
+
+	private static final AtomicLong outboundEvents = new AtomicLong();
+
+	private static final AtomicLong lastMeasured = new AtomicLong(System.nanoTime());
+
+	// events per microsecond
+	private static volatile double outboundRate = 0;
+
+	private static volatile long lingerNanos = 0;
+
+	private OutboundBatcher() {
+	}
+
+	/**
+	 * Start batching thread. Without started thread, events are always sent
+	 * directly.
+	 */
+	public static void start() {
+		if (batchingThread != null) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						long waiting = flushDueBatches();
+						if (waiting > 0) {
+							LockSupport.parkNanos(waiting);
+						} else if (waiting < 0) {
+							LockSupport.park(); // nothing queued
+						}
+					} catch (Throwable e) {
+						e.printStackTrace();
+					}
+				}
+			}
+
+		}, "Cluster Outbound Batcher");
+		thread.setDaemon(true);
+		batchingThread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Current linger in microseconds, 0 means events are sent directly.
+	 * @return
+	 */
+	public static long getLinger() {
+		return lingerNanos / 1000;
+	}
+
+	/**
+	 * Measured outbound events per second.
+	 * @return
+	 */
+	public static long getOutboundRate() {
+		return (long) (outboundRate * 1000000);
+	}
+
+	/**
+	 * Queue events to be piped through Service2ServicePipe of given server.
+	 * 
+	 * @param server
+	 * @param events
+	 * @return false if events should be piped directly by caller
+	 */
+	static boolean pipe(int server, ClusterEvent[] events) {
+		return queue(server, null, events);
+	}
+
+	/**
+	 * Queue events to be sent by SendEvent RPC to given host.
+	 * 
+	 * @param host
+	 * @param events
+	 * @return false if events should be sent directly by caller
+	 */
+	static boolean send(String host, ClusterEvent[] events) {
+		return queue(ServerId.NONE, host, events);
+	}
+
+	private static boolean queue(int server, String host, ClusterEvent[] events) {
+		long now = System.nanoTime();
+		outboundEvents.addAndGet(events.length);
+		measure(now);
+		Thread thread = batchingThread;
+		if (thread == null || (lingerNanos <= 0 && queuedBatches == 0)) {
+			return false;
+		}
+		Batch full = null;
+		boolean first = false;
+		synchronized (mutex) {
+			Batch batch = host == null ? pipeBatches.get(server + 1) : rpcBatches.get(host);
+			if (batch == null) {
+				if (lingerNanos <= 0) {
+					return false; // other destinations are being flushed
+				}
+				batch = new Batch(server, host, now);
+				if (host == null) {
+					pipeBatches.put(server + 1, batch);
+				} else {
+					rpcBatches.put(host, batch);
+				}
+				first = queuedBatches == 0;
+				queuedBatches++;
+			} else if (batch.events.isEmpty()) {
+				batch.firstQueued = now; // batch in flight, these events are queued after it
+			}
+			for (int i = 0; i < events.length; i++) {
+				batch.events.add(events[i]);
+			}
+			if (!batch.flushing && (batch.events.size() >= ClusterConfig.clusterOutboundBatchSize
+					|| lingerNanos <= 0)) {
+				batch.flushing = true;
+				full = batch;
+			}
+		}
+		if (full != null) {
+			flush(full);
+		} else if (first) {
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	// Caller should synchronize on mutex
+	private static void remove(Batch batch) {
+		if (batch.host == null) {
+			pipeBatches.remove(batch.server + 1);
+		} else {
+			rpcBatches.remove(batch.host);
+		}
+		queuedBatches--;
+	}
+
+	/*
+	 * Update measured outbound rate and linger, at most once in each
+	 * measuring interval, by the first caller after the interval.
+	 */
+	private static void measure(long now) {
+		long last = lastMeasured.get();
+		long elapsed = now - last;
+		if (elapsed < MEASURING_INTERVAL || !lastMeasured.compareAndSet(last, now)) {
+			return;
+		}
+		long count = outboundEvents.getAndSet(0);
+		double current = count / (elapsed / 1000.0);
+		// Long idle intervals reset rate quickly
+		double rate = elapsed > MEASURING_INTERVAL * 100 ? current : (outboundRate + current) / 2;
+		outboundRate = rate;
+		long maxLinger = ClusterConfig.clusterOutboundLinger;
+		long linger = 0;
+		if (maxLinger > 0 && rate * maxLinger >= 2) {
+			linger = Math.min(maxLinger, (long) (Math.max(2, ClusterConfig.clusterOutboundBatchSize) / rate));
+		}
+		lingerNanos = linger * 1000;
+	}
+
+	/*
+	 * Flush batches which have been lingering long enough.
+	 * Return nanoseconds to next due batch, -1 if there is no batches.
+	 */
+	private static long flushDueBatches() {
+		List<Batch> due = null;
+		long next = -1;
+		synchronized (mutex) {
+			if (queuedBatches == 0) {
+				return -1;
+			}
+			long now = System.nanoTime();
+			long linger = lingerNanos;
+			for (int i = 0; i < pipeBatches.capacity(); i++) {
+				Batch batch = pipeBatches.valueAt(i);
+				if (pipeBatches.keyAt(i) == 0 || batch == null || batch.flushing) {
+					continue;
+				}
+				long waiting = batch.firstQueued + linger - now;
+				if (waiting <= 0) {
+					if (due == null) {
+						due = new ArrayList<Batch>();
+					}
+					due.add(batch);
+				} else if (next < 0 || waiting < next) {
+					next = waiting;
+				}
+			}
+			for (Iterator<Batch> itr = rpcBatches.values().iterator(); itr.hasNext();) {
+				Batch batch = itr.next();
+				if (batch.flushing) {
+					continue;
+				}
+				long waiting = batch.firstQueued + linger - now;
+				if (waiting <= 0) {
+					if (due == null) {
+						due = new ArrayList<Batch>();
+					}
+					due.add(batch);
+				} else if (next < 0 || waiting < next) {
+					next = waiting;
+				}
+			}
+			if (due != null) {
+				for (int i = 0; i < due.size(); i++) {
+					due.get(i).flushing = true;
+				}
+			}
+		}
+		if (due != null) {
+			for (int i = 0; i < due.size(); i++) {
+				flush(due.get(i));
+			}
+		}
+		return next;
+	}
+
+	/*
+	 * Flush batch marked as flushing. Events queued during flushing are
+	 * flushed by this thread again if the batch is full, or are left for
+	 * batching thread.
+	 */
+	private static void flush(Batch batch) {
+		while (true) {
+			List<ClusterEvent> flushing = null;
+			synchronized (mutex) {
+				if (batch.events.isEmpty()) {
+					batch.flushing = false;
+					remove(batch);
+					return;
+				}
+				flushing = batch.events;
+				batch.events = new ArrayList<ClusterEvent>();
+			}
+			ClusterEvent[] events = flushing.toArray(new ClusterEvent[flushing.size()]);
+			if (batch.host == null) {
+				if (XYZMixxer.pipeOutNow(batch.server, events) == 0) {
+					notSent(events);
+				}
+			} else {
+				XYZMixxer.sendPipeOutRPCNow(batch.host, events);
+			}
+			synchronized (mutex) {
+				if (batch.events.isEmpty()) {
+					batch.flushing = false;
+					remove(batch);
+					return;
+				}
+				if (batch.events.size() < ClusterConfig.clusterOutboundBatchSize && lingerNanos > 0) {
+					batch.flushing = false;
+					break;
+				}
+			}
+		}
+		Thread thread = batchingThread;
+		if (thread != null) {
+			LockSupport.unpark(thread); // batching thread may be waiting without due time
+		}
+	}
+
+	/*
+	 * Pipe is lost after events are queued, complete their deliveries as
+	 * unreachable and run their not sent tasks, as ClusterServer#pipeEvent
+	 * does for events without pipe. ReliableEvent wrappers are skipped, as
+	 * they are resent or given up by ReliableEvents.
+	 */
+	private static void notSent(ClusterEvent[] events) {
+		List<ClusterEvent> lost = new ArrayList<ClusterEvent>(events.length);
+		for (int i = 0; i < events.length; i++) {
+			if (!(events[i] instanceof ReliableEvent)) {
+				lost.add(events[i]);
+			}
+		}
+		if (lost.isEmpty()) {
+			return;
+		}
+		ClusterEvent[] notSent = lost.toArray(new ClusterEvent[lost.size()]);
+		ClusterDelivery.complete(notSent, ClusterDelivery.UNREACHABLE);
+		XYZMixxer.runNotSentTaks(notSent);
+	}
+
+}
@@ -0,0 +1,257 @@
+package im.webuzz.cluster.xyz;
+
+import im.webuzz.cluster.ClusterConfig;
+import im.webuzz.cluster.ClusterEvent;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Events of one slot on service server, waiting for their receivers' servers
+ * to be known.
+ * 
+ * Events of each receiver are kept in a ring buffer, bounded by
+ * {@link ClusterConfig#clusterPendingEventsPerUser}. On overflow, the oldest
+ * event is dropped. All slots together are bounded by
+ * {@link ClusterConfig#clusterPendingEventsMaxSize}, new events are rejected
+ * on exceeding. Events older than {@link ClusterConfig#clusterPendingEventTTL}
+ * are dropped by {@link #expire(long, List)}. So pending events won't grow
+ * without bound, even if primary server stops responding user queries.
+ * 
+ * Dropped events are returned to callers, who should run their callbacks
+ * outside of the slot mutex.
+ * 
+ * Not thread safe. All callers should synchronize on the slot mutex.
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class PendingEvents {
+
+	/**
+	 * Most receivers have only a few pending events, rings start small and
+	 * grow up to ClusterConfig#clusterPendingEventsPerUser.
+	 */
+	private static final int INITIAL_RING_CAPACITY = 4;
+
+	private static final AtomicInteger pendingCount = new AtomicInteger();
+
+	private static final LongAdder expiredCount = new LongAdder();
+
+	private static final LongAdder droppedCount = new LongAdder();
+
+	private static volatile long oldestTime = -1;
+
+	private IntMap<Ring> rings;
+
+	// time of the oldest event in this slot, updated on expiring
+	private long slotOldestTime = -1;
+
+	private static class Ring {
+
+		ClusterEvent[] events;
+
+		long[] times;
+
+		int head;
+
+		int count;
+
+		Ring(int capacity) {
+			events = new ClusterEvent[capacity];
+			times = new long[capacity];
+		}
+
+		void grow(int capacity) {
+			ClusterEvent[] newEvents = new ClusterEvent[capacity];
+			long[] newTimes = new long[capacity];
+			int length = events.length;
+			for (int i = 0; i < count; i++) {
+				newEvents[i] = events[(head + i) % length];
+				newTimes[i] = times[(head + i) % length];
+			}
+			events = newEvents;
+			times = newTimes;
+			head = 0;
+		}
+
+	}
+
+	public PendingEvents(int initialCapacity) {
+		rings = new IntMap<Ring>(initialCapacity);
+	}
+
+	/**
+	 * Count of all pending events of all slots.
+	 * @return
+	 */
+	public static int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * Age of the oldest pending event, updated on every expiring round.
+	 * 
+	 * @return age in milliseconds, or 0 if there are no pending events
+	 */
+	public static long getOldestAge() {
+		long time = oldestTime;
+		if (time <= 0) {
+			return 0;
+		}
+		return Math.max(0, System.currentTimeMillis() - time);
+	}
+
+	public static long getExpiredCount() {
+		return expiredCount.sum();
+	}
+
+	/**
+	 * Events dropped by ring buffer overflow or by exceeding global limit.
+	 * @return
+	 */
+	public static long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * Keep event for given receiver.
+	 * 
+	 * @param uid
+	 * @param event
+	 * @param now
+	 * @return dropped event, which may be the given event if pending events
+	 * exceed global limit, or the oldest event of this receiver if its ring
+	 * buffer is full. Null if nothing is dropped.
+	 */
+	public ClusterEvent add(int uid, ClusterEvent event, long now) {
+		int limit = Math.max(1, ClusterConfig.clusterPendingEventsPerUser);
+		Ring ring = rings.get(uid);
+		if (ring == null || ring.count < limit) {
+			if (pendingCount.incrementAndGet() > ClusterConfig.clusterPendingEventsMaxSize) {
+				pendingCount.decrementAndGet();
+				droppedCount.increment();
+				return event;
+			}
+		} // else replacing the oldest, pending count is not changed
+		if (ring == null) {
+			ring = new Ring(Math.min(INITIAL_RING_CAPACITY, limit));
+			rings.put(uid, ring);
+		} else if (ring.count < limit && ring.count == ring.events.length) {
+			ring.grow(Math.min(ring.events.length << 1, limit));
+		}
+		int capacity = ring.events.length;
+		ClusterEvent dropped = null;
+		if (ring.count >= limit || ring.count == capacity) {
+			dropped = ring.events[ring.head];
+			ring.events[ring.head] = null;
+			ring.head = (ring.head + 1) % capacity;
+			ring.count--;
+			droppedCount.increment();
+		}
+		int tail = (ring.head + ring.count) % capacity;
+		ring.events[tail] = event;
+		ring.times[tail] = now;
+		ring.count++;
+		return dropped;
+	}
+
+	/**
+	 * Remove and return all events of given receiver.
+	 * 
+	 * @param uid
+	 * @return events in order, or null if there are no events
+	 */
+	public ClusterEvent[] take(int uid) {
+		Ring ring = rings.remove(uid);
+		if (ring == null || ring.count == 0) {
+			return null;
+		}
+		int capacity = ring.events.length;
+		ClusterEvent[] events = new ClusterEvent[ring.count];
+		for (int i = 0; i < ring.count; i++) {
+			events[i] = ring.events[(ring.head + i) % capacity];
+		}
+		pendingCount.addAndGet(-ring.count);
+		return events;
+	}
+
+	public boolean contains(int uid) {
+		return rings.containsKey(uid);
+	}
+
+	/**
+	 * Drop events older than TTL.
+	 * 
+	 * @param now
+	 * @param expired dropped events are added into this list
+	 * @return count of dropped events
+	 */
+	public int expire(long now, List<ClusterEvent> expired) {
+		long deadline = now - ClusterConfig.clusterPendingEventTTL;
+		int count = 0;
+		int[] emptyUIDs = null;
+		int emptySize = 0;
+		long oldest = -1;
+		IntMap<Ring> rs = rings;
+		int capacity = rs.capacity();
+		for (int i = 0; i < capacity; i++) {
+			int uid = rs.keyAt(i);
+			if (uid == 0) {
+				continue; // empty bucket
+			}
+			Ring ring = rs.valueAt(i);
+			int length = ring.events.length;
+			while (ring.count > 0 && ring.times[ring.head] <= deadline) {
+				expired.add(ring.events[ring.head]);
+				ring.events[ring.head] = null;
+				ring.head = (ring.head + 1) % length;
+				ring.count--;
+				count++;
+			}
+			if (ring.count == 0) {
+				if (emptyUIDs == null) {
+					emptyUIDs = new int[16];
+				} else if (emptySize == emptyUIDs.length) {
+					int[] newUIDs = new int[emptySize << 1];
+					System.arraycopy(emptyUIDs, 0, newUIDs, 0, emptySize);
+					emptyUIDs = newUIDs;
+				}
+				emptyUIDs[emptySize++] = uid;
+			} else {
+				long time = ring.times[ring.head];
+				if (oldest < 0 || time < oldest) {
+					oldest = time;
+				}
+			}
+		}
+		// Removing entries will shift buckets, remove them after iterating
+		for (int i = 0; i < emptySize; i++) {
+			rs.remove(emptyUIDs[i]);
+		}
+		if (count > 0) {
+			pendingCount.addAndGet(-count);
+			expiredCount.add(count);
+		}
+		slotOldestTime = oldest;
+		return count;
+	}
+
+	/**
+	 * Time of the oldest event in this slot, found by last expiring.
+	 * @return
+	 */
+	long getSlotOldestTime() {
+		return slotOldestTime;
+	}
+
+	/**
+	 * Update time of the oldest pending event of all slots.
+	 * @param time
+	 */
+	static void updateOldestTime(long time) {
+		oldestTime = time;
+	}
+
+}
@@ -0,0 +1,447 @@
+package im.webuzz.cluster.xyz;
+
+import im.webuzz.cluster.ClusterConfig;
+import im.webuzz.cluster.ClusterDelivery;
+import im.webuzz.cluster.ClusterEvent;
+import im.webuzz.cluster.events.EventAcks;
+import im.webuzz.cluster.events.ReliableEvent;
+import im.webuzz.cluster.pipes.Service2ServicePipe;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * At-least-once delivery of cluster events between service servers.
+ * 
+ * Sending side wraps events into ReliableEvent with a sequence for each
+ * destination server, keeps them until they are acknowledged, and pipes
+ * them again after ClusterConfig#clusterReliableRetryTimeout. Sending never
+ * waits for acknowledgements, only ClusterConfig#clusterReliableWindow
+ * events may be not acknowledged for each destination.
+ * 
+ * Receiving side keeps a window of received sequences for each sending
+ * server, drops duplicated events, e.g. from resending or from cloned
+ * pipe data on reconnecting, and pipes back acknowledgements in batches
+ * after events are passed to cluster node.
+ * 
+ * @author zhourenjian
+ *
+ */
+final class ReliableEvents {
+
+	private static final class Unacknowledged {
+
+		final ReliableEvent event;
+		final long queued;
+		long sent;
+		int resendings;
+
+		Unacknowledged(ReliableEvent event, long sent) {
+			this.event = event;
+			this.queued = sent;
+			this.sent = sent;
+		}
+
+	}
+
+	private static final class Outbox {
+
+		long nextSequence = 1;
+		// In sequence order
+		LinkedHashMap<Long, Unacknowledged> events = new LinkedHashMap<Long, Unacknowledged>();
+
+	}
+
+	private static final class Window {
+
+		long epoch;
+		long highest;
+		long[] bits;
+
+		Window(long epoch, int size) {
+			this.epoch = epoch;
+			bits = new long[(size + 63) >>> 6];
+		}
+
+		int size() {
+			return bits.length << 6;
+		}
+
+		boolean get(long sequence) {
+			int index = (int) (sequence % size());
+			return (bits[index >>> 6] & (1L << (index & 63))) != 0;
+		}
+
+		void set(long sequence, boolean value) {
+			int index = (int) (sequence % size());
+			if (value) {
+				bits[index >>> 6] |= 1L << (index & 63);
+			} else {
+				bits[index >>> 6] &= ~(1L << (index & 63));
+			}
+		}
+
+	}
+
+	private static final class Acks {
+
+		long epoch;
+		long[] sequences = new long[16];
+		int count;
+
+	}
+
+	private static final Object mutex = new Object();
+
+	// Keys of the following maps are server ID + 1, as key 0 is reserved by IntMap
+
+	// Sending side, guarded by mutex
+	private static IntMap<Outbox> outboxes = new IntMap<Outbox>();
+
+	// Receiving side, guarded by mutex
+	private static IntMap<Window> windows = new IntMap<Window>();
+
+	// Receiving side, guarded by mutex
+	private static IntMap<Acks> pendingAcks = new IntMap<Acks>();
+
+	// Events in all outboxes, guarded by mutex
+	private static int unacknowledged = 0;
+
+	private static volatile boolean started = false;
+
+	private ReliableEvents() {
+	}
+
+	private static void start() {
+		if (started) {
+			return;
+		}
+		synchronized (ReliableEvents.class) {
+			if (started) {
+				return;
+			}
+			started = true;
+		}
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				long lastChecked = System.currentTimeMillis();
+				while (true) {
+					synchronized (mutex) {
+						try {
+							if (pendingAcks.isEmpty() && unacknowledged == 0) {
+								mutex.wait();
+							} else {
+								mutex.wait(Math.max(1, ClusterConfig.clusterReliableAckInterval));
+							}
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+					}
+					try {
+						sendAcks();
+						long now = System.currentTimeMillis();
+						if (now - lastChecked >= Math.max(1, ClusterConfig.clusterReliableRetryTimeout / 4)) {
+							lastChecked = now;
+							resendEvents(now);
+						}
+					} catch (Throwable e) {
+						e.printStackTrace();
+					}
+				}
+			}
+
+		}, "Cluster Reliable Events");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Wrap events to given server with sequences.
+	 * 
+	 * @param server
+	 * @param events
+	 * @return wrapped events, or null if there are too many events not
+	 * being acknowledged by given server, then events should be rejected
+	 */
+	static ClusterEvent[] wrap(int server, ClusterEvent[] events) {
+		start();
+		long now = System.currentTimeMillis();
+		long epoch = XYZMixxer.getEpoch();
+		ReliableEvent[] wrapped = new ReliableEvent[events.length];
+		synchronized (mutex) {
+			Outbox outbox = outboxes.get(server + 1);
+			if (outbox == null) {
+				outbox = new Outbox();
+				outboxes.put(server + 1, outbox);
+			}
+			int window = ClusterConfig.clusterReliableWindow;
+			if (window > 0 && outbox.events.size() + events.length > window) {
+				if (ClusterConfig.clusterLogging) {
+					System.out.println("Cluster: Too many events not acknowledged by " + ServerId.getHost(server));
+				}
+				return null;
+			}
+			for (int i = 0; i < events.length; i++) {
+				ClusterEvent e = events[i];
+				ReliableEvent re = new ReliableEvent();
+				re.sender = e.sender;
+				re.receiver = e.receiver;
+				re.epoch = epoch;
+				re.sequence = outbox.nextSequence++;
+				re.payload = e;
+				ClusterDelivery d = e.getDelivery();
+				if (d != null) {
+					d.expectAcknowledgement();
+				}
+				outbox.events.put(re.sequence, new Unacknowledged(re, now));
+				wrapped[i] = re;
+			}
+			if (unacknowledged == 0) {
+				mutex.notify();
+			}
+			unacknowledged += events.length;
+		}
+		return wrapped;
+	}
+
+	/**
+	 * Remove wrapped events from outbox, as they are rejected by pipe and
+	 * caller is told so. Otherwise they would be resent and delivered, and
+	 * retried events by caller would be duplicated with new sequences.
+	 * 
+	 * @param server
+	 * @param wrapped events returned by {@link #wrap(int, ClusterEvent[])}
+	 */
+	static void unwrap(int server, ClusterEvent[] wrapped) {
+		synchronized (mutex) {
+			Outbox outbox = outboxes.get(server + 1);
+			if (outbox == null) {
+				return;
+			}
+			for (int i = 0; i < wrapped.length; i++) {
+				if (outbox.events.remove(((ReliableEvent) wrapped[i]).sequence) != null) {
+					unacknowledged--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Got acknowledgements from given server.
+	 * 
+	 * @param server
+	 * @param acks
+	 */
+	static void acknowledged(int server, EventAcks acks) {
+		if (acks.sequences == null || acks.epoch != XYZMixxer.getEpoch()) {
+			return; // for events sent before restarting
+		}
+		List<ClusterDelivery> deliveries = null;
+		synchronized (mutex) {
+			Outbox outbox = outboxes.get(server + 1);
+			if (outbox == null) {
+				return;
+			}
+			for (int i = 0; i < acks.sequences.length; i++) {
+				Unacknowledged u = outbox.events.remove(acks.sequences[i]);
+				if (u == null) {
+					continue;
+				}
+				unacknowledged--;
+				ClusterDelivery d = u.event.payload.getDelivery();
+				if (d != null) {
+					if (deliveries == null) {
+						deliveries = new ArrayList<ClusterDelivery>();
+					}
+					deliveries.add(d);
+				}
+			}
+		}
+		if (deliveries != null) {
+			for (int i = 0; i < deliveries.size(); i++) {
+				deliveries.get(i).acknowledged();
+			}
+		}
+	}
+
+	/**
+	 * Got given event from given server. Acknowledgement should be queued
+	 * by {@link #acknowledge(int, ReliableEvent)} after event is dealt,
+	 * even for duplicated event, as earlier acknowledgement may be lost.
+	 * 
+	 * @param server
+	 * @param e
+	 * @return true if event is not received before
+	 */
+	static boolean received(int server, ReliableEvent e) {
+		if (e.sequence <= 0) {
+			return true;
+		}
+		synchronized (mutex) {
+			Window w = windows.get(server + 1);
+			if (w == null || e.epoch > w.epoch) {
+				// New server or restarted server
+				w = new Window(e.epoch, Math.max(64, ClusterConfig.clusterReliableDedupWindow));
+				windows.put(server + 1, w);
+			} else if (e.epoch < w.epoch) {
+				return false; // from before restarting
+			}
+			long s = e.sequence;
+			if (s > w.highest) {
+				if (s - w.highest >= w.size()) {
+					for (int i = 0; i < w.bits.length; i++) {
+						w.bits[i] = 0;
+					}
+				} else {
+					for (long q = w.highest + 1; q < s; q++) {
+						w.set(q, false);
+					}
+				}
+				w.highest = s;
+				w.set(s, true);
+				return true;
+			}
+			if (s <= w.highest - w.size() || w.get(s)) {
+				return false;
+			}
+			w.set(s, true);
+			return true;
+		}
+	}
+
+	/**
+	 * Queue acknowledgement of given event to given server.
+	 * 
+	 * @param server
+	 * @param e
+	 */
+	static void acknowledge(int server, ReliableEvent e) {
+		if (e.sequence <= 0) {
+			return;
+		}
+		start();
+		synchronized (mutex) {
+			Acks acks = pendingAcks.get(server + 1);
+			if (acks == null || acks.epoch != e.epoch) {
+				if (acks == null) {
+					mutex.notify();
+				}
+				acks = new Acks(); // Acks for earlier epoch are useless
+				acks.epoch = e.epoch;
+				pendingAcks.put(server + 1, acks);
+			}
+			if (acks.count == acks.sequences.length) {
+				long[] sequences = new long[acks.count << 1];
+				System.arraycopy(acks.sequences, 0, sequences, 0, acks.count);
+				acks.sequences = sequences;
+			}
+			acks.sequences[acks.count++] = e.sequence;
+		}
+	}
+
+	private static void sendAcks() {
+		IntMap<Acks> acksMap = null;
+		synchronized (mutex) {
+			if (pendingAcks.isEmpty()) {
+				return;
+			}
+			acksMap = pendingAcks;
+			pendingAcks = new IntMap<Acks>();
+		}
+		for (int i = 0; i < acksMap.capacity(); i++) {
+			int key = acksMap.keyAt(i);
+			if (key == 0) {
+				continue; // empty bucket
+			}
+			Service2ServicePipe p = Service2ServicePipe.getPipe(key - 1);
+			if (p == null) {
+				continue; // events will be resent, and will be acknowledged later
+			}
+			Acks acks = acksMap.valueAt(i);
+			EventAcks ea = new EventAcks();
+			ea.epoch = acks.epoch;
+			ea.sequences = new long[acks.count];
+			System.arraycopy(acks.sequences, 0, ea.sequences, 0, acks.count);
+			p.pipeThrough(ea);
+		}
+	}
+
+	private static void resendEvents(long now) {
+		IntMap<List<ReliableEvent>> resending = null;
+		List<ClusterEvent> given = null;
+		long timeout = ClusterConfig.clusterReliableRetryTimeout;
+		synchronized (mutex) {
+			for (int i = 0; i < outboxes.capacity(); i++) {
+				int key = outboxes.keyAt(i);
+				if (key == 0) {
+					continue; // empty bucket
+				}
+				Outbox outbox = outboxes.valueAt(i);
+				// Attempts are only counted with pipe, events are given up
+				// after the same time without pipe
+				boolean piped = Service2ServicePipe.getPipe(key - 1) != null;
+				int maxResendings = ClusterConfig.clusterReliableMaxResendings;
+				for (Iterator<Unacknowledged> itr = outbox.events.values().iterator(); itr.hasNext();) {
+					Unacknowledged u = itr.next();
+					if (now - u.sent < timeout) {
+						continue;
+					}
+					if (u.resendings >= maxResendings
+							|| (!piped && now - u.queued >= timeout * (maxResendings + 1))) {
+						itr.remove();
+						unacknowledged--;
+						if (given == null) {
+							given = new ArrayList<ClusterEvent>();
+						}
+						given.add(u.event.payload);
+						continue;
+					}
+					if (!piped) {
+						continue;
+					}
+					u.resendings++;
+					u.sent = now;
+					if (resending == null) {
+						resending = new IntMap<List<ReliableEvent>>();
+					}
+					List<ReliableEvent> events = resending.get(key);
+					if (events == null) {
+						events = new ArrayList<ReliableEvent>();
+						resending.put(key, events);
+					}
+					events.add(u.event);
+				}
+			}
+		}
+		if (resending != null) {
+			for (int i = 0; i < resending.capacity(); i++) {
+				int key = resending.keyAt(i);
+				if (key == 0) {
+					continue; // empty bucket
+				}
+				List<ReliableEvent> events = resending.valueAt(i);
+				Service2ServicePipe p = Service2ServicePipe.getPipe(key - 1);
+				if (p == null) {
+					continue; // pipe is just removed, resent again after timeout
+				}
+				if (ClusterConfig.clusterLogging) {
+					System.out.println("Cluster: Resending " + events.size() + " events to " + ServerId.getHost(key - 1));
+				}
+				p.pipeData(events.toArray(new ReliableEvent[events.size()]));
+			}
+		}
+		if (given != null) {
+			if (ClusterConfig.clusterLogging) {
+				System.out.println("Cluster: " + given.size() + " events are not acknowledged after resending.");
+			}
+			ClusterEvent[] events = given.toArray(new ClusterEvent[given.size()]);
+			ClusterDelivery.complete(events, ClusterDelivery.UNREACHABLE);
+			XYZMixxer.runNotSentTaks(events);
+		}
+	}
+
+}
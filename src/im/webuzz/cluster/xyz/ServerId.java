@@ -0,0 +1,227 @@
+package im.webuzz.cluster.xyz;
+
+import im.webuzz.cluster.ClusterConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interned table of cluster servers.
+ * 
+ * Each server, identified by its domain and port, is given a small integer
+ * ID on first seen. IDs are never recycled, so an ID can be kept in
+ * directory records, callbacks and pipe tables instead of the server's
+ * domain string and port. Routing resolves an ID to its pipe through an
+ * array index, without building "domain:port" host strings.
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class ServerId {
+
+	/**
+	 * No server, e.g. user is disconnected.
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * Server IDs are kept in short arrays of user directory.
+	 */
+	public static final int MAX_SERVERS = Short.MAX_VALUE;
+
+	private static final Object mutex = new Object();
+
+	// domain -> IDs of all ports on that domain, no string building on looking up
+	private static final Map<String, int[]> domainIDs = new ConcurrentHashMap<String, int[]>();
+
+	private static volatile String[] domains = new String[16];
+
+	private static volatile int[] ports = new int[16];
+
+	private static volatile String[] hosts = new String[16];
+
+	private static volatile int count = 0;
+
+	private ServerId() {
+		// no instances
+	}
+
+	/**
+	 * Return ID of given server, assigning a new ID if server is not known yet.
+	 * 
+	 * @param domain
+	 * @param port
+	 * @return server ID, or {@link #NONE} for null domain
+	 */
+	public static int intern(String domain, int port) {
+		if (domain == null) {
+			return NONE;
+		}
+		int id = find(domain, port);
+		if (id != NONE) {
+			return id;
+		}
+		synchronized (mutex) {
+			id = find(domain, port);
+			if (id != NONE) {
+				return id;
+			}
+			id = count;
+			if (id >= MAX_SERVERS) {
+				if (ClusterConfig.clusterLogging) {
+					System.out.println("Cluster: Too many servers, failed to add server " + domain + ":" + port + "!");
+				}
+				return NONE;
+			}
+			String[] ds = domains;
+			int[] ps = ports;
+			String[] hs = hosts;
+			if (id >= ds.length) {
+				int length = Math.min(ds.length << 1, MAX_SERVERS);
+				String[] newDomains = new String[length];
+				System.arraycopy(ds, 0, newDomains, 0, id);
+				int[] newPorts = new int[length];
+				System.arraycopy(ps, 0, newPorts, 0, id);
+				String[] newHosts = new String[length];
+				System.arraycopy(hs, 0, newHosts, 0, id);
+				ds = newDomains;
+				ps = newPorts;
+				hs = newHosts;
+			}
+			ds[id] = domain;
+			ps[id] = port;
+			hs[id] = port == 80 ? domain : (domain + ":" + port);
+			hosts = hs;
+			ports = ps;
+			domains = ds;
+			int[] ids = domainIDs.get(domain);
+			int[] newIDs = null;
+			if (ids == null) {
+				newIDs = new int[] { id };
+			} else {
+				newIDs = new int[ids.length + 1];
+				System.arraycopy(ids, 0, newIDs, 0, ids.length);
+				newIDs[ids.length] = id;
+			}
+			domainIDs.put(domain, newIDs);
+			count = id + 1;
+			return id;
+		}
+	}
+
+	/**
+	 * Return ID of given server, without assigning new ID.
+	 * 
+	 * @param domain
+	 * @param port
+	 * @return server ID, or {@link #NONE} if server is not known
+	 */
+	public static int find(String domain, int port) {
+		if (domain == null) {
+			return NONE;
+		}
+		int[] ids = domainIDs.get(domain);
+		if (ids == null) {
+			return NONE;
+		}
+		int[] ps = ports;
+		for (int i = 0; i < ids.length; i++) {
+			int id = ids[i];
+			if (ps[id] == port) {
+				return id;
+			}
+		}
+		return NONE;
+	}
+
+	public static String getDomain(int id) {
+		if (id < 0 || id >= count) {
+			return null;
+		}
+		return domains[id];
+	}
+
+	public static int getPort(int id) {
+		if (id < 0 || id >= count) {
+			return -1;
+		}
+		return ports[id];
+	}
+
+	/**
+	 * Return host of given server, format: <Server IP>[:<Server Port>]. For
+	 * port 80, port is omitted. Host string is built only once.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public static String getHost(int id) {
+		if (id < 0 || id >= count) {
+			return null;
+		}
+		return hosts[id];
+	}
+
+	/**
+	 * Return ID of given host, format: <Server IP>[:<Server Port>].
+	 * 
+	 * @param host
+	 * @return
+	 */
+	public static int fromHost(String host) {
+		if (host == null) {
+			return NONE;
+		}
+		int port = 80;
+		String domain = host;
+		int index = host.lastIndexOf(':');
+		if (index > 0 && index < host.length() - 1) {
+			try {
+				port = Integer.parseInt(host.substring(index + 1));
+				domain = host.substring(0, index);
+			} catch (NumberFormatException e) {
+				port = 80;
+			}
+		}
+		return intern(domain, port);
+	}
+
+	/**
+	 * Return ID of this server.
+	 * @return
+	 */
+	public static int local() {
+		return intern(ClusterConfig.clusterServerIP, ClusterConfig.port);
+	}
+
+	public static boolean isLocal(int id) {
+		return id >= 0 && id < count && ports[id] == ClusterConfig.port && ClusterConfig.clusterServerIP != null
+				&& ClusterConfig.clusterServerIP.equals(domains[id]);
+	}
+
+	/**
+	 * Return the interned domain string of given server. Domain strings of
+	 * deserialized events should be replaced by interned one before being
+	 * kept in memory, so duplicated strings are released.
+	 * 
+	 * @param domain
+	 * @param port
+	 * @return
+	 */
+	public static String canonicalDomain(String domain, int port) {
+		int id = intern(domain, port);
+		if (id == NONE) {
+			return domain;
+		}
+		return domains[id];
+	}
+
+	/**
+	 * Count of all known servers. Valid IDs are in [0, count).
+	 * @return
+	 */
+	public static int count() {
+		return count;
+	}
+
+}
@@ -0,0 +1,54 @@
+package im.webuzz.cluster.xyz;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of synchronizing slots from a remote primary server.
+ * 
+ * Slots are requested in a window of concurrent requests. Each finished
+ * slot claims the next not requested slot, until all slots are claimed.
+ * A failed slot is retried by itself without blocking other slots.
+ * 
+ * @author zhourenjian
+ *
+ */
+final class SlotSynchronizing {
+
+	final String remoteHost;
+	final boolean syncMode;
+	final int startingSlot;
+	final long started;
+
+	private final AtomicInteger nextSlot;
+	private final AtomicInteger syncedSlots = new AtomicInteger(0);
+
+	SlotSynchronizing(String remoteHost, boolean syncMode, int startingSlot) {
+		this.remoteHost = remoteHost;
+		this.syncMode = syncMode;
+		this.startingSlot = startingSlot;
+		this.started = System.currentTimeMillis();
+		this.nextSlot = new AtomicInteger(startingSlot);
+	}
+
+	/**
+	 * Claim next slot to synchronize.
+	 * @return slot, or -1 if all slots are claimed
+	 */
+	int claimSlot() {
+		int slot = nextSlot.getAndIncrement();
+		return slot < XYZMixxer.SLOTS ? slot : -1;
+	}
+
+	/**
+	 * Mark one slot as synchronized.
+	 * @return count of synchronized slots, including given slot
+	 */
+	int slotSynchronized() {
+		return syncedSlots.incrementAndGet();
+	}
+
+	int totalSlots() {
+		return XYZMixxer.SLOTS - startingSlot;
+	}
+
+}
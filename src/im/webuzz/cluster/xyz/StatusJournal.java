@@ -0,0 +1,542 @@
+package im.webuzz.cluster.xyz;
+
+import im.webuzz.cluster.ClusterConfig;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of user status changes on primary server.
+ * 
+ * Status changes are appended into an in-memory queue, which is cheap
+ * enough to be called with slot mutex being held. A writer thread drains
+ * the queue and writes all queued records as one frame, then forces it to
+ * disk (group commit), so slot mutexes never wait for disk.
+ * 
+ * Journal is split into segment files, named by the sequence of their first
+ * records. A new segment is started on exceeding
+ * {@link ClusterConfig#clusterJournalSegmentSize}, and on every start, so
+ * a torn tail of last run is never appended. Each frame has its length and
+ * CRC32, reading stops at the first broken frame.
+ * 
+ * Server IDs are only valid in one run. Each frame defines servers before
+ * their first use, and readers get server IDs of the current run.
+ * 
+ * Journal is compacted by directory snapshots. Segments older than last
+ * snapshot are deleted, except the latest
+ * {@link ClusterConfig#clusterJournalRetainedSegments} segments which are
+ * kept for tailing, see {@link #read(long, int, IJournalReader)}. Journal
+ * is only enabled with snapshots, otherwise segments are never compacted.
+ * 
+ * Frame layout:
+ * <pre>
+ * int payload length, int CRC32 of payload, payload
+ * payload: { byte 1, long seq, int uid, short server, byte status, int time }
+ *       or { byte 2, short server, short domain length, domain bytes, int port }
+ * </pre>
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class StatusJournal {
+
+	/**
+	 * Reader of journal records, see {@link StatusJournal#read(long, int, IJournalReader)}.
+	 */
+	public static interface IJournalReader {
+
+		/**
+		 * @param seq sequence of this record
+		 * @param uid
+		 * @param server server ID of this run, or {@link ServerId#NONE}
+		 * @param status status, or {@link StatusJournal#REMOVED} for removed user
+		 * @param time
+		 */
+		public void statusChanged(long seq, int uid, int server, int status, long time);
+
+	}
+
+	/**
+	 * Status of user record being removed.
+	 */
+	public static final int REMOVED = -1;
+
+	private static final byte TYPE_STATUS = 1;
+
+	private static final byte TYPE_SERVER = 2;
+
+	private static final int STATUS_SIZE = 1 + 8 + 4 + 2 + 1 + 4;
+
+	private static final String PREFIX = "status-";
+
+	private static final String SUFFIX = ".journal";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Object queueMutex = new Object();
+
+	// queued records, guarded by queueMutex
+	private static int[] queuedUIDs = new int[1024];
+	private static short[] queuedServers = new short[1024];
+	private static byte[] queuedStatuses = new byte[1024];
+	private static int[] queuedTimes = new int[1024];
+	private static int queuedSize = 0;
+
+	// sequence of last appended record, guarded by queueMutex
+	private static long lastSeq = 0;
+
+	// sequence of last record written to disk
+	private static volatile long committedSeq = 0;
+
+	private static volatile File directory;
+
+	private static volatile boolean running = false;
+
+	// Following fields are only accessed by writer thread
+	private static RandomAccessFile segment;
+
+	private static long segmentSize;
+
+	private StatusJournal() {
+		// no instances
+	}
+
+	/**
+	 * Open journal in given directory. Sequence is continued from existing
+	 * segments, or from given snapshot sequence if it is higher, e.g. the
+	 * journal tail is lost, so new records are never replayed as older ones.
+	 * Records are not appended until {@link #start()}.
+	 * 
+	 * @param dir
+	 * @param snapshotSeq sequence of loaded snapshot, or -1
+	 * @return sequence to be continued from
+	 */
+	public static long open(File dir, long snapshotSeq) {
+		if (!dir.exists() && !dir.mkdirs()) {
+			if (ClusterConfig.clusterLogging) {
+				System.out.println("Cluster: Failed to create journal directory " + dir + "!");
+			}
+			return -1;
+		}
+		File[] segments = listSegments(dir);
+		long seq = 0;
+		if (segments.length > 0) {
+			// Last segment may be empty or broken, scan backward
+			for (int i = segments.length - 1; i >= 0 && seq == 0; i--) {
+				final long[] last = new long[] { 0 };
+				readSegment(segments[i], 0, Integer.MAX_VALUE, new IJournalReader() {
+
+					@Override
+					public void statusChanged(long seq, int uid, int server, int status, long time) {
+						last[0] = seq;
+					}
+
+				});
+				seq = last[0];
+			}
+		}
+		seq = Math.max(seq, snapshotSeq);
+		synchronized (queueMutex) {
+			lastSeq = seq;
+		}
+		committedSeq = seq;
+		directory = dir;
+		return seq;
+	}
+
+	/**
+	 * Start writer thread. Status changes are appended from now on.
+	 */
+	public static void start() {
+		if (directory == null || running) {
+			return;
+		}
+		running = true;
+		Thread writingThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (running) {
+					synchronized (queueMutex) {
+						if (queuedSize == 0) {
+							try {
+								queueMutex.wait(Math.max(1, ClusterConfig.clusterJournalCommitInterval));
+							} catch (InterruptedException e) {
+								e.printStackTrace();
+							}
+						}
+					}
+					try {
+						commit();
+					} catch (Throwable e) {
+						e.printStackTrace();
+					}
+				}
+			}
+
+		}, "Cluster Status Journal Writer");
+		writingThread.setDaemon(true);
+		writingThread.start();
+	}
+
+	public static boolean isEnabled() {
+		return running;
+	}
+
+	/**
+	 * Sequence of last record on disk. Snapshot should record this sequence,
+	 * as appended records may be lost on crashing.
+	 * @return
+	 */
+	public static long committedSequence() {
+		return committedSeq;
+	}
+
+	/**
+	 * Append status change. Could be called with slot mutex being held.
+	 * 
+	 * @param uid
+	 * @param server
+	 * @param status status, or {@link #REMOVED}
+	 * @param time
+	 */
+	public static void append(int uid, int server, int status, long time) {
+		if (!running) {
+			return;
+		}
+		synchronized (queueMutex) {
+			int size = queuedSize;
+			if (size == queuedUIDs.length) {
+				int length = size << 1;
+				queuedUIDs = Arrays.copyOf(queuedUIDs, length);
+				queuedServers = Arrays.copyOf(queuedServers, length);
+				queuedStatuses = Arrays.copyOf(queuedStatuses, length);
+				queuedTimes = Arrays.copyOf(queuedTimes, length);
+			}
+			queuedUIDs[size] = uid;
+			queuedServers[size] = (short) server;
+			queuedStatuses[size] = (byte) status;
+			queuedTimes[size] = UserDirectory.toRelativeTime(time);
+			queuedSize = size + 1;
+			lastSeq++;
+		}
+	}
+
+	/*
+	 * Write all queued records as one frame, and force it to disk.
+	 */
+	private static void commit() throws IOException {
+		int[] uids;
+		short[] servers;
+		byte[] statuses;
+		int[] times;
+		int size;
+		long firstSeq;
+		synchronized (queueMutex) {
+			size = queuedSize;
+			if (size == 0) {
+				return;
+			}
+			uids = queuedUIDs;
+			servers = queuedServers;
+			statuses = queuedStatuses;
+			times = queuedTimes;
+			firstSeq = lastSeq - size + 1;
+			int length = Math.max(1024, size);
+			queuedUIDs = new int[length];
+			queuedServers = new short[length];
+			queuedStatuses = new byte[length];
+			queuedTimes = new int[length];
+			queuedSize = 0;
+		}
+		if (segment == null || segmentSize >= ClusterConfig.clusterJournalSegmentSize) {
+			rollSegment(firstSeq);
+		}
+		// Servers are defined before their first use in each frame, so frames
+		// are self-contained for tailing readers.
+		int payloadSize = size * STATUS_SIZE;
+		byte[][] domains = new byte[ServerId.count()][];
+		for (int i = 0; i < size; i++) {
+			int server = servers[i];
+			if (server >= 0 && server < domains.length && domains[server] == null) {
+				String domain = ServerId.getDomain(server);
+				domains[server] = domain == null ? new byte[0] : domain.getBytes(UTF8);
+				payloadSize += 1 + 2 + 2 + domains[server].length + 4;
+			}
+		}
+		ByteBuffer frame = ByteBuffer.allocate(4 + 4 + payloadSize);
+		frame.position(8);
+		boolean[] defined = new boolean[domains.length];
+		for (int i = 0; i < size; i++) {
+			int server = servers[i];
+			if (server >= 0 && server < domains.length && !defined[server]) {
+				defined[server] = true;
+				byte[] bytes = domains[server];
+				frame.put(TYPE_SERVER);
+				frame.putShort((short) server);
+				frame.putShort((short) bytes.length);
+				frame.put(bytes);
+				frame.putInt(ServerId.getPort(server));
+			}
+			frame.put(TYPE_STATUS);
+			frame.putLong(firstSeq + i);
+			frame.putInt(uids[i]);
+			frame.putShort(servers[i]);
+			frame.put(statuses[i]);
+			frame.putInt(times[i]);
+		}
+		int length = frame.position();
+		CRC32 crc = new CRC32();
+		crc.update(frame.array(), 8, length - 8);
+		frame.putInt(0, length - 8);
+		frame.putInt(4, (int) crc.getValue());
+		frame.limit(length);
+		frame.position(0);
+		FileChannel channel = segment.getChannel();
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+		channel.force(false);
+		segmentSize += length;
+		committedSeq = firstSeq + size - 1;
+	}
+
+	private static void rollSegment(long firstSeq) throws IOException {
+		if (segment != null) {
+			segment.getChannel().force(true);
+			segment.close();
+			segment = null;
+		}
+		File file = new File(directory, segmentName(firstSeq));
+		segment = new RandomAccessFile(file, "rw");
+		// Existing segment of the same name has no valid records, as all its
+		// records are after the last valid sequence, drop its torn frames
+		segment.setLength(0);
+		segmentSize = 0;
+	}
+
+	private static String segmentName(long firstSeq) {
+		String seq = String.valueOf(firstSeq);
+		StringBuilder builder = new StringBuilder(PREFIX);
+		for (int i = seq.length(); i < 20; i++) {
+			builder.append('0');
+		}
+		return builder.append(seq).append(SUFFIX).toString();
+	}
+
+	private static long firstSequenceOf(File segment) {
+		String name = segment.getName();
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static File[] listSegments(File dir) {
+		File[] files = dir.listFiles(new FileFilter() {
+
+			@Override
+			public boolean accept(File file) {
+				String name = file.getName();
+				return file.isFile() && name.startsWith(PREFIX) && name.endsWith(SUFFIX)
+						&& firstSequenceOf(file) >= 0;
+			}
+
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		// Names are zero-padded, sorted by names is sorted by sequences
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Read records after given sequence, in order, e.g. for replicas tailing
+	 * journal. Only records on disk are read. Records older than retained
+	 * segments may be compacted, readers falling behind should start over
+	 * from a snapshot.
+	 * 
+	 * @param afterSeq sequence of last read record, or 0
+	 * @param maxCount max records to read
+	 * @param reader
+	 * @return sequence of last read record, or given sequence if there are
+	 * no new records
+	 */
+	public static long read(long afterSeq, int maxCount, IJournalReader reader) {
+		File dir = directory;
+		if (dir == null) {
+			return afterSeq;
+		}
+		File[] segments = listSegments(dir);
+		int start = 0;
+		for (int i = 1; i < segments.length; i++) {
+			if (firstSequenceOf(segments[i]) <= afterSeq + 1) {
+				start = i; // earlier segments only have older records
+			}
+		}
+		final long[] last = new long[] { afterSeq };
+		final int[] count = new int[] { 0 };
+		final IJournalReader r = reader;
+		for (int i = start; i < segments.length && count[0] < maxCount; i++) {
+			readSegment(segments[i], afterSeq, maxCount - count[0], new IJournalReader() {
+
+				@Override
+				public void statusChanged(long seq, int uid, int server, int status, long time) {
+					last[0] = seq;
+					count[0]++;
+					r.statusChanged(seq, uid, server, status, time);
+				}
+
+			});
+		}
+		return last[0];
+	}
+
+	/**
+	 * Replay records after given sequence into user directory.
+	 * 
+	 * @param afterSeq sequence of loaded snapshot, or 0
+	 * @return count of replayed records
+	 */
+	public static int replay(long afterSeq) {
+		final int[] count = new int[] { 0 };
+		read(afterSeq, Integer.MAX_VALUE, new IJournalReader() {
+
+			@Override
+			public void statusChanged(long seq, int uid, int server, int status, long time) {
+				int slot = uid & XYZMixxer.SLOTS_MASKS;
+				synchronized (XYZMixxer.statusMutex[slot]) {
+					UserDirectory dir = XYZMixxer.allStatuses[slot];
+					if (status == REMOVED) {
+						dir.remove(uid);
+					} else {
+						dir.put(uid, server, status, time);
+					}
+				}
+				count[0]++;
+			}
+
+		});
+		return count[0];
+	}
+
+	/*
+	 * Read valid frames of given segment, stop at the first broken frame.
+	 */
+	private static int readSegment(File file, long afterSeq, int maxCount, IJournalReader reader) {
+		RandomAccessFile raf = null;
+		int count = 0;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			long length = raf.length();
+			if (length == 0 || length > Integer.MAX_VALUE) {
+				return 0;
+			}
+			MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			int[] serverIDs = new int[16];
+			Arrays.fill(serverIDs, ServerId.NONE);
+			CRC32 crc = new CRC32();
+			while (b.remaining() >= 8 && count < maxCount) {
+				int payloadSize = b.getInt();
+				int checksum = b.getInt();
+				if (payloadSize <= 0 || payloadSize > b.remaining()) {
+					break; // torn tail
+				}
+				ByteBuffer payload = b.slice();
+				payload.limit(payloadSize);
+				crc.reset();
+				crc.update(payload.duplicate());
+				if ((int) crc.getValue() != checksum) {
+					if (ClusterConfig.clusterLogging) {
+						System.out.println("Cluster: Journal " + file + " is broken at " + b.position() + "!");
+					}
+					break;
+				}
+				b.position(b.position() + payloadSize);
+				while (payload.hasRemaining() && count < maxCount) {
+					byte type = payload.get();
+					if (type == TYPE_SERVER) {
+						int id = payload.getShort();
+						byte[] bytes = new byte[payload.getShort() & 0xffff];
+						payload.get(bytes);
+						int port = payload.getInt();
+						if (id >= serverIDs.length) {
+							int oldLength = serverIDs.length;
+							serverIDs = Arrays.copyOf(serverIDs, Math.max(id + 1, oldLength << 1));
+							Arrays.fill(serverIDs, oldLength, serverIDs.length, ServerId.NONE);
+						}
+						serverIDs[id] = ServerId.intern(new String(bytes, UTF8), port);
+					} else if (type == TYPE_STATUS) {
+						long seq = payload.getLong();
+						int uid = payload.getInt();
+						int server = payload.getShort();
+						int status = payload.get();
+						long time = UserDirectory.toAbsoluteTime(payload.getInt());
+						if (seq <= afterSeq) {
+							continue;
+						}
+						if (server >= 0) {
+							server = server < serverIDs.length ? serverIDs[server] : ServerId.NONE;
+						} else {
+							server = ServerId.NONE;
+						}
+						reader.statusChanged(seq, uid, server, status, time);
+						count++;
+					} else {
+						break; // unknown record
+					}
+				}
+			}
+		} catch (Exception e) {
+			// IOException, or BufferUnderflowException for broken files
+			e.printStackTrace();
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Delete segments whose records are all covered by snapshot of given
+	 * sequence, keeping the latest retained segments for tailing.
+	 * 
+	 * @param snapshotSeq
+	 * @return count of deleted segments
+	 */
+	public static int compact(long snapshotSeq) {
+		File dir = directory;
+		if (dir == null) {
+			return 0;
+		}
+		File[] segments = listSegments(dir);
+		int deletable = segments.length - Math.max(1, ClusterConfig.clusterJournalRetainedSegments);
+		int count = 0;
+		for (int i = 0; i < deletable; i++) {
+			// Records of a segment are before the first record of next segment
+			if (firstSequenceOf(segments[i + 1]) - 1 > snapshotSeq) {
+				break;
+			}
+			if (segments[i].delete()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,195 @@
+package im.webuzz.cluster.xyz;
+
+/**
+ * Open addressing hash set with primitive int elements, each with a time
+ * of being added. Same probing and deletion as {@link IntMap}.
+ * 
+ * Element 0 is reserved for empty buckets, adding 0 is silently ignored.
+ * 
+ * Not thread safe. Callers should synchronize on the slot mutex.
+ * 
+ * @author zhourenjian
+ *
+ */
+public class TimedIntSet {
+
+	private static final int EMPTY = IntMap.EMPTY;
+
+	private int[] keys;
+
+	private long[] times;
+
+	private int size;
+
+	private int mask;
+
+	private int threshold;
+
+	public TimedIntSet() {
+		this(16);
+	}
+
+	public TimedIntSet(int initialCapacity) {
+		allocate(IntMap.tableSizeFor(initialCapacity));
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		times = new long[capacity];
+		mask = capacity - 1;
+		threshold = (capacity >> 2) * 3;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private int indexOf(int key) {
+		if (key == EMPTY) {
+			return -1;
+		}
+		int[] ks = keys;
+		int m = mask;
+		int pos = IntMap.hash(key) & m;
+		int k;
+		while ((k = ks[pos]) != EMPTY) {
+			if (k == key) {
+				return pos;
+			}
+			pos = (pos + 1) & m;
+		}
+		return -1;
+	}
+
+	public boolean contains(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @param key
+	 * @return time of given element, or -1 if element is not in this set
+	 */
+	public long timeOf(int key) {
+		int pos = indexOf(key);
+		return pos < 0 ? -1 : times[pos];
+	}
+
+	/**
+	 * Add element, or update its time if element exists already.
+	 * 
+	 * @param key
+	 * @param time
+	 * @return true if key is added, false if key exists already
+	 */
+	public boolean put(int key, long time) {
+		if (key == EMPTY) {
+			return false;
+		}
+		int[] ks = keys;
+		int m = mask;
+		int pos = IntMap.hash(key) & m;
+		int k;
+		while ((k = ks[pos]) != EMPTY) {
+			if (k == key) {
+				times[pos] = time;
+				return false;
+			}
+			pos = (pos + 1) & m;
+		}
+		ks[pos] = key;
+		times[pos] = time;
+		if (++size > threshold) {
+			rehash(keys.length << 1);
+		}
+		return true;
+	}
+
+	public boolean remove(int key) {
+		int pos = indexOf(key);
+		if (pos < 0) {
+			return false;
+		}
+		shiftKeys(pos);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Remove elements added before given time.
+	 * 
+	 * @param time
+	 * @return count of removed elements
+	 */
+	public int removeBefore(long time) {
+		if (size == 0) {
+			return 0;
+		}
+		int count = 0;
+		int[] ks = keys;
+		int pos = 0;
+		while (pos < ks.length) {
+			if (ks[pos] != EMPTY && times[pos] < time) {
+				// Following entry may be shifted into this bucket, check again
+				shiftKeys(pos);
+				size--;
+				count++;
+				continue;
+			}
+			pos++;
+		}
+		return count;
+	}
+
+	/*
+	 * Backward shift deletion, see IntMap#shiftKeys
+	 */
+	private void shiftKeys(int pos) {
+		int[] ks = keys;
+		long[] ts = times;
+		int m = mask;
+		int last, slot, k;
+		while (true) {
+			last = pos;
+			pos = (pos + 1) & m;
+			while (true) {
+				if ((k = ks[pos]) == EMPTY) {
+					ks[last] = EMPTY;
+					return;
+				}
+				slot = IntMap.hash(k) & m;
+				if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+					break;
+				}
+				pos = (pos + 1) & m;
+			}
+			ks[last] = k;
+			ts[last] = ts[pos];
+		}
+	}
+
+	private void rehash(int newCapacity) {
+		int[] oldKeys = keys;
+		long[] oldTimes = times;
+		allocate(newCapacity);
+		int[] ks = keys;
+		long[] ts = times;
+		int m = mask;
+		for (int i = 0; i < oldKeys.length; i++) {
+			int k = oldKeys[i];
+			if (k == EMPTY) {
+				continue;
+			}
+			int pos = IntMap.hash(k) & m;
+			while (ks[pos] != EMPTY) {
+				pos = (pos + 1) & m;
+			}
+			ks[pos] = k;
+			ts[pos] = oldTimes[i];
+		}
+	}
+
+}
@@ -0,0 +1,345 @@
+package im.webuzz.cluster.xyz;
+
+/**
+ * Compact encoding of user locations in a slot, and of server indexes.
+ * 
+ * User locations, (uid - slot) >> slot bits, are split by their higher 16
+ * bits into containers, like roaring bitmaps. Each container is encoded as
+ * the smallest of:
+ * 1. Sorted array, lower 16 bits as varint deltas, for sparse containers;
+ * 2. Bitmap of 8KB, for dense containers;
+ * 3. Runs of consecutive locations, as varint start deltas and lengths.
+ * 
+ * A nearly empty slot costs a few bytes, instead of a bit map sized by
+ * ClusterConfig#clusterMaxUsers.
+ * 
+ * Server indexes are encoded as varint runs of the same index, as online
+ * users of a slot are mostly on a few servers.
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class UserBitmap {
+
+	static final byte VERSION = 1;
+
+	static final byte ARRAY = 1;
+	static final byte BITMAP = 2;
+	static final byte RUN = 3;
+
+	private static final int BITMAP_BYTES = 8192; // 65536 bits
+
+	private byte[] buffer;
+
+	private int length;
+
+	private UserBitmap(int capacity) {
+		buffer = new byte[Math.max(16, capacity)];
+	}
+
+	private void ensure(int more) {
+		if (length + more > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(buffer.length << 1, length + more)];
+			System.arraycopy(buffer, 0, newBuffer, 0, length);
+			buffer = newBuffer;
+		}
+	}
+
+	private void writeByte(int b) {
+		ensure(1);
+		buffer[length++] = (byte) b;
+	}
+
+	private void writeVarint(int v) {
+		ensure(5);
+		while ((v & ~0x7f) != 0) {
+			buffer[length++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buffer[length++] = (byte) v;
+	}
+
+	private byte[] toByteArray() {
+		byte[] bytes = new byte[length];
+		System.arraycopy(buffer, 0, bytes, 0, length);
+		return bytes;
+	}
+
+	static int varintSize(int v) {
+		int size = 1;
+		while ((v & ~0x7f) != 0) {
+			size++;
+			v >>>= 7;
+		}
+		return size;
+	}
+
+	/**
+	 * Encode locations.
+	 * 
+	 * @param locations non-negative, ascending and distinct
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public static byte[] encode(int[] locations, int from, int to) {
+		UserBitmap out = new UserBitmap((to - from) + 16);
+		out.writeByte(VERSION);
+		int containers = 0;
+		for (int i = from; i < to; ) {
+			int high = locations[i] >>> 16;
+			while (i < to && (locations[i] >>> 16) == high) {
+				i++;
+			}
+			containers++;
+		}
+		out.writeVarint(containers);
+		int lastHigh = 0;
+		int start = from;
+		while (start < to) {
+			int high = locations[start] >>> 16;
+			int end = start;
+			int arraySize = 0;
+			int runs = 0;
+			int runSize = 0;
+			int lastLow = 0;
+			int runEnd = 0; // next location after last run
+			int runStart = -1;
+			while (end < to && (locations[end] >>> 16) == high) {
+				int low = locations[end] & 0xffff;
+				arraySize += varintSize(end == start ? low : low - lastLow);
+				if (runStart < 0 || low != lastLow + 1) {
+					if (runStart >= 0) {
+						runSize += varintSize(runStart - runEnd) + varintSize(lastLow - runStart);
+						runEnd = lastLow + 1;
+					}
+					runStart = low;
+					runs++;
+				}
+				lastLow = low;
+				end++;
+			}
+			runSize += varintSize(runStart - runEnd) + varintSize(lastLow - runStart);
+			runSize += varintSize(runs);
+			out.writeVarint(high - lastHigh);
+			lastHigh = high;
+			int cardinality = end - start;
+			if (runSize <= arraySize && runSize < BITMAP_BYTES) {
+				out.writeByte(RUN);
+				out.writeVarint(cardinality - 1);
+				out.writeVarint(runs);
+				int prevEnd = 0;
+				int i = start;
+				while (i < end) {
+					int first = locations[i] & 0xffff;
+					int last = first;
+					i++;
+					while (i < end && (locations[i] & 0xffff) == last + 1) {
+						last++;
+						i++;
+					}
+					out.writeVarint(first - prevEnd);
+					out.writeVarint(last - first);
+					prevEnd = last + 1;
+				}
+			} else if (arraySize < BITMAP_BYTES) {
+				out.writeByte(ARRAY);
+				out.writeVarint(cardinality - 1);
+				int prev = 0;
+				for (int i = start; i < end; i++) {
+					int low = locations[i] & 0xffff;
+					out.writeVarint(low - prev);
+					prev = low;
+				}
+			} else {
+				out.writeByte(BITMAP);
+				out.writeVarint(cardinality - 1);
+				out.ensure(BITMAP_BYTES);
+				int base = out.length;
+				for (int i = start; i < end; i++) {
+					int low = locations[i] & 0xffff;
+					out.buffer[base + (low >>> 3)] |= 1 << (low & 0x7);
+				}
+				out.length += BITMAP_BYTES;
+			}
+			start = end;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode locations encoded by {@link #encode(int[], int, int)}.
+	 * 
+	 * @param data
+	 * @return ascending locations
+	 * @throws RuntimeException if data is malformed
+	 */
+	public static int[] decode(byte[] data) {
+		Reader in = new Reader(data);
+		if (in.readByte() != VERSION) {
+			throw new IllegalArgumentException("Unknown user bitmap version");
+		}
+		int containers = in.readVarint();
+		// Decoding twice, first for counting, avoiding growing arrays
+		int total = 0;
+		int mark = in.pos;
+		for (int c = 0; c < containers; c++) {
+			in.readVarint(); // high delta
+			int type = in.readByte();
+			int cardinality = in.readVarint() + 1;
+			if (cardinality <= 0 || cardinality > 65536) {
+				throw new IllegalArgumentException("Malformed user bitmap");
+			}
+			total += cardinality;
+			in.skip(type, cardinality);
+		}
+		int[] locations = new int[total];
+		int count = 0;
+		in.pos = mark;
+		int high = 0;
+		for (int c = 0; c < containers; c++) {
+			high += in.readVarint();
+			int base = high << 16;
+			int type = in.readByte();
+			int cardinality = in.readVarint() + 1;
+			if (type == ARRAY) {
+				int low = 0;
+				for (int i = 0; i < cardinality; i++) {
+					low += in.readVarint();
+					locations[count++] = base + low;
+				}
+			} else if (type == BITMAP) {
+				int offset = in.pos;
+				in.pos += BITMAP_BYTES;
+				for (int i = 0; i < BITMAP_BYTES; i++) {
+					int b = data[offset + i] & 0xff;
+					while (b != 0) {
+						int bit = Integer.numberOfTrailingZeros(b);
+						locations[count++] = base + (i << 3) + bit;
+						b &= b - 1;
+					}
+				}
+			} else { // RUN
+				int runs = in.readVarint();
+				int prevEnd = 0;
+				for (int r = 0; r < runs; r++) {
+					int first = prevEnd + in.readVarint();
+					int last = first + in.readVarint();
+					for (int low = first; low <= last; low++) {
+						locations[count++] = base + low;
+					}
+					prevEnd = last + 1;
+				}
+			}
+		}
+		if (count != total) {
+			throw new IllegalArgumentException("Malformed user bitmap");
+		}
+		return locations;
+	}
+
+	/**
+	 * Encode values as runs of the same value.
+	 * 
+	 * @param values values, not less than -1
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public static byte[] encodeRuns(int[] values, int from, int to) {
+		UserBitmap out = new UserBitmap(16);
+		out.writeVarint(to - from);
+		int i = from;
+		while (i < to) {
+			int v = values[i];
+			int end = i + 1;
+			while (end < to && values[end] == v) {
+				end++;
+			}
+			out.writeVarint(v + 1); // -1 as 0
+			out.writeVarint(end - i - 1);
+			i = end;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode values encoded by {@link #encodeRuns(int[], int, int)}.
+	 * 
+	 * @param data
+	 * @return
+	 * @throws IllegalArgumentException if data is malformed
+	 */
+	public static int[] decodeRuns(byte[] data) {
+		Reader in = new Reader(data);
+		int total = in.readVarint();
+		if (total < 0 || total > data.length * 128L) {
+			throw new IllegalArgumentException("Malformed runs");
+		}
+		int[] values = new int[total];
+		int count = 0;
+		while (count < total) {
+			int v = in.readVarint() - 1;
+			int length = in.readVarint() + 1;
+			if (length > total - count) {
+				throw new IllegalArgumentException("Malformed runs");
+			}
+			for (int i = 0; i < length; i++) {
+				values[count++] = v;
+			}
+		}
+		return values;
+	}
+
+	private static final class Reader {
+
+		final byte[] data;
+
+		int pos;
+
+		Reader(byte[] data) {
+			this.data = data;
+		}
+
+		int readByte() {
+			if (pos >= data.length) {
+				throw new IllegalArgumentException("Unexpected end of data");
+			}
+			return data[pos++];
+		}
+
+		int readVarint() {
+			int v = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = readByte();
+				v |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+
+		void skip(int type, int cardinality) {
+			if (type == ARRAY) {
+				for (int i = 0; i < cardinality; i++) {
+					readVarint();
+				}
+			} else if (type == BITMAP) {
+				if (pos + BITMAP_BYTES > data.length) {
+					throw new IllegalArgumentException("Unexpected end of data");
+				}
+				pos += BITMAP_BYTES;
+			} else if (type == RUN) {
+				int runs = readVarint();
+				for (int i = 0; i < runs + runs; i++) {
+					readVarint();
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown container type " + type);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,516 @@
+package im.webuzz.cluster.xyz;
+
+import im.webuzz.cluster.ClusterConfig;
+import im.webuzz.cluster.events.UserResult;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Cached user results of one slot on service server.
+ * 
+ * Cache is bounded by {@link ClusterConfig#clusterUserCacheMaxSize}. On
+ * exceeding, least recently used entries are evicted, approximated by CLOCK
+ * algorithm with a referenced bit per entry. Users logging in from this
+ * server (lastUpdated == -1) are never evicted or expired.
+ * 
+ * Entries expire after {@link ClusterConfig#clusterUserCachingTime}. Expiring
+ * is driven by a timer wheel, see {@link #expire(long)}, instead of checking
+ * entries lazily, so expired entries are released even if they are never
+ * looked up again.
+ * 
+ * Entries are located by open addressing, same as {@link IntMap}. Not thread
+ * safe, all callers should synchronize on the slot mutex, except
+ * {@link #peek(int)}. As results may be peeked while being updated, cached
+ * results are never modified in place, updated results are put instead.
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class UserCache {
+
+	private static final int EMPTY = IntMap.EMPTY;
+
+	/**
+	 * Buckets of timer wheel. Entries expiring beyond one round are checked
+	 * and scheduled again.
+	 */
+	private static final int WHEEL_SIZE = 64;
+
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	private static final LongAdder hits = new LongAdder();
+
+	private static final LongAdder misses = new LongAdder();
+
+	private static final LongAdder evictions = new LongAdder();
+
+	private static final LongAdder expirations = new LongAdder();
+
+	private int[] keys;
+
+	private UserResult[] values;
+
+	private byte[] referenced;
+
+	// Entries of users logging in from this server, not counted against maxSize
+	private boolean[] pins;
+
+	private int size;
+
+	private int pinned;
+
+	private int mask;
+
+	private int threshold;
+
+	private int maxSize;
+
+	// CLOCK hand
+	private int hand;
+
+	// user IDs scheduled in each wheel bucket
+	private int[][] wheel = new int[WHEEL_SIZE][];
+
+	private int[] wheelSizes = new int[WHEEL_SIZE];
+
+	private long lastTick = -1;
+
+	/*
+	 * Sequence for validating optimistic reads, see IntMap#sequence.
+	 */
+	private final StampedLock sequence = new StampedLock();
+
+	/**
+	 * @param initialCapacity
+	 * @param maxSize maximum entries, not including users logging in from
+	 * this server
+	 */
+	public UserCache(int initialCapacity, int maxSize) {
+		this.maxSize = maxSize;
+		allocate(IntMap.tableSizeFor(Math.min(initialCapacity, maxSize)));
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new UserResult[capacity];
+		referenced = new byte[capacity];
+		pins = new boolean[capacity];
+		mask = capacity - 1;
+		threshold = (capacity >> 2) * 3;
+	}
+
+	public static long getHits() {
+		return hits.sum();
+	}
+
+	public static long getMisses() {
+		return misses.sum();
+	}
+
+	public static long getEvictions() {
+		return evictions.sum();
+	}
+
+	public static long getExpirations() {
+		return expirations.sum();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static boolean isExpired(UserResult r, long now) {
+		return r.lastUpdated != -1 // -1 means logging in from this server, never expired
+				&& Math.abs(now - r.lastUpdated) >= ClusterConfig.clusterUserCachingTime;
+	}
+
+	private int indexOf(int uid) {
+		if (uid == EMPTY) {
+			return -1;
+		}
+		int[] ks = keys;
+		int m = mask;
+		int pos = IntMap.hash(uid) & m;
+		int k;
+		while ((k = ks[pos]) != EMPTY) {
+			if (k == uid) {
+				return pos;
+			}
+			pos = (pos + 1) & m;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get cached user, returning null if user is not cached or expired.
+	 * 
+	 * @param uid
+	 * @return
+	 */
+	public UserResult get(int uid) {
+		int pos = indexOf(uid);
+		if (pos < 0 || isExpired(values[pos], System.currentTimeMillis())) {
+			misses.increment();
+			return null;
+		}
+		referenced[pos] = 1;
+		hits.increment();
+		return values[pos];
+	}
+
+	/**
+	 * Get cached user without holding slot mutex. See IntMap#peek.
+	 * 
+	 * @param uid
+	 * @return
+	 */
+	public UserResult peek(int uid) {
+		if (uid == EMPTY) {
+			return null;
+		}
+		StampedLock lock = sequence;
+		int pos = -1;
+		UserResult r = null;
+		boolean validated = false;
+		for (int i = 0; i < IntMap.OPTIMISTIC_RETRIES; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue; // being written
+			}
+			try {
+				pos = find(uid);
+				r = pos < 0 ? null : values[pos];
+			} catch (RuntimeException e) {
+				// Arrays being replaced by rehash, validation will fail
+			}
+			if (lock.validate(stamp)) {
+				validated = true;
+				break;
+			}
+		}
+		if (!validated) {
+			long stamp = lock.readLock();
+			try {
+				pos = find(uid);
+				r = pos < 0 ? null : values[pos];
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return hit(r, pos);
+	}
+
+	/**
+	 * Get cached users of given users without holding slot mutex, with only
+	 * one validation for all users. See IntMap#peek(int[], int[], int, int, Object[]).
+	 * 
+	 * @param uids
+	 * @param order
+	 * @param from
+	 * @param to
+	 * @param results
+	 */
+	public void peek(int[] uids, int[] order, int from, int to, UserResult[] results) {
+		int[] positions = new int[to - from];
+		StampedLock lock = sequence;
+		boolean validated = false;
+		for (int i = 0; i < IntMap.OPTIMISTIC_RETRIES; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue; // being written
+			}
+			try {
+				for (int j = from; j < to; j++) {
+					int idx = order[j];
+					int pos = uids[idx] == EMPTY ? -1 : find(uids[idx]);
+					positions[j - from] = pos;
+					results[idx] = pos < 0 ? null : values[pos];
+				}
+			} catch (RuntimeException e) {
+				// Arrays being replaced by rehash, validation will fail
+			}
+			if (lock.validate(stamp)) {
+				validated = true;
+				break;
+			}
+		}
+		if (!validated) {
+			long stamp = lock.readLock();
+			try {
+				for (int j = from; j < to; j++) {
+					int idx = order[j];
+					int pos = uids[idx] == EMPTY ? -1 : find(uids[idx]);
+					positions[j - from] = pos;
+					results[idx] = pos < 0 ? null : values[pos];
+				}
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		for (int j = from; j < to; j++) {
+			int idx = order[j];
+			results[idx] = hit(results[idx], positions[j - from]);
+		}
+	}
+
+	private UserResult hit(UserResult r, int pos) {
+		if (r == null || isExpired(r, System.currentTimeMillis())) {
+			misses.increment();
+			return null;
+		}
+		byte[] refs = referenced;
+		if (pos < refs.length && refs[pos] == 0) {
+			refs[pos] = 1; // may mark a moved entry, harmless
+		}
+		hits.increment();
+		return r;
+	}
+
+	/*
+	 * Lookup may be run against a cache being modified, probing is bounded.
+	 */
+	private int find(int uid) {
+		int[] ks = keys;
+		int m = mask;
+		int pos = IntMap.hash(uid) & m;
+		for (int i = 0; i < ks.length; i++) {
+			int k = ks[pos];
+			if (k == uid) {
+				return pos;
+			}
+			if (k == EMPTY) {
+				return -1;
+			}
+			pos = (pos + 1) & m;
+		}
+		return -1;
+	}
+
+	/**
+	 * Add or replace cached user. Least recently used user may be evicted.
+	 * 
+	 * @param uid
+	 * @param r
+	 */
+	public void put(int uid, UserResult r) {
+		if (uid == EMPTY || r == null) {
+			return;
+		}
+		long stamp = sequence.writeLock();
+		try {
+			int pos = indexOf(uid);
+			boolean pin = r.lastUpdated == -1; // -1 means logging in from this server
+			if (pos >= 0) {
+				values[pos] = r;
+				referenced[pos] = 1;
+				if (pins[pos] != pin) {
+					pins[pos] = pin;
+					pinned += pin ? 1 : -1;
+				}
+			} else {
+				if (!pin && size - pinned >= maxSize) {
+					evict();
+				}
+				if (size + 1 > threshold) {
+					rehash(keys.length << 1);
+				}
+				int m = mask;
+				pos = IntMap.hash(uid) & m;
+				while (keys[pos] != EMPTY) {
+					pos = (pos + 1) & m;
+				}
+				keys[pos] = uid;
+				values[pos] = r;
+				referenced[pos] = 0;
+				pins[pos] = pin;
+				size++;
+				if (pin) {
+					pinned++;
+				}
+			}
+		} finally {
+			sequence.unlockWrite(stamp);
+		}
+		if (r.lastUpdated != -1) {
+			schedule(uid, r.lastUpdated + ClusterConfig.clusterUserCachingTime);
+		}
+	}
+
+	public UserResult remove(int uid) {
+		int pos = indexOf(uid);
+		if (pos < 0) {
+			return null;
+		}
+		UserResult old = values[pos];
+		long stamp = sequence.writeLock();
+		try {
+			if (pins[pos]) {
+				pinned--;
+			}
+			shiftKeys(pos);
+			size--;
+		} finally {
+			sequence.unlockWrite(stamp);
+		}
+		return old;
+	}
+
+	/*
+	 * CLOCK: sweep entries, clear referenced bits, and evict the first entry
+	 * which is not referenced since last sweep. Called with write lock.
+	 */
+	private void evict() {
+		int[] ks = keys;
+		int steps = ks.length << 1;
+		for (int i = 0; i < steps; i++) {
+			int pos = hand;
+			hand = (hand + 1) & mask;
+			if (ks[pos] == EMPTY || pins[pos]) {
+				continue; // empty or pinned
+			}
+			if (referenced[pos] != 0) {
+				referenced[pos] = 0;
+				continue;
+			}
+			shiftKeys(pos);
+			size--;
+			evictions.increment();
+			return;
+		} // else all entries are pinned, just grow
+	}
+
+	private void schedule(int uid, long deadline) {
+		int bucket = (int) ((deadline / tickInterval()) & WHEEL_MASK);
+		int[] uids = wheel[bucket];
+		int count = wheelSizes[bucket];
+		if (uids == null) {
+			uids = new int[16];
+			wheel[bucket] = uids;
+		} else if (count == uids.length) {
+			int[] newUIDs = new int[count << 1];
+			System.arraycopy(uids, 0, newUIDs, 0, count);
+			uids = newUIDs;
+			wheel[bucket] = uids;
+		}
+		uids[count] = uid;
+		wheelSizes[bucket] = count + 1;
+	}
+
+	private static long tickInterval() {
+		return Math.max(1, ClusterConfig.clusterUserCacheTickInterval);
+	}
+
+	/**
+	 * Advance timer wheel to given time, removing expired entries. Entries
+	 * which are updated after being scheduled are scheduled again.
+	 * 
+	 * @param now
+	 * @return count of expired entries
+	 */
+	public int expire(long now) {
+		long tick = now / tickInterval();
+		if (lastTick < 0 || tick - lastTick > WHEEL_SIZE) {
+			lastTick = tick - WHEEL_SIZE;
+		}
+		int expired = 0;
+		while (lastTick < tick) {
+			lastTick++;
+			int bucket = (int) (lastTick & WHEEL_MASK);
+			int[] uids = wheel[bucket];
+			int count = wheelSizes[bucket];
+			if (uids == null || count == 0) {
+				continue;
+			}
+			wheel[bucket] = null;
+			wheelSizes[bucket] = 0;
+			for (int i = 0; i < count; i++) {
+				int uid = uids[i];
+				int pos = indexOf(uid);
+				if (pos < 0) {
+					continue; // removed or evicted
+				}
+				UserResult r = values[pos];
+				if (pins[pos]) {
+					continue; // logging in from this server now
+				}
+				if (isExpired(r, now)) {
+					long stamp = sequence.writeLock();
+					try {
+						shiftKeys(pos);
+						size--;
+					} finally {
+						sequence.unlockWrite(stamp);
+					}
+					expired++;
+				} else {
+					long deadline = r.lastUpdated + ClusterConfig.clusterUserCachingTime;
+					if (deadline / tickInterval() <= lastTick) {
+						deadline = (lastTick + 1) * tickInterval(); // time changed, check it next tick
+					}
+					schedule(uid, deadline);
+				}
+			}
+		}
+		if (expired > 0) {
+			expirations.add(expired);
+		}
+		return expired;
+	}
+
+	/*
+	 * Backward shift deletion, see IntMap#shiftKeys
+	 */
+	private void shiftKeys(int pos) {
+		int[] ks = keys;
+		int m = mask;
+		int last, slot, k;
+		while (true) {
+			last = pos;
+			pos = (pos + 1) & m;
+			while (true) {
+				if ((k = ks[pos]) == EMPTY) {
+					ks[last] = EMPTY;
+					values[last] = null;
+					referenced[last] = 0;
+					pins[last] = false;
+					return;
+				}
+				slot = IntMap.hash(k) & m;
+				if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+					break;
+				}
+				pos = (pos + 1) & m;
+			}
+			ks[last] = k;
+			values[last] = values[pos];
+			referenced[last] = referenced[pos];
+			pins[last] = pins[pos];
+		}
+	}
+
+	private void rehash(int newCapacity) {
+		int[] oldKeys = keys;
+		UserResult[] oldValues = values;
+		byte[] oldReferenced = referenced;
+		boolean[] oldPins = pins;
+		allocate(newCapacity);
+		int m = mask;
+		for (int i = 0; i < oldKeys.length; i++) {
+			int k = oldKeys[i];
+			if (k == EMPTY) {
+				continue;
+			}
+			int pos = IntMap.hash(k) & m;
+			while (keys[pos] != EMPTY) {
+				pos = (pos + 1) & m;
+			}
+			keys[pos] = k;
+			values[pos] = oldValues[i];
+			referenced[pos] = oldReferenced[i];
+			pins[pos] = oldPins[i];
+		}
+		hand = 0;
+	}
+
+}
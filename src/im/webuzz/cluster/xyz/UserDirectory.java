@@ -0,0 +1,729 @@
+package im.webuzz.cluster.xyz;
+
+import im.webuzz.cluster.ClusterConfig;
+import im.webuzz.cluster.events.IStatus;
+import im.webuzz.cluster.events.UserResult;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * User directory of one slot on primary server.
+ * 
+ * Each user record is packed into parallel primitive arrays: user ID as
+ * key, server ID (see {@link ServerId}), status byte and last updated time
+ * in seconds relative to {@link #EPOCH}, plus positions of next and previous
+ * records on the same server. A record costs 19 bytes per bucket, comparing
+ * to a full UserResult object with HashMap entry. UserResult
+ * objects are only created at the wire boundary by {@link #toResult(int)}.
+ * 
+ * With load factor between 0.375 and 0.75, same as {@link IntMap}, a user
+ * costs 25 to 50 bytes, about 36 bytes on average. Higher load factors
+ * would save memory at the cost of long probing of linear probing, which
+ * is paid by every lookup, including lookups without slot mutex.
+ * 
+ * Records are located by open addressing with linear probing, same as
+ * {@link IntMap}. Positions returned by {@link #indexOf(int)} are only valid
+ * until next {@link #put(int, int, int, long)} or {@link #remove(int)}.
+ * 
+ * Callbacks (servers monitoring users) are rare, and are kept in a separated
+ * map.
+ * 
+ * Users are also indexed by their servers, in an intrusive doubly linked
+ * list for each server, linking record positions by next and prev columns,
+ * so dropping a server or counting its users costs time proportional to
+ * that server's users, instead of scanning all records.
+ * 
+ * Users restored from snapshot or journal on starting are provisional, until
+ * they are updated again, or are dropped on reconciling with their servers,
+ * see {@link #markProvisional()}.
+ * 
+ * Each change of a connected user's server, including connecting and
+ * disconnecting, increases the slot version by one, and the changed user is
+ * kept in a ring of recent changes, so other primary servers can synchronize
+ * changes since a version, see {@link #changesSince(long)}. Other updates,
+ * e.g. disconnected records added for queries, are not counted as changes.
+ * 
+ * Not thread safe. All callers should synchronize on the slot mutex, except
+ * {@link #peek(int)}, which is for presence lookups without locking.
+ * 
+ * @author zhourenjian
+ *
+ */
+public final class UserDirectory {
+
+	/**
+	 * Base time of relative record time, 2010-01-01 00:00:00 UTC.
+	 */
+	public static final long EPOCH = 1262304000000L;
+
+	private static final int EMPTY = IntMap.EMPTY;
+
+	/**
+	 * Returned by {@link #peek(int)} if user is not found.
+	 */
+	public static final long NOT_FOUND = -1L;
+
+	private int[] keys;
+
+	private short[] servers;
+
+	private byte[] statuses;
+
+	private int[] times;
+
+	// Positions of next and previous records on the same server, -1 for none
+	private int[] next;
+
+	private int[] prev;
+
+	private int size;
+
+	private int mask;
+
+	private int threshold;
+
+	private IntMap<int[]> callbacks = new IntMap<int[]>();
+
+	// server ID -> position of first record on that server, -1 for none
+	private int[] heads = newHeads(16);
+
+	// server ID -> count of records on that server
+	private int[] counts = new int[16];
+
+	// Restored users not being updated since restoring, null if there are none
+	private IntSet provisional;
+
+	private long version;
+
+	// changes[v % length] is the user changed by version v
+	private int[] changes;
+
+	/*
+	 * Sequence for validating optimistic reads, see IntMap#sequence.
+	 * Callbacks are not covered, they are always read with slot mutex.
+	 */
+	private final StampedLock sequence = new StampedLock();
+
+	public UserDirectory(int initialCapacity) {
+		allocate(IntMap.tableSizeFor(initialCapacity));
+		changes = new int[Math.max(1, ClusterConfig.clusterSlotChangesSize)];
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		servers = new short[capacity];
+		statuses = new byte[capacity];
+		times = new int[capacity];
+		next = new int[capacity];
+		prev = new int[capacity];
+		mask = capacity - 1;
+		threshold = (capacity >> 2) * 3;
+	}
+
+	static int toRelativeTime(long time) {
+		if (time <= EPOCH) {
+			return 0;
+		}
+		return (int) ((time - EPOCH) / 1000);
+	}
+
+	static long toAbsoluteTime(int time) {
+		if (time <= 0) {
+			return 0;
+		}
+		return EPOCH + time * 1000L;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Bucket count for iterating records by position. Empty bucket has key 0.
+	 * @return
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	public int keyAt(int pos) {
+		return keys[pos];
+	}
+
+	public int serverAt(int pos) {
+		return servers[pos];
+	}
+
+	public int statusAt(int pos) {
+		return statuses[pos];
+	}
+
+	public long timeAt(int pos) {
+		return toAbsoluteTime(times[pos]);
+	}
+
+	/**
+	 * Return position of given user's record, or -1 if not existed.
+	 * @param uid
+	 * @return
+	 */
+	public int indexOf(int uid) {
+		if (uid == EMPTY) {
+			return -1;
+		}
+		int[] ks = keys;
+		int m = mask;
+		int pos = IntMap.hash(uid) & m;
+		int k;
+		while ((k = ks[pos]) != EMPTY) {
+			if (k == uid) {
+				return pos;
+			}
+			pos = (pos + 1) & m;
+		}
+		return -1;
+	}
+
+	/**
+	 * Read user's record without holding slot mutex.
+	 * 
+	 * Record is packed into a long value, decode it by
+	 * {@link #serverOf(long)}, {@link #statusOf(long)} and
+	 * {@link #timeOf(long)}.
+	 * 
+	 * @param uid
+	 * @return packed record, or {@link #NOT_FOUND}
+	 */
+	public long peek(int uid) {
+		if (uid == EMPTY) {
+			return NOT_FOUND;
+		}
+		StampedLock lock = sequence;
+		for (int i = 0; i < IntMap.OPTIMISTIC_RETRIES; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue; // being written
+			}
+			long record = NOT_FOUND;
+			try {
+				record = find(uid);
+			} catch (RuntimeException e) {
+				// Arrays being replaced by rehash, validation will fail
+			}
+			if (lock.validate(stamp)) {
+				return record;
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return find(uid);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Read records of given users without holding slot mutex, with only one
+	 * validation for all users. All users should be in this slot.
+	 * 
+	 * @param uids
+	 * @param order indexes of users to read are order[from] ... order[to - 1]
+	 * @param from
+	 * @param to
+	 * @param records packed records are put into records[order[i]]
+	 */
+	public void peek(int[] uids, int[] order, int from, int to, long[] records) {
+		StampedLock lock = sequence;
+		for (int i = 0; i < IntMap.OPTIMISTIC_RETRIES; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue; // being written
+			}
+			try {
+				for (int j = from; j < to; j++) {
+					int idx = order[j];
+					int uid = uids[idx];
+					records[idx] = uid == EMPTY ? NOT_FOUND : find(uid);
+				}
+			} catch (RuntimeException e) {
+				// Arrays being replaced by rehash, validation will fail
+			}
+			if (lock.validate(stamp)) {
+				return;
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			for (int j = from; j < to; j++) {
+				int idx = order[j];
+				int uid = uids[idx];
+				records[idx] = uid == EMPTY ? NOT_FOUND : find(uid);
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * Lookup may be run against records being modified, probing is bounded.
+	 */
+	private long find(int uid) {
+		int[] ks = keys;
+		int m = mask;
+		int pos = IntMap.hash(uid) & m;
+		for (int i = 0; i < ks.length; i++) {
+			int k = ks[pos];
+			if (k == uid) {
+				return ((long) times[pos] << 32) | ((servers[pos] & 0xffffL) << 16) | (statuses[pos] & 0xffL);
+			}
+			if (k == EMPTY) {
+				return NOT_FOUND;
+			}
+			pos = (pos + 1) & m;
+		}
+		return NOT_FOUND;
+	}
+
+	public static int serverOf(long record) {
+		return (short) (record >>> 16);
+	}
+
+	public static int statusOf(long record) {
+		return (byte) record;
+	}
+
+	public static long timeOf(long record) {
+		return toAbsoluteTime((int) (record >>> 32));
+	}
+
+	/**
+	 * Add or replace user's record.
+	 * 
+	 * @param uid
+	 * @param server
+	 * @param status
+	 * @param time
+	 * @return position of the record, or -1 for invalid user ID
+	 */
+	public int put(int uid, int server, int status, long time) {
+		if (uid == EMPTY) {
+			return -1;
+		}
+		long stamp = sequence.writeLock();
+		try {
+			return doPut(uid, server, status, time);
+		} finally {
+			sequence.unlockWrite(stamp);
+		}
+	}
+
+	private int doPut(int uid, int server, int status, long time) {
+		int pos = indexOf(uid);
+		int oldServer = ServerId.NONE;
+		int oldStatus = IStatus.DISCONNECTED;
+		if (pos >= 0) {
+			oldServer = servers[pos];
+			oldStatus = statuses[pos];
+			if (oldServer != server) {
+				leave(pos, oldServer);
+				join(pos, server);
+			}
+		} else {
+			if (size + 1 > threshold) {
+				rehash(keys.length << 1);
+			}
+			int m = mask;
+			pos = IntMap.hash(uid) & m;
+			while (keys[pos] != EMPTY) {
+				pos = (pos + 1) & m;
+			}
+			keys[pos] = uid;
+			size++;
+			join(pos, server);
+		}
+		servers[pos] = (short) server;
+		statuses[pos] = (byte) status;
+		times[pos] = toRelativeTime(time);
+		confirmed(uid);
+		changed(uid, oldServer, oldStatus, server, status);
+		return pos;
+	}
+
+	public void set(int pos, int server, int status) {
+		int oldServer = servers[pos];
+		int oldStatus = statuses[pos];
+		if (oldServer != server) {
+			leave(pos, oldServer);
+			join(pos, server);
+		}
+		long stamp = sequence.writeLock();
+		servers[pos] = (short) server;
+		statuses[pos] = (byte) status;
+		sequence.unlockWrite(stamp);
+		confirmed(keys[pos]);
+		changed(keys[pos], oldServer, oldStatus, server, status);
+	}
+
+	public void touch(int pos, long time) {
+		int t = toRelativeTime(time);
+		if (times[pos] == t) {
+			return; // same second, no need to invalidate readers
+		}
+		long stamp = sequence.writeLock();
+		times[pos] = t;
+		sequence.unlockWrite(stamp);
+	}
+
+	public boolean remove(int uid) {
+		int pos = indexOf(uid);
+		if (pos < 0) {
+			return false;
+		}
+		int oldServer = servers[pos];
+		int oldStatus = statuses[pos];
+		leave(pos, oldServer);
+		long stamp = sequence.writeLock();
+		try {
+			shiftKeys(pos);
+			size--;
+		} finally {
+			sequence.unlockWrite(stamp);
+		}
+		callbacks.remove(uid);
+		confirmed(uid);
+		changed(uid, oldServer, oldStatus, ServerId.NONE, IStatus.DISCONNECTED);
+		return true;
+	}
+
+	/**
+	 * Mark all online users as provisional, called after restoring users
+	 * from snapshot and journal, as users may log out or their servers may
+	 * be down while this server is restarting.
+	 * 
+	 * @return count of provisional users
+	 */
+	public int markProvisional() {
+		IntSet users = new IntSet();
+		for (int pos = 0; pos < keys.length; pos++) {
+			if (keys[pos] != EMPTY && servers[pos] >= 0) {
+				users.add(keys[pos]);
+			}
+		}
+		provisional = users.isEmpty() ? null : users;
+		return users.size();
+	}
+
+	private void confirmed(int uid) {
+		IntSet users = provisional;
+		if (users != null && users.remove(uid) && users.isEmpty()) {
+			provisional = null;
+		}
+	}
+
+	public boolean hasProvisional() {
+		return provisional != null;
+	}
+
+	/**
+	 * Return provisional users on given server.
+	 * 
+	 * @param server
+	 * @return users in a new array
+	 */
+	public int[] provisionalOf(int server) {
+		if (provisional == null) {
+			return new int[0];
+		}
+		int[] users = provisional.toArray();
+		int count = 0;
+		for (int i = 0; i < users.length; i++) {
+			int pos = indexOf(users[i]);
+			if (pos >= 0 && servers[pos] == server) {
+				users[count++] = users[i];
+			}
+		}
+		if (count == users.length) {
+			return users;
+		}
+		int[] result = new int[count];
+		System.arraycopy(users, 0, result, 0, count);
+		return result;
+	}
+
+	/*
+	 * Only servers of connected users are synchronized, other changes would
+	 * wrap the ring of recent changes quickly, e.g. disconnected records
+	 * added for queries of unknown users.
+	 */
+	private void changed(int uid, int oldServer, int oldStatus, int server, int status) {
+		int oldOnline = oldStatus == IStatus.CONNECTED ? oldServer : ServerId.NONE;
+		int online = status == IStatus.CONNECTED ? server : ServerId.NONE;
+		if (oldOnline == online) {
+			return;
+		}
+		long v = ++version;
+		changes[(int) (v % changes.length)] = uid;
+	}
+
+	/**
+	 * Version of this slot, increased by one on each change.
+	 * @return
+	 */
+	public long version() {
+		return version;
+	}
+
+	/**
+	 * Return users changed after given version.
+	 * 
+	 * @param since
+	 * @return distinct users in a new array, or null if changes after given
+	 * version are trimmed from the ring of recent changes
+	 */
+	public int[] changesSince(long since) {
+		long v = version;
+		if (since > v || since < 0 || v - since > changes.length) {
+			return null;
+		}
+		IntSet users = new IntSet((int) (v - since));
+		for (long i = since + 1; i <= v; i++) {
+			users.add(changes[(int) (i % changes.length)]);
+		}
+		return users.toArray();
+	}
+
+	private static int[] newHeads(int length) {
+		int[] hs = new int[length];
+		for (int i = 0; i < length; i++) {
+			hs[i] = -1;
+		}
+		return hs;
+	}
+
+	/*
+	 * Link record at given position as the first record of given server.
+	 */
+	private void join(int pos, int server) {
+		if (server < 0) {
+			return; // ServerId.NONE
+		}
+		if (server >= heads.length) {
+			int length = heads.length;
+			while (server >= length) {
+				length <<= 1;
+			}
+			int[] newHeads = newHeads(length);
+			System.arraycopy(heads, 0, newHeads, 0, heads.length);
+			heads = newHeads;
+			int[] newCounts = new int[length];
+			System.arraycopy(counts, 0, newCounts, 0, counts.length);
+			counts = newCounts;
+		}
+		int head = heads[server];
+		next[pos] = head;
+		prev[pos] = -1;
+		if (head >= 0) {
+			prev[head] = pos;
+		}
+		heads[server] = pos;
+		counts[server]++;
+	}
+
+	/*
+	 * Unlink record at given position from given server.
+	 */
+	private void leave(int pos, int server) {
+		if (server < 0 || server >= heads.length) {
+			return;
+		}
+		int n = next[pos];
+		int p = prev[pos];
+		if (p >= 0) {
+			next[p] = n;
+		} else {
+			heads[server] = n;
+		}
+		if (n >= 0) {
+			prev[n] = p;
+		}
+		counts[server]--;
+	}
+
+	/*
+	 * Record is moved from one position to another, by backward shifting.
+	 */
+	private void moved(int from, int to, int server) {
+		if (server < 0) {
+			return;
+		}
+		int n = next[from];
+		int p = prev[from];
+		next[to] = n;
+		prev[to] = p;
+		if (p >= 0) {
+			next[p] = to;
+		} else {
+			heads[server] = to;
+		}
+		if (n >= 0) {
+			prev[n] = to;
+		}
+	}
+
+	/**
+	 * Return users on given server.
+	 * 
+	 * @param server
+	 * @return users in a new array
+	 */
+	public int[] usersOf(int server) {
+		if (server < 0 || server >= heads.length) {
+			return new int[0];
+		}
+		int[] users = new int[counts[server]];
+		int count = 0;
+		for (int pos = heads[server]; pos >= 0 && count < users.length; pos = next[pos]) {
+			users[count++] = keys[pos];
+		}
+		return users;
+	}
+
+	/**
+	 * Return count of users on given server.
+	 * 
+	 * @param server
+	 * @return
+	 */
+	public int countOf(int server) {
+		if (server < 0 || server >= heads.length) {
+			return 0;
+		}
+		return counts[server];
+	}
+
+	/*
+	 * Backward shift deletion, see IntMap#shiftKeys
+	 */
+	private void shiftKeys(int pos) {
+		int[] ks = keys;
+		int m = mask;
+		int last, slot, k;
+		while (true) {
+			last = pos;
+			pos = (pos + 1) & m;
+			while (true) {
+				if ((k = ks[pos]) == EMPTY) {
+					ks[last] = EMPTY;
+					return;
+				}
+				slot = IntMap.hash(k) & m;
+				if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+					break;
+				}
+				pos = (pos + 1) & m;
+			}
+			ks[last] = k;
+			servers[last] = servers[pos];
+			statuses[last] = statuses[pos];
+			times[last] = times[pos];
+			moved(pos, last, servers[pos]);
+		}
+	}
+
+	private void rehash(int newCapacity) {
+		int[] oldKeys = keys;
+		short[] oldServers = servers;
+		byte[] oldStatuses = statuses;
+		int[] oldTimes = times;
+		allocate(newCapacity);
+		// Lists of servers are linked again by new positions
+		for (int i = 0; i < heads.length; i++) {
+			heads[i] = -1;
+			counts[i] = 0;
+		}
+		int m = mask;
+		for (int i = 0; i < oldKeys.length; i++) {
+			int k = oldKeys[i];
+			if (k == EMPTY) {
+				continue;
+			}
+			int pos = IntMap.hash(k) & m;
+			while (keys[pos] != EMPTY) {
+				pos = (pos + 1) & m;
+			}
+			keys[pos] = k;
+			servers[pos] = oldServers[i];
+			statuses[pos] = oldStatuses[i];
+			times[pos] = oldTimes[i];
+			join(pos, oldServers[i]);
+		}
+	}
+
+	/**
+	 * Create wire object for record at given position.
+	 * 
+	 * @param pos
+	 * @return
+	 */
+	public UserResult toResult(int pos) {
+		UserResult r = new UserResult();
+		r.uid = keys[pos];
+		int server = servers[pos];
+		r.domain = ServerId.getDomain(server);
+		r.port = ServerId.getPort(server);
+		r.lastUpdated = toAbsoluteTime(times[pos]);
+		r.status = statuses[pos];
+		return r;
+	}
+
+	/**
+	 * Return IDs of servers monitoring given user. Array may contain
+	 * {@link ServerId#NONE} items.
+	 * 
+	 * @param uid
+	 * @return
+	 */
+	public int[] getCallbacks(int uid) {
+		return callbacks.get(uid);
+	}
+
+	public void addCallback(int uid, int server) {
+		if (server == ServerId.NONE) {
+			return;
+		}
+		int[] cb = callbacks.get(uid);
+		if (cb == null) {
+			int[] newCallbacks = new int[ClusterConfig.clusterUserQueryCallbackSize];
+			for (int i = 1; i < newCallbacks.length; i++) {
+				newCallbacks[i] = ServerId.NONE;
+			}
+			newCallbacks[0] = server;
+			callbacks.put(uid, newCallbacks);
+			return;
+		}
+		int length = cb.length;
+		for (int i = 0; i < length; i++) {
+			if (cb[i] == server) {
+				return;
+			}
+		}
+		for (int i = 0; i < length; i++) {
+			if (cb[i] == ServerId.NONE) {
+				cb[i] = server;
+				return;
+			}
+		}
+		int[] newCallbacks = new int[length + (length >> 2) + ClusterConfig.clusterUserQueryCallbackSize];
+		System.arraycopy(cb, 0, newCallbacks, 0, length);
+		for (int i = length + 1; i < newCallbacks.length; i++) {
+			newCallbacks[i] = ServerId.NONE;
+		}
+		newCallbacks[length] = server;
+		callbacks.put(uid, newCallbacks);
+	}
+
+	public void clearCallbacks(int uid) {
+		callbacks.remove(uid);
+	}
+
+}
@@ -0,0 +1,59 @@
+package im.webuzz.cluster.xyz;
+
+import im.webuzz.cluster.events.UserResult;
+import im.webuzz.cluster.pipes.Login2ServicePipe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * User results to be piped to servers which are monitoring those users.
+ * 
+ * On bulk updates, results are gathered while holding slot locks, and are
+ * piped after releasing slot locks, with one pipe call for each server.
+ * 
+ * Not thread safe, each bulk update has its own notifications.
+ * 
+ * @author zhourenjian
+ *
+ */
+final class UserNotifications {
+
+	// server ID + 1 -> results, as key 0 is reserved by IntMap
+	private IntMap<List<UserResult>> results;
+
+	void add(int server, UserResult r) {
+		if (results == null) {
+			results = new IntMap<List<UserResult>>();
+		}
+		List<UserResult> rs = results.get(server + 1);
+		if (rs == null) {
+			rs = new ArrayList<UserResult>();
+			results.put(server + 1, rs);
+		}
+		rs.add(r);
+	}
+
+	/**
+	 * Pipe gathered results to their servers.
+	 */
+	void send() {
+		if (results == null) {
+			return;
+		}
+		for (int i = 0; i < results.capacity(); i++) {
+			int key = results.keyAt(i);
+			if (key == 0) {
+				continue; // empty bucket
+			}
+			Login2ServicePipe p = Login2ServicePipe.getPipe(key - 1);
+			if (p == null) {
+				continue; // server is gone
+			}
+			List<UserResult> rs = results.valueAt(i);
+			p.pipeThrough(rs.toArray(new UserResult[rs.size()]));
+		}
+		results = null;
+	}
+
+}
@@ -1,22 +1,31 @@
 package im.webuzz.cluster.xyz;
 
 import im.webuzz.cluster.ClusterConfig;
+import im.webuzz.cluster.ClusterDelivery;
 import im.webuzz.cluster.ClusterEvent;
 import im.webuzz.cluster.ClusterMappings;
 import im.webuzz.cluster.ClusterNode;
 import im.webuzz.cluster.ClusterServer;
+import im.webuzz.cluster.ClusterStreamingNode;
+import im.webuzz.cluster.MulticastEvent;
 import im.webuzz.cluster.calls.ClosePipe;
 import im.webuzz.cluster.calls.SendEvent;
 import im.webuzz.cluster.calls.SynchronizeUsers;
+import im.webuzz.cluster.events.EventAcks;
 import im.webuzz.cluster.events.HeartBeat;
 import im.webuzz.cluster.events.IStatus;
+import im.webuzz.cluster.events.OnlineUsers;
+import im.webuzz.cluster.events.ReliableEvent;
 import im.webuzz.cluster.events.ServerLost;
 import im.webuzz.cluster.events.ServerStatus;
 import im.webuzz.cluster.events.ServerStopping;
 import im.webuzz.cluster.events.UserDuplicated;
+import im.webuzz.cluster.events.UserQueries;
 import im.webuzz.cluster.events.UserQuery;
 import im.webuzz.cluster.events.UserResult;
+import im.webuzz.cluster.events.UserResults;
 import im.webuzz.cluster.events.UserStatus;
+import im.webuzz.cluster.events.UserStatuses;
 import im.webuzz.cluster.pipes.AbstractClusterPipe;
 import im.webuzz.cluster.pipes.Login2LoginPipe;
 import im.webuzz.cluster.pipes.Login2ServicePipe;
@@ -27,15 +36,18 @@ import im.webuzz.threadpool.ThreadPoolExecutorConfig;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -64,55 +76,94 @@ public class XYZMixxer {
 	private static int masterServerPort = 80;
 	private static String primaryGlobalServer = null;
 
-	public static final int SLOTS = 128;
-	public static final int SLOTS_MASKS = 0x7f;
-	public static final int SLOTS_BITS = 7;
+	// Updated from ClusterConfig#clusterSlots on initializing
+	public static int SLOTS = 128;
+	public static int SLOTS_MASKS = 0x7f;
+	public static int SLOTS_BITS = 7;
+
+	/**
+	 * Slot bits of servers which do not send slot bits in synchronizing.
+	 */
+	public static final int LEGACY_SLOTS_BITS = 7;
+	public static final int MAX_SLOTS_BITS = 16;
 	
 	// for primary login server
 	public static Map<String, ServerStatus> allServerStatuses = new ConcurrentHashMap<String, ServerStatus>();
 	
 	// for primary login server
 	public static Object[] statusMutex;
-	public static Map<Object, UserResult>[] allStatuses;
+	public static UserDirectory[] allStatuses;
 	// for service server
 	public static Object[] dataMutex;
-	public static Map<Object, List<ClusterEvent>>[] crossPipeData;
+	public static PendingEvents[] crossPipeData;
+	// for service server, guarded by dataMutex
+	public static InFlightQueries[] queryingUsers;
+	// for service server, users waiting to be queried in batch
+	private static final Object queryMutex = new Object();
+	private static int[] lingeringUIDs = new int[16];
+	private static int lingeringSize = 0;
+	// for service server, user statuses waiting to be piped up in batch
+	private static final Object statusUplinkMutex = new Object();
+	private static IntMap<UserStatus> lingeringStatuses = new IntMap<UserStatus>();
 	// for service server
 	public static Object[] userMutex;
-	public static Map<Object, UserResult>[] cachedUsers;
+	public static UserCache[] cachedUsers;
+	// for service server, users known as offline, guarded by userMutex
+	public static TimedIntSet[] offlineUsers;
 
 	private static ISynchronizedCallback syncedCallback = null;
+	// remote host (with sync mode) -> { slot versions ..., epoch }
+	private static ConcurrentHashMap<String, AtomicLongArray> syncedVersions = new ConcurrentHashMap<String, AtomicLongArray>();
+	// remote host (with sync mode) -> current synchronizing
+	private static ConcurrentHashMap<String, SlotSynchronizing> syncingSessions = new ConcurrentHashMap<String, SlotSynchronizing>();
 	
 	private static boolean initialized = false;
 	private static long initializedTime = -1;
+
+	// Whether there are users restored from snapshot or journal, not reconciled yet
+	private static volatile boolean reconciling = false;
+
+	// { node ID string, server ID }, cached by ClusterNode#getNodeID
+	private static volatile Object[] nodeServerID;
 	
 	private static ThreadPoolExecutorConfig lastConfig = ClusterConfig.clusterWorkerPool;
 
 	private static String lastGlobalServer = null;
 	
-	@SuppressWarnings("unchecked")
 	public static void initialize() {
 		if (initialized) {
 			return;
 		}
+		int slotBits = 0;
+		while (slotBits < MAX_SLOTS_BITS && (1 << slotBits) < ClusterConfig.clusterSlots) {
+			slotBits++;
+		}
+		SLOTS_BITS = slotBits;
+		SLOTS = 1 << slotBits;
+		SLOTS_MASKS = SLOTS - 1;
 		statusMutex = new Object[SLOTS];
-		allStatuses = new Map[SLOTS];
+		allStatuses = new UserDirectory[SLOTS];
 	
 		dataMutex = new Object[SLOTS];
-		crossPipeData = new Map[SLOTS];
+		crossPipeData = new PendingEvents[SLOTS];
+		queryingUsers = new InFlightQueries[SLOTS];
 		
 		userMutex = new Object[SLOTS];
-		cachedUsers = new Map[SLOTS];
+		cachedUsers = new UserCache[SLOTS];
+		offlineUsers = new TimedIntSet[SLOTS];
+		int cacheSize = Math.max(1, (ClusterConfig.clusterUserCacheMaxSize + SLOTS - 1) / SLOTS);
 		
 		for (int i = 0; i < SLOTS; i++) {
 			statusMutex[i] = new Object();
-			allStatuses[i] = new HashMap<Object, UserResult>(ClusterConfig.clusterInitialCapacity);
+			allStatuses[i] = new UserDirectory(ClusterConfig.clusterInitialCapacity);
 		
 			dataMutex[i] = new Object();
-			crossPipeData[i] = new HashMap<Object, List<ClusterEvent>>(ClusterConfig.clusterInitialCapacity);
+			crossPipeData[i] = new PendingEvents(ClusterConfig.clusterInitialCapacity);
+			queryingUsers[i] = new InFlightQueries();
 			
 			userMutex[i] = new Object();
-			cachedUsers[i] = new HashMap<Object, UserResult>(ClusterConfig.clusterInitialCapacity);
+			cachedUsers[i] = new UserCache(ClusterConfig.clusterInitialCapacity, cacheSize);
+			offlineUsers[i] = new TimedIntSet();
 		}
 		ClusterMappings.initializeMappings();
 		initialized = true;
@@ -124,6 +175,521 @@ public class XYZMixxer {
 		}
 		executor = new SimpleThreadPoolExecutor(lastConfig);
 		executor.allowCoreThreadTimeOut(lastConfig.threadTimeout);
+		if (ClusterConfig.clusterPrimaryServer) {
+			long seq = -1;
+			if (ClusterConfig.clusterSnapshotFile != null) {
+				seq = loadSnapshot();
+			}
+			if (ClusterConfig.clusterJournalDir != null) {
+				if (ClusterConfig.clusterSnapshotFile != null) {
+					replayJournal(seq);
+				} else if (ClusterConfig.clusterLogging) {
+					// Journal is only compacted by snapshots
+					System.out.println("Cluster: Journal is disabled as there is no snapshot file!");
+				}
+			}
+			markProvisionalUsers();
+			if (ClusterConfig.clusterSnapshotFile != null) {
+				startSnapshotting();
+			}
+		}
+		if (!ClusterConfig.clusterPrimaryServer) {
+			startExpiring();
+			startQueryBatching();
+			startStatusBatching();
+		}
+		if (ClusterConfig.clusterOutboundLinger > 0) {
+			OutboundBatcher.start();
+		}
+	}
+
+	/*
+	 * Restore online users from last snapshot, so restarted primary server
+	 * only needs to reconcile changes with other servers.
+	 */
+	private static long loadSnapshot() {
+		long start = System.currentTimeMillis();
+		long seq = DirectorySnapshot.load(new File(ClusterConfig.clusterSnapshotFile),
+				ClusterConfig.clusterSnapshotMaxAge);
+		if (seq >= 0 && ClusterConfig.clusterLogging) {
+			System.out.println("Cluster: Snapshot is loaded in " + (System.currentTimeMillis() - start) + "ms.");
+		}
+		return seq;
+	}
+
+	/*
+	 * Replay status changes after snapshot, and start appending new changes.
+	 * Without snapshot, all retained journal segments are replayed.
+	 */
+	private static void replayJournal(long snapshotSeq) {
+		long start = System.currentTimeMillis();
+		long lastSeq = StatusJournal.open(new File(ClusterConfig.clusterJournalDir), snapshotSeq);
+		if (lastSeq < 0) {
+			return;
+		}
+		int count = StatusJournal.replay(Math.max(0, snapshotSeq));
+		if (ClusterConfig.clusterLogging) {
+			System.out.println("Cluster: " + count + " status changes are replayed from journal in "
+					+ (System.currentTimeMillis() - start) + "ms.");
+		}
+		StatusJournal.start();
+	}
+
+	/*
+	 * Restored users are provisional. Users missing from their servers'
+	 * online users on reconnecting are dropped, and users of servers not
+	 * reconnected in ClusterConfig#clusterMaxInitializeTime are dropped.
+	 */
+	private static void markProvisionalUsers() {
+		int count = 0;
+		for (int i = 0; i < SLOTS; i++) {
+			synchronized (statusMutex[i]) {
+				count += allStatuses[i].markProvisional();
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+		reconciling = true;
+		if (ClusterConfig.clusterLogging) {
+			System.out.println("Cluster: " + count + " restored users are waiting for reconciling.");
+		}
+		Thread reconcilingThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(Math.max(1000, ClusterConfig.clusterMaxInitializeTime));
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				int serverCount = ServerId.count();
+				for (int server = 0; server < serverCount; server++) {
+					String domain = ServerId.getDomain(server);
+					if (domain == null) {
+						continue;
+					}
+					Service2LoginPipe p = allService2LoginPipes.get(ServerId.getHost(server));
+					if (p != null && p.isPipeLive()) {
+						continue; // reconciled or to be reconciled by its online users
+					}
+					dropServiceServer(domain, ServerId.getPort(server), true);
+				}
+			}
+			
+		}, "Cluster Directory Reconciling");
+		reconcilingThread.setDaemon(true);
+		reconcilingThread.start();
+	}
+
+	private static void startSnapshotting() {
+		Thread snapshotThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(Math.max(1000, ClusterConfig.clusterSnapshotInterval));
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					String path = ClusterConfig.clusterSnapshotFile;
+					if (path == null) {
+						continue; // disabled
+					}
+					long start = System.currentTimeMillis();
+					long seq = StatusJournal.committedSequence();
+					int count = DirectorySnapshot.save(new File(path));
+					if (count >= 0 && ClusterConfig.clusterLogging) {
+						System.out.println("Cluster: " + count + " users are saved into snapshot in "
+								+ (System.currentTimeMillis() - start) + "ms.");
+					}
+					if (count >= 0 && StatusJournal.isEnabled()) {
+						// Snapshot compacts journal, older segments are not needed
+						StatusJournal.compact(seq);
+					}
+				}
+			}
+			
+		}, "Cluster Directory Snapshot");
+		snapshotThread.setDaemon(true);
+		snapshotThread.start();
+	}
+
+	/*
+	 * Drive timer wheels of cached users, and drop pending events which are
+	 * waiting too long for their receivers.
+	 */
+	private static void startExpiring() {
+		Thread expiringThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(Math.max(1, ClusterConfig.clusterUserCacheTickInterval));
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					long now = System.currentTimeMillis();
+					for (int i = 0; i < SLOTS; i++) {
+						synchronized (userMutex[i]) {
+							cachedUsers[i].expire(now);
+							offlineUsers[i].removeBefore(now - ClusterConfig.clusterUserOfflineCachingTime);
+						}
+					}
+					expirePendingEvents(now);
+				}
+			}
+			
+		}, "Cluster Expirer");
+		expiringThread.setDaemon(true);
+		expiringThread.start();
+	}
+	
+	private static void expirePendingEvents(long now) {
+		List<ClusterEvent> expired = new ArrayList<ClusterEvent>();
+		long oldest = -1;
+		for (int i = 0; i < SLOTS; i++) {
+			synchronized (dataMutex[i]) {
+				PendingEvents pending = crossPipeData[i];
+				pending.expire(now, expired);
+				queryingUsers[i].expire(now);
+				long time = pending.getSlotOldestTime();
+				if (time > 0 && (oldest < 0 || time < oldest)) {
+					oldest = time;
+				}
+			}
+		}
+		PendingEvents.updateOldestTime(oldest);
+		if (!expired.isEmpty()) {
+			if (ClusterConfig.clusterLogging) {
+				System.out.println("Cluster: " + expired.size() + " pending events are expired.");
+			}
+			ClusterEvent[] events = expired.toArray(new ClusterEvent[expired.size()]);
+			ClusterDelivery.complete(events, ClusterDelivery.TIMED_OUT);
+			runNotSentTaks(events);
+		}
+	}
+
+	/**
+	 * Whether given user is known as offline by a recent query result, so
+	 * events to this user can be rejected without querying primary server.
+	 * 
+	 * @param uid
+	 * @return
+	 */
+	public static boolean isKnownOffline(int uid) {
+		int slot = uid & SLOTS_MASKS;
+		long time = -1;
+		synchronized (userMutex[slot]) {
+			time = offlineUsers[slot].timeOf(uid);
+		}
+		if (time == -1) {
+			return false;
+		}
+		return Math.abs(System.currentTimeMillis() - time) < ClusterConfig.clusterUserOfflineCachingTime;
+	}
+
+	/**
+	 * Pipe up a query to primary login server for given user, if there is
+	 * no query of this user in flight. Query may linger for a short while,
+	 * see {@link ClusterConfig#clusterUserQueryLinger}, to be batched with
+	 * other queries.
+	 * 
+	 * @param uid
+	 * @return true if query is sent or is lingering to be sent
+	 */
+	public static boolean queryUser(int uid) {
+		int slot = uid & SLOTS_MASKS;
+		synchronized (dataMutex[slot]) {
+			if (!queryingUsers[slot].start(uid, System.currentTimeMillis())) {
+				return false; // attached to the in-flight query
+			}
+		}
+		if (ClusterConfig.clusterUserQueryLinger > 0) {
+			int[] flushing = null;
+			synchronized (queryMutex) {
+				if (lingeringSize == lingeringUIDs.length) {
+					int[] newUIDs = new int[lingeringSize << 1];
+					System.arraycopy(lingeringUIDs, 0, newUIDs, 0, lingeringSize);
+					lingeringUIDs = newUIDs;
+				}
+				lingeringUIDs[lingeringSize++] = uid;
+				if (lingeringSize >= ClusterConfig.clusterUserQueryBatchSize) {
+					flushing = takeLingeringQueries();
+				} else if (lingeringSize == 1) {
+					queryMutex.notify(); // start lingering
+				}
+			}
+			if (flushing != null) {
+				sendQueries(flushing, flushing.length);
+			}
+			return true;
+		}
+		return sendQueries(new int[] { uid }, 1) > 0;
+	}
+
+	/**
+	 * Pipe up queries to primary login server for given users, without
+	 * lingering. Users with queries in flight are skipped.
+	 * 
+	 * @param uids
+	 * @return count of sent queries
+	 */
+	public static int queryUsers(int[] uids) {
+		long now = System.currentTimeMillis();
+		int[] queryingUIDs = new int[uids.length];
+		int size = 0;
+		for (int i = 0; i < uids.length; i++) {
+			int uid = uids[i];
+			int slot = uid & SLOTS_MASKS;
+			synchronized (dataMutex[slot]) {
+				if (!queryingUsers[slot].start(uid, now)) {
+					continue;
+				}
+			}
+			queryingUIDs[size++] = uid;
+		}
+		if (size == 0) {
+			return 0;
+		}
+		return sendQueries(queryingUIDs, size);
+	}
+
+	// Caller should synchronize on queryMutex
+	private static int[] takeLingeringQueries() {
+		int[] uids = new int[lingeringSize];
+		System.arraycopy(lingeringUIDs, 0, uids, 0, lingeringSize);
+		lingeringSize = 0;
+		return uids;
+	}
+
+	/*
+	 * Pipe up queries of given users, which are marked as in flight already.
+	 * If batching is disabled, legacy UserQuery events are sent, so primary
+	 * servers of older versions can still understand them.
+	 */
+	private static int sendQueries(int[] uids, int size) {
+		Service2LoginPipe servicePipe = null;
+		synchronized (Service2LoginPipe.pipeMutex) { // across multiple threads
+			servicePipe = Service2LoginPipe.servicePipe;
+		}
+		if (servicePipe == null) {
+			for (int i = 0; i < size; i++) {
+				int slot = uids[i] & SLOTS_MASKS;
+				synchronized (dataMutex[slot]) {
+					queryingUsers[slot].finish(uids[i]);
+				}
+			}
+			return 0;
+		}
+		if (size == 1 || ClusterConfig.clusterUserQueryLinger <= 0) {
+			SimpleSerializable[] queries = new SimpleSerializable[size];
+			for (int i = 0; i < size; i++) {
+				UserQuery q = new UserQuery();
+				q.uid = uids[i];
+				queries[i] = q;
+			}
+			servicePipe.pipeThrough(queries);
+			return size;
+		}
+		int batchSize = Math.max(1, ClusterConfig.clusterUserQueryBatchSize);
+		int batches = (size + batchSize - 1) / batchSize;
+		SimpleSerializable[] queries = new SimpleSerializable[batches];
+		for (int i = 0; i < batches; i++) {
+			int from = i * batchSize;
+			int count = Math.min(batchSize, size - from);
+			UserQueries qs = new UserQueries();
+			qs.uids = new int[count];
+			System.arraycopy(uids, from, qs.uids, 0, count);
+			queries[i] = qs;
+		}
+		servicePipe.pipeThrough(queries);
+		return size;
+	}
+
+	/*
+	 * Flush lingering user queries, so bursts of cache misses are piped up
+	 * in a few UserQueries events.
+	 */
+	private static void startQueryBatching() {
+		Thread batchingThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				while (true) {
+					int[] flushing = null;
+					synchronized (queryMutex) {
+						try {
+							while (lingeringSize == 0) {
+								queryMutex.wait();
+							}
+							long deadline = System.currentTimeMillis() + ClusterConfig.clusterUserQueryLinger;
+							long waiting = ClusterConfig.clusterUserQueryLinger;
+							while (lingeringSize > 0 && waiting > 0) {
+								queryMutex.wait(waiting);
+								waiting = deadline - System.currentTimeMillis();
+							}
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+						if (lingeringSize > 0) {
+							flushing = takeLingeringQueries();
+						}
+					}
+					if (flushing != null) {
+						sendQueries(flushing, flushing.length);
+					}
+				}
+			}
+			
+		}, "Cluster User Query Batcher");
+		batchingThread.setDaemon(true);
+		batchingThread.start();
+	}
+
+	/**
+	 * Pipe up user status to primary login server. Status may linger for a
+	 * short while, see {@link ClusterConfig#clusterUserStatusLinger}, to be
+	 * batched with other statuses. Statuses of the same user in lingering
+	 * window are collapsed into the latest one.
+	 * 
+	 * @param uss
+	 */
+	public static void pipeUpUserStatus(UserStatus uss) {
+		if (ClusterConfig.clusterUserStatusLinger <= 0) {
+			sendStatuses(new UserStatus[] { uss });
+			return;
+		}
+		UserStatus[] flushing = null;
+		synchronized (statusUplinkMutex) {
+			boolean lingering = !lingeringStatuses.isEmpty();
+			lingeringStatuses.put(uss.uid, uss);
+			if (lingeringStatuses.size() >= ClusterConfig.clusterUserStatusBatchSize) {
+				flushing = takeLingeringStatuses();
+			} else if (!lingering) {
+				statusUplinkMutex.notify(); // start lingering
+			}
+		}
+		if (flushing != null) {
+			sendStatuses(flushing);
+		}
+	}
+
+	// Caller should synchronize on statusUplinkMutex
+	private static UserStatus[] takeLingeringStatuses() {
+		IntMap<UserStatus> statuses = lingeringStatuses;
+		UserStatus[] usss = new UserStatus[statuses.size()];
+		int index = 0;
+		for (int i = 0; i < statuses.capacity() && index < usss.length; i++) {
+			if (statuses.keyAt(i) == 0) {
+				continue; // empty bucket
+			}
+			usss[index++] = statuses.valueAt(i);
+		}
+		lingeringStatuses = new IntMap<UserStatus>();
+		return usss;
+	}
+
+	/*
+	 * If batching is disabled, legacy UserStatus events are sent, so primary
+	 * servers of older versions can still understand them.
+	 */
+	private static void sendStatuses(UserStatus[] usss) {
+		Service2LoginPipe servicePipe = null;
+		synchronized (Service2LoginPipe.pipeMutex) { // across multiple threads
+			servicePipe = Service2LoginPipe.servicePipe;
+		}
+		if (servicePipe == null) {
+			return;
+		}
+		int size = usss.length;
+		if (size == 1 || ClusterConfig.clusterUserStatusLinger <= 0) {
+			servicePipe.pipeThrough(usss);
+			return;
+		}
+		int batchSize = Math.max(1, ClusterConfig.clusterUserStatusBatchSize);
+		int batches = (size + batchSize - 1) / batchSize;
+		SimpleSerializable[] events = new SimpleSerializable[batches];
+		for (int i = 0; i < batches; i++) {
+			int from = i * batchSize;
+			int count = Math.min(batchSize, size - from);
+			UserStatuses ss = new UserStatuses();
+			ss.uids = new int[count];
+			ss.statuses = new int[count];
+			ss.times = new long[count];
+			for (int j = 0; j < count; j++) {
+				UserStatus uss = usss[from + j];
+				ss.uids[j] = uss.uid;
+				ss.statuses[j] = uss.status;
+				ss.times[j] = uss.time;
+			}
+			events[i] = ss;
+		}
+		servicePipe.pipeThrough(events);
+	}
+
+	/*
+	 * Flush lingering user statuses, so login storms are piped up in a few
+	 * UserStatuses events.
+	 */
+	private static void startStatusBatching() {
+		Thread batchingThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				while (true) {
+					UserStatus[] flushing = null;
+					synchronized (statusUplinkMutex) {
+						try {
+							while (lingeringStatuses.isEmpty()) {
+								statusUplinkMutex.wait();
+							}
+							long deadline = System.currentTimeMillis() + ClusterConfig.clusterUserStatusLinger;
+							long waiting = ClusterConfig.clusterUserStatusLinger;
+							while (!lingeringStatuses.isEmpty() && waiting > 0) {
+								statusUplinkMutex.wait(waiting);
+								waiting = deadline - System.currentTimeMillis();
+							}
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+						if (!lingeringStatuses.isEmpty()) {
+							flushing = takeLingeringStatuses();
+						}
+					}
+					if (flushing != null) {
+						sendStatuses(flushing);
+					}
+				}
+			}
+			
+		}, "Cluster User Status Batcher");
+		batchingThread.setDaemon(true);
+		batchingThread.start();
+	}
+
+	/**
+	 * Keep event for its receiver, whose server is being queried. Event will
+	 * be piped out on query response, or be dropped on TTL expiring or on
+	 * exceeding limits, with its callback being run.
+	 * 
+	 * @param event
+	 * @param slot slot of event receiver
+	 */
+	public static void keepPendingEvent(ClusterEvent event, int slot) {
+		ClusterEvent dropped = null;
+		synchronized (dataMutex[slot]) {
+			dropped = crossPipeData[slot].add(event.receiver, event, System.currentTimeMillis());
+		}
+		if (dropped != null) {
+			if (ClusterConfig.clusterLogging) {
+				System.out.println("Cluster: Pending event for user " + dropped.receiver + " is dropped.");
+			}
+			ClusterDelivery.complete(dropped, ClusterDelivery.REJECTED);
+			runNotSentTaks(new ClusterEvent[] { dropped });
+		}
 	}
 	
 	public static void updatePoolConfigurations() {
@@ -137,6 +703,17 @@ public class XYZMixxer {
 		}
 	}
 
+	/**
+	 * Epoch of this server's user directory, changed on each restart.
+	 * 
+	 * Slot versions are only comparable within the same epoch.
+	 * 
+	 * @return
+	 */
+	public static long getEpoch() {
+		return initializedTime;
+	}
+
 	public static boolean isJustInitialized() {
 		return Math.abs(System.currentTimeMillis() - initializedTime) < ClusterConfig.clusterMaxInitializeTime; 
 	}
@@ -199,31 +776,233 @@ public class XYZMixxer {
 	/**
 	 * Pipe out events according to given user server result.
 	 * 
-	 * @param r
+	 * @param remoteHost
 	 * @param events
-	 * @return
+	 * @return 1 if events are piped, 0 if there is no pipe, or
+	 * {@link ClusterServer#PIPE_REJECTED} if events are rejected by full pipe
 	 */
-	public static boolean pipeOut(String remoteHost, ClusterEvent... events) {
+	public static int pipeOut(String remoteHost, ClusterEvent... events) {
 		Service2ServicePipe pipe = Service2ServicePipe.allServicePipes.get(remoteHost);
 		if (pipe != null) {
-			pipe.pipeThrough(events);
-			return true;
+			return pipeOut(pipe, ServerId.fromHost(remoteHost), events);
+		}
+		return pipeOut(ServerId.fromHost(remoteHost), events);
+	}
+
+	/**
+	 * Pipe out events to given server, see {@link ServerId}.
+	 * 
+	 * @param server
+	 * @param events
+	 * @return 1 if events are piped, 0 if there is no pipe, or
+	 * {@link ClusterServer#PIPE_REJECTED} if events are rejected by full pipe
+	 */
+	public static int pipeOut(int server, ClusterEvent... events) {
+		Service2ServicePipe pipe = Service2ServicePipe.getPipe(server);
+		if (pipe != null) {
+			return pipeOut(pipe, server, events);
+		}
+		return pipeOutNow(server, events);
+	}
+
+	private static int pipeOut(Service2ServicePipe pipe, int server, ClusterEvent[] events) {
+		if (server == ServerId.NONE) {
+			return pipe.pipeData(events);
+		}
+		if (!ClusterConfig.clusterReliableEvents) {
+			if (OutboundBatcher.pipe(server, events)) {
+				return 1;
+			}
+			return pipe.pipeData(events);
+		}
+		ClusterEvent[] wrapped = ReliableEvents.wrap(server, events);
+		if (wrapped == null) {
+			// too many events not acknowledged, rejected as by full pipe
+			ClusterDelivery.complete(events, ClusterDelivery.REJECTED);
+			return ClusterServer.PIPE_REJECTED;
+		}
+		if (OutboundBatcher.pipe(server, wrapped)) {
+			return 1; // wrapped events dropped on flushing are resent
+		}
+		int result = pipe.pipeData(wrapped);
+		if (result == ClusterServer.PIPE_REJECTED) {
+			// Caller is told, events should not be resent
+			ReliableEvents.unwrap(server, wrapped);
+			ClusterDelivery.complete(events, ClusterDelivery.REJECTED);
+		}
+		return result;
+	}
+
+	/**
+	 * Return how many more events can be held by pipe to given server, see
+	 * {@link AbstractClusterPipe#getRemainingCapacity()}.
+	 * 
+	 * @param server
+	 * @return remaining events, Integer.MAX_VALUE if there is no pipe
+	 */
+	public static int getPipeCapacity(int server) {
+		Service2ServicePipe pipe = Service2ServicePipe.getPipe(server);
+		if (pipe == null) {
+			return Integer.MAX_VALUE;
+		}
+		return pipe.getRemainingCapacity();
+	}
+
+	/**
+	 * Whether pipe to given server can hold given events without rejecting
+	 * them or not, see {@link AbstractClusterPipe#canHold(net.sf.j2s.ajax.SimpleSerializable...)}.
+	 * 
+	 * @param server
+	 * @param events
+	 * @return true if there is no pipe
+	 */
+	public static boolean canPipeHold(int server, ClusterEvent... events) {
+		Service2ServicePipe pipe = Service2ServicePipe.getPipe(server);
+		return pipe == null || pipe.canHold(events);
+	}
+
+	/*
+	 * Pipe out events without batching, called by OutboundBatcher on flushing.
+	 * Events rejected by full pipe are reported as dropped events, as there
+	 * are no callers waiting for the result.
+	 */
+	static int pipeOutNow(int server, ClusterEvent... events) {
+		Service2ServicePipe pipe = Service2ServicePipe.getPipe(server);
+		if (pipe != null) {
+			int result = pipe.pipeData(events);
+			if (result == ClusterServer.PIPE_REJECTED) {
+				pipe.eventsDropped(events);
+			}
+			return result;
 		}
-		String localHost = ClusterConfig.port == 80 ? ClusterConfig.clusterServerIP
-				: (ClusterConfig.clusterServerIP + ":" + ClusterConfig.port);
 		ClusterNode node = ClusterServer.getClusterNode();
-		if (node != null && (localHost.equals(remoteHost) // local server
-				|| (remoteHost != null && remoteHost.equals(node.getNodeID())))) { // gateway node
+		if (node != null && server != ServerId.NONE && (ServerId.isLocal(server) // local server
+				|| server == getNodeServerID(node))) { // gateway node
 			for (int i = 0; i < events.length; i++) {
-				node.onReceivedEvent(events[i]);
+				deliverEvent(node, events[i]);
 			}
-			return true;
+			ClusterDelivery.complete(events, ClusterDelivery.DELIVERED);
+			return 1;
 		}
 		// Ignore events
 		if (ClusterConfig.clusterLogging) {
-			System.out.println("Cluster: Not getting pipe for " + remoteHost);
+			System.out.println("Cluster: Not getting pipe for " + ServerId.getHost(server));
 		}
-		return false;
+		return 0;
+	}
+
+	/**
+	 * Deliver event to given cluster node. Multicast event is expanded into
+	 * an event for each of its receivers.
+	 * 
+	 * @param node
+	 * @param event
+	 */
+	public static void deliverEvent(ClusterNode node, ClusterEvent event) {
+		if (!(event instanceof MulticastEvent)) {
+			node.onReceivedEvent(event);
+			return;
+		}
+		MulticastEvent m = (MulticastEvent) event;
+		if (m.payload == null || m.receivers == null) {
+			return;
+		}
+		for (int i = 0; i < m.receivers.length; i++) {
+			if (m.receivers[i] > 0) {
+				node.onReceivedEvent(m.eventFor(m.receivers[i]));
+			}
+		}
+	}
+
+	/**
+	 * Return server ID of given cluster node's ID. Node ID is parsed only
+	 * when it is changed.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public static int getNodeServerID(ClusterNode node) {
+		if (node == null) {
+			return ServerId.NONE;
+		}
+		String nodeID = node.getNodeID();
+		if (nodeID == null) {
+			return ServerId.NONE;
+		}
+		Object[] cached = nodeServerID;
+		if (cached != null && cached[0] == nodeID) {
+			return ((Integer) cached[1]).intValue();
+		}
+		int id = ServerId.fromHost(nodeID);
+		nodeServerID = new Object[] { nodeID, Integer.valueOf(id) };
+		return id;
+	}
+
+	/**
+	 * Return indexes of given users ordered by slots, so users of the same
+	 * slot can be processed together.
+	 * 
+	 * @param uids
+	 * @return
+	 */
+	public static int[] sortBySlot(int[] uids) {
+		int length = uids.length;
+		long[] keys = new long[length];
+		for (int i = 0; i < length; i++) {
+			keys[i] = ((long) (uids[i] & SLOTS_MASKS) << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[length];
+		for (int i = 0; i < length; i++) {
+			order[i] = (int) keys[i];
+		}
+		return order;
+	}
+
+	/**
+	 * Read user records of primary server for given users, one validation
+	 * per slot. See {@link UserDirectory#peek(int)}.
+	 * 
+	 * @param uids
+	 * @return packed records, in the same order of given users
+	 */
+	public static long[] peekStatuses(int[] uids) {
+		long[] records = new long[uids.length];
+		int[] order = sortBySlot(uids);
+		int from = 0;
+		while (from < order.length) {
+			int slot = uids[order[from]] & SLOTS_MASKS;
+			int to = from + 1;
+			while (to < order.length && (uids[order[to]] & SLOTS_MASKS) == slot) {
+				to++;
+			}
+			allStatuses[slot].peek(uids, order, from, to, records);
+			from = to;
+		}
+		return records;
+	}
+
+	/**
+	 * Read cached users of service server for given users, one validation
+	 * per slot.
+	 * 
+	 * @param uids
+	 * @return cached results, in the same order of given users
+	 */
+	public static UserResult[] peekCachedUsers(int[] uids) {
+		UserResult[] results = new UserResult[uids.length];
+		int[] order = sortBySlot(uids);
+		int from = 0;
+		while (from < order.length) {
+			int slot = uids[order[from]] & SLOTS_MASKS;
+			int to = from + 1;
+			while (to < order.length && (uids[order[to]] & SLOTS_MASKS) == slot) {
+				to++;
+			}
+			cachedUsers[slot].peek(uids, order, from, to, results);
+			from = to;
+		}
+		return results;
 	}
 
 	/**
@@ -367,10 +1146,33 @@ public class XYZMixxer {
 	}
 	
 	/*
-	 * Synchronize slots from remote primary/login servers on given slot.
+	 * Synchronize slots from remote primary/login servers starting from given
+	 * slot. Slots are requested in a window of concurrent requests.
 	 */
-	public static void synchronizeSlots(final String remoteDomain, final int remotePort, final boolean syncMode, final int startingSlot) {
-		final String remoteHost = remotePort == 80 ? remoteDomain : (remoteDomain + ":" + remotePort);
+	public static void synchronizeSlots(String remoteDomain, int remotePort, boolean syncMode, int startingSlot) {
+		String remoteHost = remotePort == 80 ? remoteDomain : (remoteDomain + ":" + remotePort);
+		SlotSynchronizing sync = new SlotSynchronizing(remoteHost, syncMode, startingSlot);
+		// Newer synchronizing replaces existed one, existed requests won't claim more slots
+		syncingSessions.put(getSyncedKey(remoteHost, syncMode), sync);
+		int window = Math.max(1, ClusterConfig.clusterSynchronizingWindow);
+		for (int i = 0; i < window; i++) {
+			int slot = sync.claimSlot();
+			if (slot < 0) {
+				break;
+			}
+			synchronizeSlot(sync, slot, 0, 0);
+		}
+	}
+
+	/*
+	 * Synchronize given slot, or its chunk starting from given cursor. Version
+	 * of the first chunk is recorded as synchronized version of the slot, as
+	 * changes in between chunks are synchronized again on next delta.
+	 */
+	private static void synchronizeSlot(final SlotSynchronizing sync, final int slot,
+			final int cursor, final long firstVersion) {
+		final String remoteHost = sync.remoteHost;
+		final boolean syncMode = sync.syncMode;
 		SynchronizeUsers r = new SynchronizeUsers() {
 			
 			@Override
@@ -380,8 +1182,8 @@ public class XYZMixxer {
 	
 			@Override
 			public void ajaxOut() {
-				if (returnCode != OK || onlineBits == null
-						|| serverIndexes == null || allServers == null) {
+				if (returnCode != OK || allServers == null || (deltaMode ? changedUsers == null || serverIndexes == null
+						: (onlineUsers == null || serverRuns == null) && (onlineBits == null || serverIndexes == null))) {
 					retryOrFallback();
 					return;
 				}
@@ -391,81 +1193,128 @@ public class XYZMixxer {
 					
 					@Override
 					public void run() {
-						//*
-						ByteArrayOutputStream baos = new ByteArrayOutputStream();
-						ByteArrayInputStream bais = new ByteArrayInputStream(onlineBits);
-						GZIPInputStream gis = null;
-						try {
-							gis = new GZIPInputStream(bais);
-							byte[] buffer = new byte[8096];
-							int read = -1;
-							while ((read = gis.read(buffer)) > 0) {
-								baos.write(buffer, 0, read);
-							}
-						} catch (Throwable e) {
-							e.printStackTrace();
-						} finally {
-							if (gis != null) {
-								try {
-									gis.close();
-								} catch (IOException e) {
-									e.printStackTrace();
-								}
-							}
-						}
-						byte[] bits = baos.toByteArray();
-						// */
-						/*
-						// raw online bits
-						byte[] bits = onlineBits;
-						// */
-						byte[] masks = new byte[8];
-						for (int j = 0; j < 8; j++) {
-							masks[j] = (byte) (1 << j);
-						}
-						int index = 0; // also current online user count
-						for (int i = 0; i < bits.length; i++) {
-							for (int j = 0; j < 8; j++) {
-								if ((bits[i] & masks[j]) == masks[j]) {
-									// user is online
-									int serverIdx = -1;
-									if (index < serverIndexes.length) {
-										serverIdx = serverIndexes[index];
-									}
-									if (serverIdx >= 0 && serverIdx < allServers.length) {
-										ServerStatus ss = allServers[serverIdx];
-										if (ss != null) {
-											int uid = (((i << 3) + j) << SLOTS_BITS) + slot;
-											UserStatus uss = new UserStatus();
-											uss.status = IStatus.CONNECTED;
-											uss.time = time;
-											uss.uid = uid;
-											updateUserOnServer(uss, ss.domain, ss.port);
-										}
-									}
-									index++;
-								}
+						if (deltaMode) {
+							applyChanges();
+						} else if (onlineUsers != null) {
+							try {
+								applyOnlineUsers();
+							} catch (RuntimeException e) {
+								e.printStackTrace();
+								retryOrFallback();
+								return;
 							}
+						} else {
+							applyOnlineBits();
 						}
-						if (startingSlot < XYZMixxer.SLOTS - 1) {
-							synchronizeSlots(remoteDomain, remotePort, syncMode, startingSlot + 1);
-						}  else { // else all slots synchronized
-							ISynchronizedCallback cb = syncedCallback;
-							if (cb != null) {
-								try {
-									cb.allSlotsSynchronized();
-								} catch (Throwable e) {
-									e.printStackTrace();
-								}
-							}
-							if (ClusterConfig.clusterLogging) {
-								System.out.println("Cluster: All slots of server " + remoteHost + " synchronized " + System.currentTimeMillis());
-							}
+						long slotVersion = cursor > 0 ? firstVersion : version;
+						if (!deltaMode && nextCursor > cursor) {
+							// More chunks of this slot
+							synchronizeSlot(sync, slot, nextCursor, slotVersion);
+							return;
 						}
+						updateSynchronizedVersion(remoteHost, syncMode, slot, epoch, slotVersion);
+						slotSynchronized(sync, slot);
 					}
 					
 				});
 			}
+
+			/*
+			 * Server IDs of responded servers, ServerId.NONE for down servers.
+			 */
+			private int[] internServers() {
+				int[] serverIDs = new int[allServers.length];
+				for (int i = 0; i < serverIDs.length; i++) {
+					ServerStatus ss = allServers[i];
+					serverIDs[i] = ss == null ? ServerId.NONE : ServerId.intern(ss.domain, ss.port);
+				}
+				return serverIDs;
+			}
+
+			private int serverOf(int[] serverIDs, int[] indexes, int i) {
+				int serverIdx = i < indexes.length ? indexes[i] : -1;
+				if (serverIdx >= 0 && serverIdx < serverIDs.length) {
+					return serverIDs[serverIdx];
+				}
+				return ServerId.NONE;
+			}
+
+			/*
+			 * Only users changed since last synchronized version are responded.
+			 */
+			private void applyChanges() {
+				int[] serverIDs = internServers();
+				int[] servers = new int[changedUsers.length];
+				for (int i = 0; i < changedUsers.length; i++) {
+					servers[i] = serverOf(serverIDs, serverIndexes, i);
+					if (servers[i] == ServerId.NONE) {
+						dropSynchronizedUser(changedUsers[i], time);
+					}
+				}
+				updateUsersOnServers(changedUsers, servers, changedUsers.length, IStatus.CONNECTED, time);
+			}
+
+			/*
+			 * Online users in compact encoding, see UserBitmap.
+			 */
+			private void applyOnlineUsers() {
+				int[] locations = UserBitmap.decode(onlineUsers);
+				int[] indexes = UserBitmap.decodeRuns(serverRuns);
+				int[] serverIDs = internServers();
+				int[] servers = new int[locations.length];
+				for (int i = 0; i < locations.length; i++) {
+					locations[i] = (locations[i] << SLOTS_BITS) + slot; // to user ID
+					servers[i] = serverOf(serverIDs, indexes, i);
+				}
+				updateUsersOnServers(locations, servers, locations.length, IStatus.CONNECTED, time);
+			}
+
+			private void applyOnlineBits() {
+				//*
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				ByteArrayInputStream bais = new ByteArrayInputStream(onlineBits);
+				GZIPInputStream gis = null;
+				try {
+					gis = new GZIPInputStream(bais);
+					byte[] buffer = new byte[8096];
+					int read = -1;
+					while ((read = gis.read(buffer)) > 0) {
+						baos.write(buffer, 0, read);
+					}
+				} catch (Throwable e) {
+					e.printStackTrace();
+				} finally {
+					if (gis != null) {
+						try {
+							gis.close();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+				byte[] bits = baos.toByteArray();
+				// */
+				/*
+				// raw online bits
+				byte[] bits = onlineBits;
+				// */
+				int[] serverIDs = internServers();
+				int[] uids = new int[serverIndexes.length];
+				int[] servers = new int[serverIndexes.length];
+				int index = 0; // also current online user count
+				for (int i = 0; i < bits.length && index < uids.length; i++) {
+					int b = bits[i] & 0xff;
+					while (b != 0 && index < uids.length) {
+						// user is online
+						int j = Integer.numberOfTrailingZeros(b);
+						b &= b - 1;
+						uids[index] = (((i << 3) + j) << SLOTS_BITS) + slot;
+						servers[index] = serverOf(serverIDs, serverIndexes, index);
+						index++;
+					}
+				}
+				updateUsersOnServers(uids, servers, index, IStatus.CONNECTED, time);
+			}
 			
 			@Override
 			public void ajaxFail() {
@@ -477,18 +1326,124 @@ public class XYZMixxer {
 				if (allLogin2LoginPipes.get(remoteHost) == null) {
 					return; // breaking synchronizing...
 				}
-				synchronizeSlots(remoteDomain, remotePort, syncMode, startingSlot);
+				if (syncingSessions.get(getSyncedKey(remoteHost, syncMode)) != sync) {
+					return; // replaced by newer synchronizing
+				}
+				synchronizeSlot(sync, slot, cursor, firstVersion);
 			}
 			
 		};
 		r.masterMode = syncMode;
-		r.slot = startingSlot;
+		r.slot = slot;
+		r.slotBits = SLOTS_BITS;
+		r.encoding = SynchronizeUsers.ENCODING_COMPACT;
+		r.cursor = cursor;
+		AtomicLongArray vs = cursor > 0 ? null : syncedVersions.get(getSyncedKey(remoteHost, syncMode));
+		if (vs != null) {
+			r.epoch = vs.get(SLOTS);
+			r.sinceVersion = vs.get(slot);
+		}
 		r.apiSecret = ClusterConfig.clusterAPISecret;
 		r.setRetries(3); // We would like to make more tries
 		r.setSimpleVersion(SimpleSerializable.LATEST_SIMPLE_VERSION);
 		SimpleRPCRequest.request(r);
 	}
 	
+	/*
+	 * Report progress and continue with next slot. After all slots are
+	 * synchronized, notify synchronized callback.
+	 */
+	private static void slotSynchronized(SlotSynchronizing sync, int slot) {
+		int synced = sync.slotSynchronized();
+		int total = sync.totalSlots();
+		ISynchronizedCallback cb = syncedCallback;
+		if (cb instanceof ISynchronizedProgressCallback) {
+			try {
+				((ISynchronizedProgressCallback) cb).slotSynchronized(sync.remoteHost, slot, synced, total);
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+		String key = getSyncedKey(sync.remoteHost, sync.syncMode);
+		if (synced < total) {
+			if (syncingSessions.get(key) != sync) {
+				return; // replaced by newer synchronizing
+			}
+			int next = sync.claimSlot();
+			if (next >= 0) {
+				synchronizeSlot(sync, next, 0, 0);
+			} // else other slots are still being synchronized
+			return;
+		}
+		// all slots synchronized
+		syncingSessions.remove(key, sync);
+		if (cb != null) {
+			try {
+				cb.allSlotsSynchronized();
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+		if (ClusterConfig.clusterLogging) {
+			System.out.println("Cluster: All slots of server " + sync.remoteHost + " synchronized in "
+					+ (System.currentTimeMillis() - sync.started) + "ms " + System.currentTimeMillis());
+		}
+	}
+
+	private static String getSyncedKey(String remoteHost, boolean syncMode) {
+		return syncMode ? remoteHost + "/m" : remoteHost;
+	}
+
+	/*
+	 * Record synchronized slot version of remote server. If remote server is
+	 * restarted (epoch changed), all recorded versions are discarded. Called
+	 * by concurrent slot synchronizing, versions array is replaced atomically.
+	 */
+	private static void updateSynchronizedVersion(String remoteHost, boolean syncMode, int slot, long epoch, long version) {
+		if (epoch <= 0 || slot < 0 || slot >= SLOTS) {
+			return; // remote server does not support versioning
+		}
+		String key = getSyncedKey(remoteHost, syncMode);
+		AtomicLongArray vs = syncedVersions.get(key);
+		while (vs == null || vs.get(SLOTS) != epoch) {
+			AtomicLongArray created = new AtomicLongArray(SLOTS + 1);
+			created.set(SLOTS, epoch);
+			if (vs == null ? syncedVersions.putIfAbsent(key, created) == null
+					: syncedVersions.replace(key, vs, created)) {
+				vs = created;
+				break;
+			}
+			vs = syncedVersions.get(key); // created by other slot
+		}
+		vs.set(slot, version);
+	}
+
+	/*
+	 * User is reported as offline by remote server's slot changes. Only users
+	 * which are known as being on remote servers are disconnected, users on
+	 * this server or on inner service servers are kept untouched.
+	 */
+	private static void dropSynchronizedUser(int uid, long time) {
+		int slot = uid & SLOTS_MASKS;
+		synchronized (statusMutex[slot]) {
+			UserDirectory dir = allStatuses[slot];
+			int pos = dir.indexOf(uid);
+			if (pos < 0) {
+				return;
+			}
+			int server = dir.serverAt(pos);
+			if (server == ServerId.NONE || ServerId.isLocal(server)
+					|| Login2ServicePipe.getPipe(server) != null) {
+				return;
+			}
+			UserStatus uss = new UserStatus();
+			uss.uid = uid;
+			uss.status = IStatus.DISCONNECTED;
+			uss.time = time;
+			updateUserInSlot(dir, uss, ServerId.getDomain(server), ServerId.getPort(server), server, null);
+		}
+	}
+
 	/**
 	 * Disconnect from primary login server as a slave login server.
 	 * 
@@ -581,6 +1536,7 @@ public class XYZMixxer {
 			@Override
 			public boolean deal(UserResult usr) {
 				// User status updates from other login server
+				usr.domain = ServerId.canonicalDomain(usr.domain, usr.port);
 				UserStatus uss = new UserStatus();
 				uss.status = usr.status;
 				uss.time = usr.lastUpdated;
@@ -599,11 +1555,39 @@ public class XYZMixxer {
 				}
 				return true;
 			}
+
+			@Override
+			public boolean deal(UserResults usrs) {
+				// Batched user status updates from other login server
+				if (usrs.size() == 0) {
+					return true;
+				}
+				boolean[] updated = updateUsersOnServers(usrs);
+				if (ClusterConfig.clusterPrimarySynchronizing) { // Proxy to other servers
+					UserResults rs = null;
+					for (Iterator<Login2LoginPipe> itr = Login2LoginPipe.allSyncPipes.values().iterator();
+							itr.hasNext();) {
+						Login2LoginPipe p = (Login2LoginPipe) itr.next();
+						if (remotePort != p.port || !remoteDomain.equals(p.domain)) {
+							if (rs == null) {
+								rs = usrs.select(updated);
+								if (rs.size() == 0) {
+									break;
+								}
+							}
+							p.pipeUserResults(rs);
+						}
+					}
+				}
+				return true;
+			}
 			
 			@Override
 			public boolean deal(ServerStatus ss) {
 				// Server status updates from other login server
-				String remoteHost = ss.port == 80 ? ss.domain : (ss.domain + ":" + ss.port);
+				int server = ServerId.intern(ss.domain, ss.port);
+				ss.domain = ServerId.canonicalDomain(ss.domain, ss.port);
+				String remoteHost = ServerId.getHost(server);
 				ServerStatus s = null;
 				if (ss.status == IStatus.DISCONNECTED) {
 					s = allServerStatuses.remove(remoteHost);
@@ -615,7 +1599,7 @@ public class XYZMixxer {
 					if (!XYZMixxer.isPrimaryProxyMode()) {
 						for (Iterator<Login2ServicePipe> itr = Login2ServicePipe.allLoginPipes.values().iterator(); itr.hasNext();) {
 							Login2ServicePipe pipe = itr.next();
-							if (!remoteHost.equals(pipe.getHost())) {
+							if (server != pipe.getServerID()) {
 								// pipe this pipe's another end (service server) to all existed
 								// service server
 								pipe.pipeThrough(ss);
@@ -647,7 +1631,8 @@ public class XYZMixxer {
 			
 			@Override
 			public boolean deal(final ServerLost sl) {
-				if (sl.offlineBits == null || sl.offlineBits.length <= 0) {
+				if ((sl.offlineBits == null || sl.offlineBits.length <= 0)
+						&& (sl.offlineUsers == null || sl.offlineUsers.length <= 0)) {
 					return true;
 				}
 				// gzip decoding is considered as CPU critical.
@@ -656,6 +1641,45 @@ public class XYZMixxer {
 					
 					@Override
 					public void run() {
+						boolean containsUpdate = false;
+						if (sl.offlineUsers != null) {
+							containsUpdate = dropOfflineUsers();
+						} else {
+							containsUpdate = dropOfflineBits();
+						}
+
+						if (containsUpdate && ClusterConfig.clusterPrimarySynchronizing) {
+							// ServerLost event needs to be piped to other primary server
+							for (Iterator<Login2LoginPipe> itr = Login2LoginPipe.allSyncPipes.values().iterator();
+									itr.hasNext();) {
+								Login2LoginPipe p = (Login2LoginPipe) itr.next();
+								if (remotePort != p.port || !remoteDomain.equals(p.domain)) {
+									// ServerLost event is not coming from the same server of this pipe
+									if (sl.sourcePort != p.port || (sl.sourceDomain != null && !sl.sourceDomain.equals(p.domain))) {
+										// Not sending ServerLost event back to its source
+										p.pipeThrough(sl);
+									}
+								}
+							}
+						}
+					}
+
+					private boolean dropOfflineUsers() {
+						int[] locations = null;
+						try {
+							locations = UserBitmap.decode(sl.offlineUsers);
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+							return false;
+						}
+						int slotBits = sl.slotBits > 0 ? sl.slotBits : LEGACY_SLOTS_BITS;
+						for (int i = 0; i < locations.length; i++) {
+							locations[i] = (locations[i] << slotBits) + sl.slot; // to user ID
+						}
+						return dropUsers(locations, locations.length);
+					}
+
+					private boolean dropOfflineBits() {
 						//*
 						ByteArrayOutputStream baos = new ByteArrayOutputStream();
 						ByteArrayInputStream bais = new ByteArrayInputStream(sl.offlineBits);
@@ -684,43 +1708,33 @@ public class XYZMixxer {
 						// raw online bits
 						byte[] bits = sl.offlineBits;
 						// */
-						byte[] masks = new byte[8];
-						for (int j = 0; j < 8; j++) {
-							masks[j] = (byte) (1 << j);
+						int slotBits = sl.slotBits > 0 ? sl.slotBits : LEGACY_SLOTS_BITS;
+						int count = 0;
+						for (int i = 0; i < bits.length; i++) {
+							count += Integer.bitCount(bits[i] & 0xff);
 						}
-						boolean containsUpdate = false;
-						// int index = 0; // also current online user count
+						int[] uids = new int[count];
+						int index = 0;
 						for (int i = 0; i < bits.length; i++) {
-							for (int j = 0; j < 8; j++) {
-								if ((bits[i] & masks[j]) == masks[j]) {
-									// user is offline
-									int uid = (((i << 3) + j) << SLOTS_BITS) + sl.slot;
-									UserStatus uss = new UserStatus();
-									uss.status = IStatus.DISCONNECTED;
-									uss.time = sl.time;
-									uss.uid = uid;
-									if (updateUserOnServer(uss, sl.domain, sl.port)) {
-										containsUpdate = true;
-									}
-									// index++;
-								}
+							int b = bits[i] & 0xff;
+							while (b != 0) {
+								// user is offline
+								int j = Integer.numberOfTrailingZeros(b);
+								b &= b - 1;
+								uids[index++] = (((i << 3) + j) << slotBits) + sl.slot;
 							}
 						}
+						return dropUsers(uids, index);
+					}
 
-						if (containsUpdate && ClusterConfig.clusterPrimarySynchronizing) {
-							// ServerLost event needs to be piped to other primary server
-							for (Iterator<Login2LoginPipe> itr = Login2LoginPipe.allSyncPipes.values().iterator();
-									itr.hasNext();) {
-								Login2LoginPipe p = (Login2LoginPipe) itr.next();
-								if (remotePort != p.port || !remoteDomain.equals(p.domain)) {
-									// ServerLost event is not coming from the same server of this pipe
-									if (sl.sourcePort != p.port || (sl.sourceDomain != null && !sl.sourceDomain.equals(p.domain))) {
-										// Not sending ServerLost event back to its source
-										p.pipeThrough(sl);
-									}
-								}
-							}
+					private boolean dropUsers(int[] uids, int length) {
+						int server = ServerId.intern(sl.domain, sl.port);
+						if (server == ServerId.NONE) {
+							return false;
 						}
+						int[] servers = new int[length];
+						Arrays.fill(servers, server);
+						return updateUsersOnServers(uids, servers, length, IStatus.DISCONNECTED, sl.time) > 0;
 					}
 					
 				});
@@ -824,6 +1838,7 @@ public class XYZMixxer {
 		allLogin2LoginPipes.put(remoteHost, p);
 		p.apiSecret = ClusterConfig.clusterAPISecret;
 		p.port = ClusterConfig.port;
+		p.batching = true; // deal UserResults from remote server
 		// on triggered by *.ini update (server#1)
 		// #createLogin2LoginPipe, targetDomain is ClusterConfig#clusterServerIP, set to p#domain
 		// remoteDomain is ClusterConfig#clusterMasterServerIP, set to p#target
@@ -991,11 +2006,12 @@ public class XYZMixxer {
 					// Ignore this server's status update
 					return true;
 				}
+				int server = ServerId.intern(ss.domain, ss.port);
+				ss.domain = ServerId.canonicalDomain(ss.domain, ss.port);
 				if (ss.status == IStatus.CONNECTED) {
 					XYZMixxer.createService2ServicePipe(ss.domain, ss.port);
 				}
-				String remoteHost = ss.port == 80 ? ss.domain : (ss.domain + ":" + ss.port);
-				allServerStatuses.put(remoteHost, ss);
+				allServerStatuses.put(ServerId.getHost(server), ss);
 				return true;
 			}
 	
@@ -1007,6 +2023,18 @@ public class XYZMixxer {
 				gotUserOnServer(usr);
 				return true;
 			}
+
+			/**
+			 * @see Service2LoginPipe#deal(UserQueries)
+			 */
+			@Override
+			public boolean deal(UserResults usrs) {
+				int size = usrs.size();
+				for (int i = 0; i < size; i++) {
+					gotUserOnServer(usrs.getResult(i));
+				}
+				return true;
+			}
 			
 			@Override
 			public boolean deal(UserDuplicated usd) {
@@ -1078,7 +2106,8 @@ public class XYZMixxer {
 	 * @param remotePort
 	 */
 	public static void createService2LoginPipe(final String remoteDomain, final int remotePort) {
-		final String remoteHost = remotePort == 80 ? remoteDomain : (remoteDomain + ":" + remotePort);
+		final int remoteServer = ServerId.intern(remoteDomain, remotePort);
+		final String remoteHost = ServerId.getHost(remoteServer);
 		Service2LoginPipe p = allService2LoginPipes.get(remoteHost);
 		if (p != null/* && p.isPipeLive()*/) {
 			return; // ignore
@@ -1108,7 +2137,7 @@ public class XYZMixxer {
 			
 			@Override
 			public boolean deal(HeartBeat shb) {
-				Login2ServicePipe p = Login2ServicePipe.allLoginPipes.get(remoteHost);
+				Login2ServicePipe p = Login2ServicePipe.getPipe(remoteServer);
 				if (p != null) {
 					p.setLastHeartbeat(System.currentTimeMillis());
 				}
@@ -1147,6 +2176,39 @@ public class XYZMixxer {
 				}
 				return true;
 			}
+
+			@Override
+			public boolean deal(UserStatuses usss) {
+				int length = usss.uids == null ? 0 : usss.uids.length;
+				if (length == 0) {
+					return true;
+				}
+				UserResults rs = new UserResults();
+				rs.uids = usss.uids;
+				rs.statuses = usss.statuses;
+				rs.lastUpdated = usss.times;
+				rs.servers = new int[length]; // all users are on remote server
+				rs.domains = new String[] { remoteDomain };
+				rs.ports = new int[] { remotePort };
+				boolean[] updated = updateUsersOnServers(rs);
+				if (ClusterConfig.clusterPrimarySynchronizing && !Login2LoginPipe.allSyncPipes.isEmpty()) {
+					UserResults usrs = rs.select(updated);
+					if (usrs.size() > 0) {
+						if (XYZMixxer.isPrimaryProxyMode()) {
+							// Sending out user updates to other primary server, as in proxy
+							// mode, mark these users as coming from this server.
+							usrs.domains = new String[] { ClusterConfig.clusterServerIP };
+							usrs.ports = new int[] { ClusterConfig.port };
+						}
+						for (Iterator<Login2LoginPipe> itr = Login2LoginPipe.allSyncPipes.values().iterator();
+								itr.hasNext();) {
+							Login2LoginPipe p = (Login2LoginPipe) itr.next();
+							p.pipeUserResults(usrs);
+						}
+					}
+				}
+				return true;
+			}
 	
 			/**
 			 * @see Login2ServicePipe#deal(UserResult)
@@ -1154,44 +2216,62 @@ public class XYZMixxer {
 			@Override
 			public boolean deal(UserQuery usq) {
 				UserResult r = queryUserServer(usq, remoteDomain, remotePort);
-				Login2ServicePipe p = Login2ServicePipe.allLoginPipes.get(remoteHost);
+				Login2ServicePipe p = Login2ServicePipe.getPipe(remoteServer);
 				if (p != null) {
 					p.pipeThrough(r);
 				}
 				return true;
 			}
+
+			/**
+			 * @see Login2ServicePipe#deal(UserResults)
+			 */
+			@Override
+			public boolean deal(UserQueries usqs) {
+				if (usqs.uids == null || usqs.uids.length == 0) {
+					return true;
+				}
+				UserResults rs = queryUserServers(usqs.uids, remoteDomain, remotePort);
+				Login2ServicePipe p = Login2ServicePipe.getPipe(remoteServer);
+				if (p != null) {
+					p.pipeThrough(rs);
+				}
+				return true;
+			}
 			
+			// Applying tasks of online users, plus one until all online users are got
+			private volatile AtomicInteger applying;
+
 			@Override
 			public void pipeCreated() {
 				super.pipeCreated();
 				setStopping(false);
 				setLastHeartbeat(System.currentTimeMillis());
+				applying = new AtomicInteger(1);
 				if (onlineUsers != null) {
 					// If primary-service connection/pipe is lost, reconnecting
 					// to service server will get a lot of online users (maybe
 					// a hundred thousand users). Synchronizing these users is
-					// considered blocking, try to use thread to update all
-					// existed users and avoid blocking current thread (NIO).
-					XYZMixxer.runTask(new Runnable() {
-						
-						@Override
-						public void run() {
-							UserStatus uss = new UserStatus();
-							uss.time = time;
-							uss.status = IStatus.CONNECTED;
-							for (int i = 0; i < onlineUsers.length; i++) {
-								int uid = onlineUsers[i];
-								if (uid <= 0) {
-									continue;
-								}
-								uss.uid = uid;
-								updateUserOnServer(uss, remoteDomain, remotePort);
-							}
-						}
-						
-					});
+					// considered blocking, try to use thread to update all
+					// existed users and avoid blocking current thread (NIO).
+					applyOnlineUsers(onlineUsers, time, remoteServer, applying);
+					onlineUsersApplied(remoteServer, applying);
+				}
+			}
 
+			/**
+			 * @see Service2LoginPipe#pipeSetup()
+			 */
+			@Override
+			public boolean deal(OnlineUsers ous) {
+				AtomicInteger a = applying;
+				if (ous.uids != null && ous.uids.length > 0) {
+					applyOnlineUsers(ous.uids, ous.time, remoteServer, a);
+				}
+				if (ous.last && a != null) {
+					onlineUsersApplied(remoteServer, a);
 				}
+				return true;
 			}
 			
 			@Override
@@ -1239,13 +2319,13 @@ public class XYZMixxer {
 				allService2LoginPipes.remove(remoteHost);
 				// Service server is down or removed from cluster
 				allServerStatuses.remove(remoteHost);
-				Login2ServicePipe l2sPipe = Login2ServicePipe.allLoginPipes.get(remoteHost);
+				Login2ServicePipe l2sPipe = Login2ServicePipe.getPipe(remoteServer);
 				if (l2sPipe != null && !l2sPipe.isPipeLive()) {
-					Login2ServicePipe removedPipe = Login2ServicePipe.allLoginPipes.remove(remoteHost);
+					Login2ServicePipe removedPipe = Login2ServicePipe.removePipe(remoteHost);
 					if (removedPipe != null && removedPipe != l2sPipe) {
 						// In rare case, remote service server come back with another pipe,
 						// just put pipe back into map.
-						Login2ServicePipe.allLoginPipes.put(remoteHost, removedPipe);
+						Login2ServicePipe.putPipe(removedPipe);
 					}
 				}
 				
@@ -1259,7 +2339,7 @@ public class XYZMixxer {
 						ss.status = IStatus.DISCONNECTED;
 						for (Iterator<Login2ServicePipe> itr = Login2ServicePipe.allLoginPipes.values().iterator(); itr.hasNext();) {
 							Login2ServicePipe pipe = itr.next();
-							if (!remoteHost.equals(pipe.getHost())) {
+							if (remoteServer != pipe.getServerID()) {
 								// pipe this pipe's another end (service server) to all existed
 								// service server
 								pipe.pipeThrough(ss);
@@ -1299,6 +2379,7 @@ public class XYZMixxer {
 			
 		};
 		p.apiSecret = ClusterConfig.clusterAPISecret;
+		p.streaming = true;
 		p.setLastHeartbeat(System.currentTimeMillis());
 		allService2LoginPipes.put(remoteHost, p);
 		AbstractClusterPipe.startClusterPipeMonitor4Client(p);
@@ -1313,7 +2394,8 @@ public class XYZMixxer {
 	 * @param remotePort
 	 */
 	public static void createService2ServicePipe(final String remoteDomain, final int remotePort) {
-		final String remoteHost = remotePort == 80 ? remoteDomain : (remoteDomain + ":" + remotePort);
+		final int remoteServer = ServerId.intern(remoteDomain, remotePort);
+		final String remoteHost = ServerId.getHost(remoteServer);
 		Service2ServicePipe p = allService2ServicePipes.get(remoteHost);
 		if (p != null/* && p.isPipeLive()*/) {
 			return; // ignore
@@ -1355,83 +2437,86 @@ public class XYZMixxer {
 				if (ClusterConfig.clusterPrimaryServer) {
 					// Primary login server knows which user on which server directly.
 					// Select correct pipe and pipe out data event.
-					String host = null;
-					UserResult r = null;
-					synchronized (XYZMixxer.statusMutex[slot]) {
-						r = XYZMixxer.allStatuses[slot].get(event.receiver);
-						if (r == null || r.status != IStatus.CONNECTED) {
-							return 0;
-						}
-						host = r.port == 80 ? r.domain : (r.domain + ":" + r.port);
+					long record = XYZMixxer.allStatuses[slot].peek(event.receiver);
+					if (record == UserDirectory.NOT_FOUND || UserDirectory.statusOf(record) != IStatus.CONNECTED) {
+						return 0;
 					}
-					if (!host.equals(remoteHost)) {
+					int server = UserDirectory.serverOf(record);
+					long lastUpdated = UserDirectory.timeOf(record);
+					if (server != remoteServer) {
 						// target server is not the source server of this event 
 						boolean sent = false;
 						if (!ClusterConfig.clusterPrimaryLoginServer) {
-							sent = XYZMixxer.pipeOut(host, event);
+							int result = XYZMixxer.pipeOut(server, event);
+							if (result == ClusterServer.PIPE_REJECTED) {
+								return result;
+							}
+							sent = result == 1;
 							if (!sent // User is not online and unreachable
-									&& ClusterConfig.clusterUnreachableUserRemoving && r.lastUpdated > 0
-									&& System.currentTimeMillis() - r.lastUpdated > ClusterConfig.clusterMaxUnreachableTime) { 
+									&& ClusterConfig.clusterUnreachableUserRemoving && lastUpdated > 0
+									&& System.currentTimeMillis() - lastUpdated > ClusterConfig.clusterMaxUnreachableTime) { 
 								ClusterServer.updateUser(event.receiver, false); // update its status on primary server
 							}
 						} else {
-							sent = XYZMixxer.sendPipeOutRPC(host, event);
+							sent = XYZMixxer.sendPipeOutRPC(ServerId.getHost(server), event);
 						}
 						return sent ? 1 : 0;
 						// return (!ClusterConfig.clusterPrimaryLoginServer
-						// 		? XYZMixxer.pipeOut(host, event)
-						//				: XYZMixxer.sendPipeOutRPC(host, event)) ? 1 : 0;
+						// 		? XYZMixxer.pipeOut(server, event)
+						//				: XYZMixxer.sendPipeOutRPC(ServerId.getHost(server), event)) ? 1 : 0;
 					} // else cluster event runs into event loop, ignore proxy this event
 					return 0;
 				} else {
 					// For normal service, try to check cached users. If there are
 					// not-expired-yet cached user, try to pipe data through service-
 					// service pipe for this cached user.
-					String host = null;
-					synchronized (XYZMixxer.userMutex[slot]) {
-						UserResult r = XYZMixxer.cachedUsers[slot].get(event.receiver);
-						if (r != null && (r.lastUpdated == -1 // Logging in from this service server, never expired
-								|| Math.abs(System.currentTimeMillis() - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
-							if (r.status != IStatus.CONNECTED) {
-								return 0;
-							}
-							host = r.port == 80 ? r.domain : (r.domain + ":" + r.port);
+					int server = ServerId.NONE;
+					UserResult r = XYZMixxer.cachedUsers[slot].peek(event.receiver);
+					if (r != null && (r.lastUpdated == -1 // Logging in from this service server, never expired
+							|| Math.abs(System.currentTimeMillis() - r.lastUpdated) < ClusterConfig.clusterUserCachingTime)) {
+						if (r.status != IStatus.CONNECTED) {
+							return 0;
 						}
+						server = ServerId.intern(r.domain, r.port);
 					}
-					if (host != null) {
-						if (!host.equals(remoteHost)) {
+					if (server != ServerId.NONE) {
+						if (server != remoteServer) {
 							// target server is not the source server of this event 
-							return XYZMixxer.pipeOut(host, event) ? 1 : 0;
+							return XYZMixxer.pipeOut(server, event);
 						} // else cluster event runs into event loop, ignore proxy this event
 						return 0;
 					}
 					// User is not in cached pool, try to save data event in cross pipe data
 					// pool, and then pipe up a query to primary login server. On got query
 					// response, data event saved in the pool will be piped out again.
-					synchronized (XYZMixxer.dataMutex[slot]) {
-						List<ClusterEvent> data = XYZMixxer.crossPipeData[slot].get(event.receiver);
-						if (data == null) {
-							data = new LinkedList<ClusterEvent>();
-							XYZMixxer.crossPipeData[slot].put(event.receiver, data);
-						}
-						data.add(event);
-					}
-					UserQuery q = new UserQuery();
-					q.uid = event.receiver;
-					Service2LoginPipe servicePipe = null;
-					synchronized (Service2LoginPipe.pipeMutex) { // across multiple threads
-						servicePipe = Service2LoginPipe.servicePipe;
-					}
-					if (servicePipe != null) {
-						servicePipe.pipeThrough(q);
+					if (XYZMixxer.isKnownOffline(event.receiver)) {
+						return 0;
 					}
+					XYZMixxer.keepPendingEvent(event, slot);
+					XYZMixxer.queryUser(event.receiver);
 					return -1;
 				}
 			}
 
+			@Override
+			public boolean deal(EventAcks acks) {
+				ReliableEvents.acknowledged(remoteServer, acks);
+				return true;
+			}
+
 			@Override
 			public boolean deal(ClusterEvent evt) {
-				if (XYZMixxer.isPrimaryProxyMode()) {
+				if (evt instanceof ReliableEvent) {
+					ReliableEvent re = (ReliableEvent) evt;
+					if (ReliableEvents.received(remoteServer, re) && re.payload != null) {
+						deal(re.payload);
+					} // else duplicated event
+					ReliableEvents.acknowledge(remoteServer, re);
+					return true;
+				}
+				if (evt instanceof MulticastEvent) {
+					dealMulticast((MulticastEvent) evt);
+				} else if (XYZMixxer.isPrimaryProxyMode()) {
 					// Proxy to real service server
 					pipeEvent(evt);
 				} else {
@@ -1454,6 +2539,42 @@ public class XYZMixxer {
 				}
 				return true;
 			}
+
+			private void dealMulticast(MulticastEvent m) {
+				if (m.payload == null || m.receivers == null) {
+					return;
+				}
+				if (XYZMixxer.isPrimaryProxyMode()) {
+					// Proxy to real service servers
+					ClusterServer.pipeMulticastEvent(m.payload, m.receivers);
+					return;
+				}
+				ClusterNode serviceNode = ClusterServer.getClusterNode();
+				if (serviceNode == null) {
+					return;
+				}
+				boolean[] online = ClusterServer.isUsersOnline(m.receivers);
+				int offlineCount = 0;
+				for (int i = 0; i < m.receivers.length; i++) {
+					if (online[i]) {
+						serviceNode.onReceivedEvent(m.eventFor(m.receivers[i]));
+					} else {
+						offlineCount++;
+					}
+				}
+				if (offlineCount > 0) {
+					// Proxy to other service servers
+					int[] offlineReceivers = new int[offlineCount];
+					int index = 0;
+					for (int i = 0; i < m.receivers.length; i++) {
+						if (!online[i]) {
+							offlineReceivers[index++] = m.receivers[i];
+						}
+					}
+					m.payload.setSender(0);
+					ClusterServer.pipeMulticastEvent(m.payload, offlineReceivers);
+				}
+			}
 			
 			@Override
 			public void pipeCreated() {
@@ -1492,7 +2613,7 @@ public class XYZMixxer {
 			protected void pipeRemoved() {
 				removeClusterPipeFromMonitor4Client(this);
 				allService2ServicePipes.remove(remoteHost);
-				Service2ServicePipe.allServicePipes.remove(remoteHost);
+				Service2ServicePipe.removePipe(remoteHost);
 				allServerStatuses.remove(remoteHost); // Server disconnected
 				super.pipeRemoved();
 			}
@@ -1509,7 +2630,7 @@ public class XYZMixxer {
 	}
 
 	public static void fixQueryResult(int uid, String remoteDomain, int remotePort) {
-		String remoteHost = null;
+		int remoteServer = ServerId.NONE;
 		int slot = uid & SLOTS_MASKS; // uid % SLOTS;
 		long now = System.currentTimeMillis();
 		if (isPrimaryProxyMode()) {
@@ -1540,6 +2661,7 @@ public class XYZMixxer {
 		}
 		UserResult usr = null;
 		synchronized (userMutex[slot]) {
+			offlineUsers[slot].remove(uid); // sending event, user is online
 			UserResult r = cachedUsers[slot].get(uid);
 			if (r == null || r.status == IStatus.DISCONNECTED
 					|| (r.lastUpdated != -1 // -1 means logging in from this server, never expired
@@ -1551,29 +2673,38 @@ public class XYZMixxer {
 				usr.domain = remoteDomain;
 				usr.port = remotePort;
 				cachedUsers[slot].put(uid, usr);
-				remoteHost = remotePort == 80 ? remoteDomain : (remoteDomain + ":" + remotePort);
+				remoteServer = ServerId.intern(remoteDomain, remotePort);
 			} else if (r != null && r.lastUpdated != -1) { // -1 means logging in from this server
-				r.lastUpdated = now;
+				// Cached results may be peeked without mutex, never modified in place
+				UserResult updated = new UserResult();
+				updated.status = r.status;
+				updated.uid = r.uid;
+				updated.lastUpdated = now;
+				updated.domain = r.domain;
+				updated.port = r.port;
+				cachedUsers[slot].put(uid, updated);
 			}
 		}
 		if (usr != null) {
 			ClusterEvent[] events = null;
 			// to cross pipe cached events, if any
 			synchronized (dataMutex[slot]) {
-				List<ClusterEvent> data = crossPipeData[slot].get(usr.uid);
-				if (data != null) {
-					int size = data.size();
-					if (size > 0) {
-						events = data.toArray(new ClusterEvent[size]);
-						crossPipeData[slot].remove(usr.uid);
-					}
+				queryingUsers[slot].finish(usr.uid);
+				events = crossPipeData[slot].take(usr.uid);
+			}
+			if (events != null) {
+				// Try to send events, deliveries are completed on events being handed to pipe
+				int result = pipeOut(remoteServer, events);
+				if (result == ClusterServer.PIPE_REJECTED) {
+					ClusterDelivery.complete(events, ClusterDelivery.REJECTED);
+					runNotSentTaks(events);
+				} else if (result != 1) {
+					// if not not sent, user is considered as not online or unreachable
+					ClusterDelivery.complete(events, ClusterDelivery.UNREACHABLE);
+					runNotSentTaks(events);
+					// We just update user status. No need to update user status for primary servers
 				}
 			}
-			if (events != null && !pipeOut(remoteHost, events)) { // Try to send events
-				// if not not sent, user is considered as not online or unreachable
-				runNotSentTaks(events);
-				// We just update user status. No need to update user status for primary servers
-			}
 		}
 	}
 
@@ -1589,205 +2720,404 @@ public class XYZMixxer {
 	 * @param remotePort
 	 */
 	public static boolean updateUserOnServer(UserStatus uss, String remoteDomain, int remotePort) {
-		UserResult r = null;
 		int slot = uss.uid & SLOTS_MASKS; // uss.uid % SLOTS;
+		int remoteServer = ServerId.intern(remoteDomain, remotePort);
 		synchronized (statusMutex[slot]) {
-			r = allStatuses[slot].get(uss.uid);
-			long now = System.currentTimeMillis(); //Math.max(System.currentTimeMillis(), uss.time);
-			if (r == null) {
-				r = new UserResult();
-				r.uid = uss.uid;
-				if (uss.status == IStatus.CONNECTED) {
-					r.domain = remoteDomain;
-					r.port = remotePort;
-				} else { // should not reach this branch?
-					r.domain = null; // DISCONNECTED
-					r.port = -1; // DISCONNECTED
-				}
-				r.lastUpdated = now;
-				r.status = uss.status;
-				allStatuses[slot].put(uss.uid, r);
-				return true;
-			} else {
-				boolean updating = false;
-				boolean ignoring = false; // for proxy mode, we will ignore updates
-				long lastUpdated = r.lastUpdated;
-				r.lastUpdated = now;
-				if (uss.status == IStatus.CONNECTED) {
-					// check duplicated users and notify that server about this update
-					if (r.domain != null && r.port != -1 // consider as r.status == CONNECTED
-							&& (r.port != remotePort || !r.domain.equals(remoteDomain))) { // Not the same
-						if (r.port == ClusterConfig.port && ClusterConfig.clusterServerIP != null
-								&& ClusterConfig.clusterServerIP.equals(r.domain)) {
-							if (XYZMixxer.isPrimaryProxyMode()) {
-								// for primary proxy server, this server won't accept direct connection
-								ClusterNode node = ClusterServer.getClusterNode();
-								if (node != null) { // gateway
-									// notifyDuplicatedLogin(uss.uid, System.currentTimeMillis(),
-									//		remoteDomain, remotePort);
-									node.onLoginedElsewhere(uss.uid, System.currentTimeMillis(),
-											remoteDomain, remotePort);
-								}
-							} else {
-								// old user is on this server
-								notifyDuplicatedLogin(uss.uid, System.currentTimeMillis(),
+			return updateUserInSlot(allStatuses[slot], uss, remoteDomain, remotePort, remoteServer, null);
+		} // end of statusMutex 
+	}
+
+	/**
+	 * Update users' statuses on given servers, taking each slot lock only
+	 * once.
+	 * 
+	 * @param rs users and their servers
+	 * @return whether each user's status is updated or not
+	 */
+	public static boolean[] updateUsersOnServers(UserResults rs) {
+		int length = rs.size();
+		boolean[] updated = new boolean[length];
+		if (length == 0) {
+			return updated;
+		}
+		int serverCount = rs.domains == null ? 0 : rs.domains.length;
+		int[] serverIDs = new int[serverCount];
+		for (int i = 0; i < serverCount; i++) {
+			serverIDs[i] = ServerId.intern(rs.domains[i], rs.ports[i]);
+		}
+		int[] order = sortBySlot(rs.uids);
+		UserStatus uss = new UserStatus();
+		UserNotifications notifications = new UserNotifications();
+		int from = 0;
+		while (from < length) {
+			int slot = rs.uids[order[from]] & SLOTS_MASKS;
+			int to = from + 1;
+			while (to < length && (rs.uids[order[to]] & SLOTS_MASKS) == slot) {
+				to++;
+			}
+			synchronized (statusMutex[slot]) {
+				UserDirectory dir = allStatuses[slot];
+				for (int i = from; i < to; i++) {
+					int idx = order[i];
+					int server = rs.servers[idx];
+					if (server < 0 || server >= serverCount) {
+						continue; // no server to update user on
+					}
+					uss.uid = rs.uids[idx];
+					uss.status = rs.statuses[idx];
+					uss.time = rs.lastUpdated[idx];
+					updated[idx] = updateUserInSlot(dir, uss, rs.domains[server], rs.ports[server],
+							serverIDs[server], notifications);
+				}
+			}
+			from = to;
+		}
+		notifications.send();
+		return updated;
+	}
+
+	/**
+	 * Update users to given status on their servers in bulk, e.g. users
+	 * decoded from synchronized slots or lost servers.
+	 * 
+	 * Users are grouped by slot and each slot lock is taken only once.
+	 * Notifications to servers monitoring these users are gathered and
+	 * piped after releasing slot locks.
+	 * 
+	 * @param uids
+	 * @param servers server ID of each user, ServerId.NONE for skipping
+	 * @param length count of users
+	 * @param status
+	 * @param time
+	 * @return count of updated users
+	 */
+	public static int updateUsersOnServers(int[] uids, int[] servers, int length, int status, long time) {
+		if (length <= 0) {
+			return 0;
+		}
+		if (length < uids.length) {
+			uids = Arrays.copyOf(uids, length);
+		}
+		int[] order = sortBySlot(uids);
+		UserStatus uss = new UserStatus();
+		uss.status = status;
+		uss.time = time;
+		UserNotifications notifications = new UserNotifications();
+		int updated = 0;
+		int from = 0;
+		while (from < length) {
+			int slot = uids[order[from]] & SLOTS_MASKS;
+			int to = from + 1;
+			while (to < length && (uids[order[to]] & SLOTS_MASKS) == slot) {
+				to++;
+			}
+			synchronized (statusMutex[slot]) {
+				UserDirectory dir = allStatuses[slot];
+				for (int i = from; i < to; i++) {
+					int idx = order[i];
+					int server = servers[idx];
+					if (server == ServerId.NONE) {
+						continue;
+					}
+					uss.uid = uids[idx];
+					if (updateUserInSlot(dir, uss, ServerId.getDomain(server), ServerId.getPort(server),
+							server, notifications)) {
+						updated++;
+					}
+				}
+			}
+			from = to;
+		}
+		notifications.send();
+		return updated;
+	}
+
+	/*
+	 * Caller should synchronize on the slot mutex.
+	 */
+	private static boolean updateUserInSlot(UserDirectory dir, UserStatus uss,
+			String remoteDomain, int remotePort, int remoteServer, UserNotifications notifications) {
+		int pos = dir.indexOf(uss.uid);
+		long now = System.currentTimeMillis(); //Math.max(System.currentTimeMillis(), uss.time);
+		if (pos < 0) {
+			if (uss.status == IStatus.CONNECTED) {
+				dir.put(uss.uid, remoteServer, uss.status, now);
+				StatusJournal.append(uss.uid, remoteServer, uss.status, now);
+			} else { // should not reach this branch?
+				dir.put(uss.uid, ServerId.NONE, uss.status, now); // DISCONNECTED
+				StatusJournal.append(uss.uid, ServerId.NONE, uss.status, now);
+			}
+			return true;
+		} else {
+			boolean updating = false;
+			boolean ignoring = false; // for proxy mode, we will ignore updates
+			long lastUpdated = dir.timeAt(pos);
+			int server = dir.serverAt(pos);
+			String domain = ServerId.getDomain(server);
+			int port = ServerId.getPort(server);
+			dir.touch(pos, now);
+			if (uss.status == IStatus.CONNECTED) {
+				// check duplicated users and notify that server about this update
+				if (server != ServerId.NONE // consider as r.status == CONNECTED
+						&& server != remoteServer) { // Not the same
+					if (ServerId.isLocal(server)) {
+						if (XYZMixxer.isPrimaryProxyMode()) {
+							// for primary proxy server, this server won't accept direct connection
+							ClusterNode node = ClusterServer.getClusterNode();
+							if (node != null) { // gateway
+								// notifyDuplicatedLogin(uss.uid, System.currentTimeMillis(),
+								//		remoteDomain, remotePort);
+								node.onLoginedElsewhere(uss.uid, System.currentTimeMillis(),
 										remoteDomain, remotePort);
 							}
-							updating = true;
-						} else if (ClusterConfig.clusterServerMoving
-								&& ClusterConfig.clusterNewServerIP != null
-								&& ClusterConfig.clusterNewServerIP.equals(r.domain)
-								&& ClusterConfig.clusterNewServerPort == r.port
-								&& ClusterConfig.clusterOldServerIP != null
-								&& ClusterConfig.clusterOldServerIP.equals(remoteDomain)
-								&& ClusterConfig.clusterOldServerPort == remotePort) {
-							// updating = false
+						} else {
+							// old user is on this server
+							notifyDuplicatedLogin(uss.uid, System.currentTimeMillis(),
+									remoteDomain, remotePort);
+						}
+						updating = true;
+					} else if (ClusterConfig.clusterServerMoving
+							&& ClusterConfig.clusterNewServerIP != null
+							&& ClusterConfig.clusterNewServerIP.equals(domain)
+							&& ClusterConfig.clusterNewServerPort == port
+							&& ClusterConfig.clusterOldServerIP != null
+							&& ClusterConfig.clusterOldServerIP.equals(remoteDomain)
+							&& ClusterConfig.clusterOldServerPort == remotePort) {
+						// updating = false
+						ignoring = true;
+						//if (ClusterConfig.clusterLogging) {
+						//	System.out.println("Cluster: Skip replacing new server status with old server status for " + uss.uid);
+						//}
+					} else {
+						Login2ServicePipe p = Login2ServicePipe.getPipe(server);
+						if (XYZMixxer.isPrimaryProxyMode() && ServerId.isLocal(remoteServer) && p != null) {
+							// The UserStatus object is from SynchronizeUsers RPC.
+							// Existed update is from inner service servers, do not update anything
 							ignoring = true;
-							//if (ClusterConfig.clusterLogging) {
-							//	System.out.println("Cluster: Skip replacing new server status with old server status for " + uss.uid);
-							//}
 						} else {
-							String host = r.port == 80 ? r.domain : (r.domain + ":" + r.port);
-							if (XYZMixxer.isPrimaryProxyMode() && remotePort == ClusterConfig.port
-									&& ClusterConfig.clusterServerIP != null
-									&& ClusterConfig.clusterServerIP.equals(remoteDomain)
-									&& Login2ServicePipe.allLoginPipes.containsKey(host)) {
-								// The UserStatus object is from SynchronizeUsers RPC.
-								// Existed update is from inner service servers, do not update anything
-								ignoring = true;
+							// should pipe through login event!
+							if (p != null) {
+								UserDuplicated usd = new UserDuplicated();
+								usd.uid = uss.uid;
+								usd.time = System.currentTimeMillis();
+								usd.domain = remoteDomain; //r.domain;
+								usd.port = remotePort; //r.port;
+								p.pipeThrough(usd);
 							} else {
-								// should pipe through login event!
-								Login2ServicePipe p = Login2ServicePipe.allLoginPipes.get(host);
-								if (p != null) {
-									UserDuplicated usd = new UserDuplicated();
-									usd.uid = uss.uid;
-									usd.time = System.currentTimeMillis();
-									usd.domain = remoteDomain; //r.domain;
-									usd.port = remotePort; //r.port;
-									p.pipeThrough(usd);
-								} else {
-									ClusterNode node = ClusterServer.getClusterNode();
-									if (node != null && XYZMixxer.isPrimaryProxyMode() && host.equals(node.getNodeID())) {
-										// proxy gateway node
-										notifyDuplicatedLogin(uss.uid, System.currentTimeMillis(),
-												remoteDomain, remotePort);
-									} // else just ignore it
-								}
-								updating = true;
+								ClusterNode node = ClusterServer.getClusterNode();
+								if (node != null && XYZMixxer.isPrimaryProxyMode() && server == getNodeServerID(node)) {
+									// proxy gateway node
+									notifyDuplicatedLogin(uss.uid, System.currentTimeMillis(),
+											remoteDomain, remotePort);
+								} // else just ignore it
 							}
+							updating = true;
 						}
-					} else {
-						updating = r.status != uss.status;
 					}
-					if (!ignoring) {
-						r.domain = remoteDomain;
-						r.port = remotePort;
-						r.status = uss.status;
-					}
-				} else { // disconnected
-					if (r.port == remotePort && r.domain != null
-							&& r.domain.equals(remoteDomain)) {
-						r.domain = null; // DISCONNECTED
-						r.port = -1; // DISCONNECTED
-						r.status = IStatus.DISCONNECTED;
-						updating = true;
-					} // else not updating
-				}
-				if (!updating) {
-					return updating; // quick return
-				} // else user status updated, need to broadcast to callbacks (servers)
-				// Notify those servers which are monitoring on this user.
-				String[] callbacks = r.getCallbacks();
-				if (callbacks != null) {
-					if (Math.abs(now - lastUpdated) > ClusterConfig.clusterUserCachingTime + ClusterConfig.clusterUserCachingTime) {
-						r.clearCallbacks();
-					} else {
-						String remoteHost = null;
-						if (remoteDomain != null && remotePort > 0) {
-							remoteHost = remotePort == 80 ? remoteDomain : (remoteDomain + ":" + remotePort);
+				} else {
+					updating = dir.statusAt(pos) != uss.status;
+				}
+				if (!ignoring) {
+					dir.set(pos, remoteServer, uss.status);
+					StatusJournal.append(uss.uid, remoteServer, uss.status, now);
+				}
+			} else { // disconnected
+				if (server != ServerId.NONE && server == remoteServer) {
+					dir.set(pos, ServerId.NONE, IStatus.DISCONNECTED);
+					StatusJournal.append(uss.uid, ServerId.NONE, IStatus.DISCONNECTED, now);
+					updating = true;
+				} // else not updating
+			}
+			if (!updating) {
+				return updating; // quick return
+			} // else user status updated, need to broadcast to callbacks (servers)
+			// Notify those servers which are monitoring on this user.
+			int[] callbacks = dir.getCallbacks(uss.uid);
+			if (callbacks != null) {
+				if (Math.abs(now - lastUpdated) > ClusterConfig.clusterUserCachingTime + ClusterConfig.clusterUserCachingTime) {
+					dir.clearCallbacks(uss.uid);
+				} else {
+					// inner service servers
+					boolean inner = Login2ServicePipe.getPipe(remoteServer) != null;
+					UserResult r = null;
+					int cbSize = callbacks.length;
+					for (int i = 0; i < cbSize; i++) {
+						int cbServer = callbacks[i];
+						if (cbServer == ServerId.NONE) {
+							continue;
 						}
-						int cbSize = callbacks.length;
-						for (int i = 0; i < cbSize; i++) {
-							String host = callbacks[i];
-							if (host == null) {
-								continue;
+						if (cbServer == remoteServer) {
+							if (ClusterConfig.clusterLogging) {
+								System.out.println("Cluster: Skip sending update back to server " + ServerId.getHost(remoteServer));
 							}
-							if (host != null && remoteHost != null && host.equals(remoteHost)) {
-								if (ClusterConfig.clusterLogging) {
-									System.out.println("Cluster: Skip sending update back to server " + remoteHost);
-								}
-								// Update is coming from the same host, ignore
-								continue;
+							// Update is coming from the same host, ignore
+							continue;
+						}
+						Login2ServicePipe p = Login2ServicePipe.getPipe(cbServer);
+						if (p != null) {
+							if (r == null) {
+								// Create wire object on demand
+								r = dir.toResult(pos);
 							}
-							Login2ServicePipe p = Login2ServicePipe.allLoginPipes.get(host);
-							if (p != null) {
-								if (Login2ServicePipe.allLoginPipes.containsKey(remoteHost)) {
-									// inner service servers
-									p.pipeThrough(r);
-								} else {
-									if (XYZMixxer.isPrimaryProxyMode()) {
-										UserResult usr = new UserResult();
-										usr.uid = r.uid;
-										usr.status = r.status;
-										usr.lastUpdated = r.lastUpdated;
-										usr.domain = ClusterConfig.clusterServerIP;
-										usr.port = ClusterConfig.port;
-										p.pipeThrough(usr);
-									} else {
-										p.pipeThrough(r);
-									}
-								}
+							UserResult result = r;
+							if (!inner && XYZMixxer.isPrimaryProxyMode()) {
+								UserResult usr = new UserResult();
+								usr.uid = r.uid;
+								usr.status = r.status;
+								usr.lastUpdated = r.lastUpdated;
+								usr.domain = ClusterConfig.clusterServerIP;
+								usr.port = ClusterConfig.port;
+								result = usr;
+							}
+							if (notifications != null) {
+								notifications.add(cbServer, result);
+							} else {
+								p.pipeThrough(result);
 							}
 						}
 					}
-				} // end of if callbacks
-				
-				return updating;
-			}
-		} // end of statusMutex 
+				}
+			} // end of if callbacks
+			
+			return updating;
+		}
 	}
 
 	public static UserResult queryUserServer(UserQuery usq, String remoteDomain, int remotePort) {
-		String remoteHost = remotePort == 80 ? remoteDomain : (remoteDomain + ":" + remotePort);
+		int remoteServer = ServerId.intern(remoteDomain, remotePort);
 		UserResult r = null;
 		int slot = usq.uid & SLOTS_MASKS; // usq.uid % SLOTS;
 		synchronized (statusMutex[slot]) {
-			r = allStatuses[slot].get(usq.uid);
-			if (r == null) {
-				r = new UserResult();
-				r.domain = null;
-				r.port = -1;
-				r.uid = usq.uid;
-				r.status = IStatus.DISCONNECTED;
-				allStatuses[slot].put(usq.uid, r);
-			}
-			r.lastUpdated = System.currentTimeMillis();
-			r.addCallback(remoteHost);
+			r = lookupUser(allStatuses[slot], usq.uid, remoteServer, System.currentTimeMillis());
+		}
+		proxyResult(r);
+		return r;
+	}
+
+	/**
+	 * Query servers of given users, taking each slot lock only once.
+	 * 
+	 * @param uids
+	 * @param remoteDomain
+	 * @param remotePort
+	 * @return
+	 */
+	public static UserResults queryUserServers(int[] uids, String remoteDomain, int remotePort) {
+		int remoteServer = ServerId.intern(remoteDomain, remotePort);
+		int length = uids.length;
+		UserResult[] results = new UserResult[length];
+		int[] order = sortBySlot(uids);
+		long now = System.currentTimeMillis();
+		int from = 0;
+		while (from < length) {
+			int slot = uids[order[from]] & SLOTS_MASKS;
+			int to = from + 1;
+			while (to < length && (uids[order[to]] & SLOTS_MASKS) == slot) {
+				to++;
+			}
+			synchronized (statusMutex[slot]) {
+				UserDirectory dir = allStatuses[slot];
+				for (int i = from; i < to; i++) {
+					int idx = order[i];
+					results[idx] = lookupUser(dir, uids[idx], remoteServer, now);
+				}
+			}
+			from = to;
+		}
+		UserResults rs = new UserResults();
+		rs.uids = new int[length];
+		rs.servers = new int[length];
+		rs.statuses = new int[length];
+		rs.lastUpdated = new long[length];
+		List<String> domains = new ArrayList<String>();
+		List<Integer> ports = new ArrayList<Integer>();
+		for (int i = 0; i < length; i++) {
+			UserResult r = results[i];
+			proxyResult(r);
+			rs.uids[i] = r.uid;
+			rs.statuses[i] = r.status;
+			rs.lastUpdated[i] = r.lastUpdated;
+			int index = -1;
+			if (r.domain != null) {
+				for (int j = domains.size() - 1; j >= 0; j--) {
+					if (ports.get(j).intValue() == r.port && r.domain.equals(domains.get(j))) {
+						index = j;
+						break;
+					}
+				}
+				if (index < 0) {
+					index = domains.size();
+					domains.add(r.domain);
+					ports.add(Integer.valueOf(r.port));
+				}
+			}
+			rs.servers[i] = index;
+		}
+		int size = domains.size();
+		rs.domains = domains.toArray(new String[size]);
+		rs.ports = new int[size];
+		for (int i = 0; i < size; i++) {
+			rs.ports[i] = ports.get(i).intValue();
+		}
+		return rs;
+	}
+
+	/*
+	 * Find user in directory and register query callback. Caller should
+	 * synchronize on the slot mutex.
+	 */
+	private static UserResult lookupUser(UserDirectory dir, int uid, int remoteServer, long now) {
+		int pos = dir.indexOf(uid);
+		if (pos < 0) {
+			pos = dir.put(uid, ServerId.NONE, IStatus.DISCONNECTED, now);
+		} else {
+			dir.touch(pos, now);
 		}
+		if (pos < 0) { // invalid user ID
+			UserResult r = new UserResult();
+			r.domain = null;
+			r.port = -1;
+			r.uid = uid;
+			r.status = IStatus.DISCONNECTED;
+			return r;
+		}
+		dir.addCallback(uid, remoteServer);
+		return dir.toResult(pos);
+	}
+
+	private static void proxyResult(UserResult r) {
 		if (XYZMixxer.isPrimaryProxyMode() && r.domain != null && r.port > 0) {
+			int server = ServerId.find(r.domain, r.port);
 			// UserQuery is from inner service servers of primary proxy server
-			String host = r.port == 80 ? r.domain : (r.domain + ":" + r.port);
-			boolean proxying = !Login2ServicePipe.allLoginPipes.containsKey(host);
+			boolean proxying = Login2ServicePipe.getPipe(server) == null;
 			// User is not on inner service servers, it is from outer world.
 			if (!proxying) {
 				ClusterNode node = ClusterServer.getClusterNode();
-				proxying = node != null && host.equals(node.getNodeID());
+				proxying = node != null && server == getNodeServerID(node);
 				// User is on gateway server
 			}
 			if (proxying) {
 				// Respond query with result pointing to this proxy server.
-				int status = r.status;
-				r = new UserResult();
 				r.domain = ClusterConfig.clusterServerIP;
 				r.port = ClusterConfig.port;
-				r.uid = usq.uid;
-				r.status = status;
 			}
 		}
-		return r;
 	}
 
-	public static boolean sendPipeOutRPC(final String remoteHost, final ClusterEvent... events) {
+	public static boolean sendPipeOutRPC(String remoteHost, ClusterEvent... events) {
+		if (events == null || events.length == 0) {
+			return false;
+		}
+		if (OutboundBatcher.send(remoteHost, events)) {
+			return true;
+		}
+		return sendPipeOutRPCNow(remoteHost, events);
+	}
+
+	/*
+	 * Send events by RPC without batching, called by OutboundBatcher on flushing.
+	 */
+	static boolean sendPipeOutRPCNow(final String remoteHost, final ClusterEvent... events) {
 //		if (ClusterConfig.port == usr.port && usr.domain.equals(ClusterConfig.clusterServerIP)) {
 //			System.out.println("Try to send out RPC to this server?!");
 //			return false;
@@ -1806,13 +3136,16 @@ public class XYZMixxer {
 			public void ajaxOut() {
 				if (returnCode != OK) {
 					onFallback();
+					return;
 				}
+				ClusterDelivery.complete(events, ClusterDelivery.DELIVERED);
 			}
 			
 			@Override
 			public void ajaxFail() {
 				if (!allService2LoginPipes.containsKey(remoteHost)) {
 					// Target service has been shutdown!
+					ClusterDelivery.complete(events, ClusterDelivery.UNREACHABLE);
 					return; // ignore
 				}
 				retryOrFallback();
@@ -1820,7 +3153,11 @@ public class XYZMixxer {
 			
 			@Override
 			protected void onFallback() {
-				pipeOut(remoteHost, events);
+				int result = pipeOut(remoteHost, events);
+				if (result != 1) {
+					ClusterDelivery.complete(events, result == ClusterServer.PIPE_REJECTED
+							? ClusterDelivery.REJECTED : ClusterDelivery.UNREACHABLE);
+				}
 			}
 			
 		};
@@ -1842,46 +3179,55 @@ public class XYZMixxer {
 
 	public static void gotUserOnServer(UserResult usr) {
 		int slot = usr.uid & SLOTS_MASKS; // usr.uid % SLOTS;
+		int server = ServerId.intern(usr.domain, usr.port);
+		if (server != ServerId.NONE) {
+			// Cached results are kept for a while, share domain strings
+			usr.domain = ServerId.getDomain(server);
+		}
 		synchronized (userMutex[slot]) {
 			UserResult r = cachedUsers[slot].get(usr.uid);
-			if (r != null && r.lastUpdated == -1
+			boolean local = r != null && r.lastUpdated == -1
 					&& r.port == ClusterConfig.port && ClusterConfig.clusterServerIP != null
-					&& ClusterConfig.clusterServerIP.equals(r.domain)) {
+					&& ClusterConfig.clusterServerIP.equals(r.domain);
+			if (local) {
 				usr.lastUpdated = -1; // Logging from this server, never expired
 			}
-			cachedUsers[slot].put(usr.uid, usr);
+			if (usr.status != IStatus.CONNECTED && !local) {
+				// Offline users are kept in negative cache, for a shorter time
+				cachedUsers[slot].remove(usr.uid);
+				offlineUsers[slot].put(usr.uid, System.currentTimeMillis());
+			} else {
+				offlineUsers[slot].remove(usr.uid);
+				cachedUsers[slot].put(usr.uid, usr);
+			}
 		}
-		boolean sent = false;
-		String remoteHost = null;
+		int result = 0;
 		ClusterEvent[] events = null;
 		// to cross pipe cached events, if any
 		synchronized (dataMutex[slot]) {
-			List<ClusterEvent> data = crossPipeData[slot].get(usr.uid);
-			if (data != null) {
-				int size = data.size();
-				if (size > 0) {
-					if (usr.domain != null && usr.port > 0) {
-						remoteHost = usr.port == 80 ? usr.domain : (usr.domain + ":" + usr.port);
-					}
-					events = data.toArray(new ClusterEvent[size]);
-					crossPipeData[slot].remove(usr.uid);
-				}
-			}
+			queryingUsers[slot].finish(usr.uid);
+			events = crossPipeData[slot].take(usr.uid);
 		}
 		if (events != null) {
-			if (remoteHost != null) {
-				sent = pipeOut(remoteHost, events);
+			if (server != ServerId.NONE && usr.port > 0) {
+				result = pipeOut(server, events);
 				// if not sent, as it is invoked from Login2ServicePipe, there is no needs to
 				// update user status in primary status servers
 			}
-			if (!sent) {
+			// If sent, deliveries are completed on events being handed to pipe
+			if (result == ClusterServer.PIPE_REJECTED) {
+				ClusterDelivery.complete(events, ClusterDelivery.REJECTED);
+				runNotSentTaks(events);
+			} else if (result != 1) {
+				ClusterDelivery.complete(events, usr.status == IStatus.CONNECTED && server != ServerId.NONE
+						? ClusterDelivery.UNREACHABLE : ClusterDelivery.OFFLINE);
 				// For those events which are not sent, try to run failed call back.
 				runNotSentTaks(events);
 			}
 		}
 	}
 
-	private static void runNotSentTaks(ClusterEvent[] events) {
+	public static void runNotSentTaks(ClusterEvent[] events) {
 		if (events.length == 1) {
 			ClusterEvent e = events[0];
 			Runnable cb = e.getCallback();
@@ -1930,17 +3276,15 @@ public class XYZMixxer {
 		if (!ClusterConfig.clusterPrimaryServer) {
 			// Update cached user status
 			int slot = uid & SLOTS_MASKS; // uid % SLOTS;
+			// Cached results may be peeked without mutex, never modified in place
+			UserResult r = new UserResult();
+			r.status = IStatus.CONNECTED;
+			r.uid = uid;
+			r.lastUpdated = time;
+			r.domain = host;
+			r.port = port;
 			synchronized (XYZMixxer.userMutex[slot]) {
-				UserResult r = XYZMixxer.cachedUsers[slot].get(uid);
-				if (r == null) {
-					r = new UserResult();
-					cachedUsers[slot].put(uid, r);
-				}
-				r.status = IStatus.CONNECTED;
-				r.uid = uid;
-				r.lastUpdated = time;
-				r.domain = host;
-				r.port = port;
+				cachedUsers[slot].put(uid, r); // schedule expiring
 			}
 		}
 		ClusterNode node = ClusterServer.getClusterNode();
@@ -2003,22 +3347,63 @@ public class XYZMixxer {
 		return servers;
 	}
 
+	/**
+	 * Return count of users on given server, for primary server.
+	 * 
+	 * @param domain
+	 * @param port
+	 * @return
+	 */
+	public static int getServerUserCount(String domain, int port) {
+		int server = ServerId.find(domain, port);
+		if (server == ServerId.NONE) {
+			return 0;
+		}
+		int count = 0;
+		for (int i = 0; i < SLOTS; i++) {
+			synchronized (statusMutex[i]) {
+				count += allStatuses[i].countOf(server);
+			}
+		}
+		return count;
+	}
+
 	/*
 	 * Service server is down, clear up and notify primary login servers.
 	 */
 	private static void dropServiceServer(String remoteDomain, int remotePort) {
+		dropServiceServer(remoteDomain, remotePort, false);
+	}
+
+	/*
+	 * Remove users of service server, or only its provisional users, which
+	 * are restored on starting and are not online on reconciling.
+	 */
+	private static void dropServiceServer(String remoteDomain, int remotePort, boolean provisional) {
+		int remoteServer = ServerId.find(remoteDomain, remotePort);
+		if (remoteServer == ServerId.NONE) {
+			return; // no users on unknown server
+		}
+		if (provisional && !reconciling) {
+			return;
+		}
+		int total = 0;
 		for (int i = 0; i < SLOTS; i++) {
-			List<UserResult> toRemoved = new LinkedList<UserResult>();
+			int[] toRemoved = null;
 			int removedSize = 0;
 			synchronized (statusMutex[i]) {
-				Map<Object, UserResult> ass = allStatuses[i];
-				for (Iterator<UserResult> itr = ass.values().iterator(); itr.hasNext();) {
-					UserResult usr = (UserResult) itr.next();
-					if (usr.port == remotePort && remoteDomain.equals(usr.domain)) {
-						toRemoved.add(usr);
-						removedSize++;
-						itr.remove();
-					}
+				UserDirectory dir = allStatuses[i];
+				if (provisional && !dir.hasProvisional()) {
+					continue;
+				}
+				// Users are indexed by servers, no need to scan all records
+				toRemoved = provisional ? dir.provisionalOf(remoteServer) : dir.usersOf(remoteServer);
+				removedSize = toRemoved.length;
+				total += removedSize;
+				long now = System.currentTimeMillis();
+				for (int j = 0; j < removedSize; j++) {
+					dir.remove(toRemoved[j]);
+					StatusJournal.append(toRemoved[j], ServerId.NONE, StatusJournal.REMOVED, now);
 				}
 			} // end of synchronized block of statusMutex
 			if (ClusterConfig.clusterPrimarySynchronizing && removedSize > 0) {
@@ -2036,26 +3421,7 @@ public class XYZMixxer {
 				if (needPiping) {
 					// prepare ServerLost event
 					int slot = i;
-					int maxUserID = slot;
-					byte[] bits = new byte[(ClusterConfig.clusterMaxUsers >> (XYZMixxer.SLOTS_BITS + 3)) + 1];
-					boolean hasUsers = false;
-					for (Iterator<UserResult> iter = toRemoved.iterator(); iter.hasNext();) {
-						UserResult usr = (UserResult) iter.next();
-						if (usr != null && usr.status == IStatus.CONNECTED) {
-							// Only return online users
-							int uid = usr.uid;
-							if (uid > maxUserID) {
-								maxUserID = uid;
-							}
-							int location = (uid - slot) >> XYZMixxer.SLOTS_BITS;
-							int index = location >> 3;
-							int bit = location & 0x7;
-							bits[index] |= 1 << bit;
-							
-							hasUsers = true;
-						}
-					} // end of for loop
-					if (hasUsers) {
+					if (removedSize > 0) {
 						ServerLost sl = new ServerLost();
 						// Specify the server detects that service server is lost
 						sl.sourceDomain = ClusterConfig.clusterServerIP;
@@ -2071,33 +3437,49 @@ public class XYZMixxer {
 						}
 						sl.time = System.currentTimeMillis();
 						sl.slot = slot;
+						sl.slotBits = SLOTS_BITS;
 						
-						int size = ((maxUserID - slot) >> (XYZMixxer.SLOTS_BITS + 3)) + 1;
-						//*
-						// Make offline bits more compact
-						ByteArrayOutputStream out = new ByteArrayOutputStream();
-						GZIPOutputStream gZipOut = null;
-						try {
-							gZipOut = new GZIPOutputStream(out);
-							gZipOut.write(bits, 0, size);
-						} catch (IOException e) {
-							e.printStackTrace();
-						} finally {
-							if (gZipOut != null) {
-								try {
-									gZipOut.close();
-								} catch (IOException e) {
-									e.printStackTrace();
+						// Only online users are removed
+						int[] locations = new int[removedSize];
+						for (int j = 0; j < removedSize; j++) {
+							locations[j] = (toRemoved[j] - slot) >> XYZMixxer.SLOTS_BITS;
+						}
+						Arrays.sort(locations);
+						if (ClusterConfig.clusterCompactServerLost) {
+							sl.offlineUsers = UserBitmap.encode(locations, 0, removedSize);
+						} else {
+							int size = (locations[removedSize - 1] >> 3) + 1;
+							byte[] bits = new byte[size];
+							for (int j = 0; j < removedSize; j++) {
+								int location = locations[j];
+								bits[location >> 3] |= 1 << (location & 0x7);
+							}
+							//*
+							// Make offline bits more compact
+							ByteArrayOutputStream out = new ByteArrayOutputStream();
+							GZIPOutputStream gZipOut = null;
+							try {
+								gZipOut = new GZIPOutputStream(out);
+								gZipOut.write(bits, 0, size);
+							} catch (IOException e) {
+								e.printStackTrace();
+							} finally {
+								if (gZipOut != null) {
+									try {
+										gZipOut.close();
+									} catch (IOException e) {
+										e.printStackTrace();
+									}
 								}
 							}
+							sl.offlineBits = out.toByteArray();
+							// */
+							/*
+							// Raw data without gzip encoding
+							sl.onlineBits = new byte[size];
+							System.arraycopy(bits, 0, sl.onlineBits, 0, size);
+							// */
 						}
-						sl.offlineBits = out.toByteArray();
-						// */
-						/*
-						// Raw data without gzip encoding
-						sl.onlineBits = new byte[size];
-						System.arraycopy(bits, 0, sl.onlineBits, 0, size);
-						// */
 						for (Iterator<Login2LoginPipe> itr = Login2LoginPipe.allSyncPipes.values().iterator();
 								itr.hasNext();) {
 							Login2LoginPipe p = (Login2LoginPipe) itr.next();
@@ -2110,6 +3492,135 @@ public class XYZMixxer {
 				} // end of needPiping
 			} // end of #clusterPrimarySynchronizing 
 		}
+		if (provisional && total > 0 && ClusterConfig.clusterLogging) {
+			System.out.println("Cluster: " + total + " restored users of " + remoteDomain + ":" + remotePort
+					+ " are dropped on reconciling.");
+		}
+	}
+
+	/**
+	 * Pipe up online users of given node in chunks, see OnlineUsers.
+	 * 
+	 * @param p
+	 * @param node
+	 * @param time
+	 */
+	public static void pipeUpOnlineUsers(final Service2LoginPipe p, final ClusterStreamingNode node, final long time) {
+		runTask(new Runnable() {
+			
+			@Override
+			public void run() {
+				int chunkSize = Math.max(1, ClusterConfig.clusterOnlineUsersChunkSize);
+				int afterUser = 0;
+				int total = 0;
+				int chunks = 0;
+				while (Service2LoginPipe.servicePipe == p) { // not replaced by new pipe
+					int[] uids = node.getOnlineUsersAfter(afterUser, chunkSize);
+					if (uids == null) {
+						uids = new int[0];
+					}
+					int lastUser = afterUser;
+					for (int i = 0; i < uids.length; i++) {
+						lastUser = Math.max(lastUser, uids[i]);
+					}
+					// Sorted by slot, so login server can apply users slot by slot directly
+					int[] order = sortBySlot(uids);
+					OnlineUsers ous = new OnlineUsers();
+					ous.uids = new int[uids.length];
+					for (int i = 0; i < uids.length; i++) {
+						ous.uids[i] = uids[order[i]];
+					}
+					ous.time = time;
+					// Login server reconciles its restored users after the last chunk,
+					// a chunk not moving forward is considered as the last one
+					ous.last = uids.length < chunkSize || lastUser == afterUser;
+					p.pipeThrough(ous);
+					chunks++;
+					total += uids.length;
+					afterUser = lastUser;
+					if (ous.last) {
+						break;
+					}
+				}
+				if (ClusterConfig.clusterLogging) {
+					System.out.println("Cluster: Piped up " + total + " online users in " + chunks + " chunks");
+				}
+			}
+			
+		});
+	}
+
+	/*
+	 * Apply online users of a service server, in parallel tasks, each of
+	 * which takes a range of slots.
+	 */
+	private static void applyOnlineUsers(int[] uids, final long time, final int server,
+			final AtomicInteger applying) {
+		int length = uids.length;
+		boolean sorted = true;
+		for (int i = 1; i < length; i++) {
+			if ((uids[i] & SLOTS_MASKS) < (uids[i - 1] & SLOTS_MASKS)) {
+				sorted = false;
+				break;
+			}
+		}
+		if (!sorted) {
+			int[] order = sortBySlot(uids);
+			int[] sortedUIDs = new int[length];
+			for (int i = 0; i < length; i++) {
+				sortedUIDs[i] = uids[order[i]];
+			}
+			uids = sortedUIDs;
+		}
+		// A full chunk is applied by all processors, smaller chunks by fewer
+		int processors = Runtime.getRuntime().availableProcessors();
+		int parts = Math.max(1, Math.min(processors,
+				(int) ((long) length * processors / Math.max(1, ClusterConfig.clusterOnlineUsersChunkSize))));
+		int partSize = (length + parts - 1) / parts;
+		int from = 0;
+		while (from < length) {
+			int to = Math.min(length, from + partSize);
+			while (to < length && (uids[to] & SLOTS_MASKS) == (uids[to - 1] & SLOTS_MASKS)) {
+				to++; // not splitting a slot into two tasks
+			}
+			final int[] part = Arrays.copyOfRange(uids, from, to);
+			applying.incrementAndGet();
+			runTask(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						int[] servers = new int[part.length];
+						for (int i = 0; i < part.length; i++) {
+							servers[i] = part[i] <= 0 ? ServerId.NONE : server; // skip invalid users
+						}
+						updateUsersOnServers(part, servers, part.length, IStatus.CONNECTED, time);
+					} finally {
+						onlineUsersApplied(server, applying);
+					}
+				}
+				
+			});
+			from = to;
+		}
+	}
+
+	/*
+	 * One task of applying online users is done, or all online users are
+	 * got. After all, restored users missing from online users are dropped.
+	 */
+	private static void onlineUsersApplied(final int server, AtomicInteger applying) {
+		if (applying.decrementAndGet() != 0 || !reconciling) {
+			return;
+		}
+		runTask(new Runnable() {
+			
+			@Override
+			public void run() {
+				dropServiceServer(ServerId.getDomain(server), ServerId.getPort(server), true);
+			}
+			
+		});
 	}
 
 	private static void runTask(Runnable r) {